@@ -34,6 +34,7 @@ import edu.ucsf.rbvi.structureVizX.internal.model.CyNetworkListener;
 import edu.ucsf.rbvi.structureVizX.internal.model.CySelectionListener;
 import edu.ucsf.rbvi.structureVizX.internal.model.StructureManager;
 import edu.ucsf.rbvi.structureVizX.internal.tasks.AlignCommandTaskFactory;
+import edu.ucsf.rbvi.structureVizX.internal.tasks.AlignmentCacheTaskFactory;
 import edu.ucsf.rbvi.structureVizX.internal.tasks.AlignStructuresTaskFactory;
 import edu.ucsf.rbvi.structureVizX.internal.tasks.AnnotateStructureNetworkTaskFactory;
 import edu.ucsf.rbvi.structureVizX.internal.tasks.AssociateStructuresTaskFactory;
@@ -389,6 +390,14 @@ public class CyActivator extends AbstractCyActivator {
 		alignTaskProperties.setProperty(COMMAND_NAMESPACE, "structureViz");
 		registerService(bc, alignTaskFactory, TaskFactory.class, alignTaskProperties);
 		
+		TaskFactory alignmentCacheTaskFactory = new AlignmentCacheTaskFactory(structureManager);
+		Properties alignmentCacheProps = new Properties();
+		alignmentCacheProps.setProperty(COMMAND, "alignment cache");
+		alignmentCacheProps.setProperty(COMMAND_DESCRIPTION,
+				"Report the hits and misses of the alignment result cache, or clear it.");
+		alignmentCacheProps.setProperty(COMMAND_NAMESPACE, "structureViz");
+		registerService(bc, alignmentCacheTaskFactory, TaskFactory.class, alignmentCacheProps);
+
 		TaskFactory modelChangedTaskFactory = new ModelChangedTaskFactory(structureManager);
 		Properties modelChangedTaskProperties = new Properties();
 		modelChangedTaskProperties.setProperty(COMMAND, "modelChanged");
@@ -11,6 +11,13 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.client.config.CookieSpecs;
@@ -19,6 +26,7 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 
 import org.cytoscape.application.CyUserLog;
@@ -45,6 +53,17 @@ public class ChimeraIO {
 
 	private StructureManager structureManager;
 
+	// A single keep-alive client is shared by all commands for the life of a ChimeraX session
+	private PoolingHttpClientConnectionManager connectionManager = null;
+	private CloseableHttpClient httpClient = null;
+
+	// Commands waiting to be sent together in a single request
+	private final ThreadLocal<CommandBatch> currentBatch = new ThreadLocal<CommandBatch>();
+
+	// Asynchronous commands are executed in order on a single thread
+	private ThreadPoolExecutor commandExecutor = null;
+	private volatile Thread commandThread = null;
+
 	public ChimeraIO(StructureManager structureManager) {
 		this.structureManager = structureManager;
 	}
@@ -65,9 +84,30 @@ public class ChimeraIO {
 	 *            the selection command to pass to Chimera
 	 */
 	public void select(String command) {
-		sendChimeraCommand(suspendSel, false);
-		sendChimeraCommand(command, false);
-		sendChimeraCommand(resumeSel , false);
+		select(Collections.singletonList(command));
+	}
+
+	/**
+	 * Send suspend and the selection commands in a single round-trip. Chimera skips the rest of
+	 * a request once a command fails, so resume always goes in a request of its own; otherwise a
+	 * failed selection would leave the notifications suspended.
+	 * 
+	 * @return <code>true</code> if all of the selection commands succeeded
+	 */
+	private boolean select(List<String> commands) {
+		List<String> batch = new ArrayList<String>();
+		batch.add(suspendSel);
+		batch.addAll(commands);
+		boolean ok = true;
+		try {
+			for (List<String> reply : sendChimeraCommands(batch, true)) {
+				if (reply == null)
+					ok = false;
+			}
+		} finally {
+			sendChimeraCommand(resumeSel, false);
+		}
+		return ok;
 	}
 
 	/**
@@ -77,6 +117,10 @@ public class ChimeraIO {
 	 *            the selection command to pass to Chimera
 	 */
 	public void select(String sel, List<AtomSpec> specs) {
+		select(getSelectCommand(sel, specs));
+	}
+
+	private String getSelectCommand(String sel, List<AtomSpec> specs) {
 		String command = sel;
 		if (specs != null && specs.size() > 0) {
 			// System.out.println("Sorting the specs");
@@ -89,7 +133,67 @@ public class ChimeraIO {
 			*/
 			command += " "+AtomSpec.collapseSpecs(specs);
 		}
-		select(command);
+		return command;
+	}
+
+	/**
+	 * Select something in Chimera without blocking the calling thread.  The
+	 * suspend, select, and resume commands are sent as a single unit so that
+	 * they are never interleaved with other asynchronous commands.
+	 * 
+	 * @param command
+	 *            the selection command to pass to Chimera
+	 * @return a future that completes when the selection has been sent, or completes
+	 *         exceptionally if Chimera couldn't apply it
+	 */
+	public CompletableFuture<Void> selectAsync(final String command) {
+		return runAsync(new Runnable() {
+			public void run() {
+				if (!select(Collections.singletonList(command)))
+					throw new IllegalStateException("ChimeraX could not change the selection");
+			}
+		});
+	}
+
+	/**
+	 * Select something in Chimera without blocking the calling thread.
+	 * 
+	 * @param sel
+	 *            the selection command to pass to Chimera
+	 * @param specs
+	 *            the atom specs to select
+	 * @return a future that completes when the selection has been sent, or completes
+	 *         exceptionally if Chimera couldn't apply it
+	 */
+	public CompletableFuture<Void> selectAsync(final String sel, final List<AtomSpec> specs) {
+		return selectAsync(getSelectCommand(sel, specs));
+	}
+
+	/**
+	 * Change the selection in Chimera without blocking the calling thread.  Only the
+	 * changes are sent: the removed specs are subtracted from the selection and then
+	 * the added specs are added to it.
+	 *
+	 * @param added
+	 *            the atom specs to add to the selection
+	 * @param removed
+	 *            the atom specs to remove from the selection
+	 * @return a future that completes when the selection has been sent, or completes
+	 *         exceptionally if Chimera couldn't apply all of the changes
+	 */
+	public CompletableFuture<Void> selectChangesAsync(final List<AtomSpec> added,
+			final List<AtomSpec> removed) {
+		return runAsync(new Runnable() {
+			public void run() {
+				List<String> commands = new ArrayList<String>();
+				if (removed.size() > 0)
+					commands.add(getSelectCommand("select subtract", removed));
+				if (added.size() > 0)
+					commands.add(getSelectCommand("select add", added));
+				if (commands.size() > 0 && !select(commands))
+					throw new IllegalStateException("ChimeraX could not change the selection");
+			}
+		});
 	}
 
 	public void exitChimera() {
@@ -102,6 +206,7 @@ public class ChimeraIO {
 				// ignore
 			}
 		}
+		closeHttpClient();
 		structureManager.getChimeraManager().clearOnChimeraExit();
 		chimera = null;
 		chimeraLaunched = false;
@@ -223,37 +328,421 @@ public class ChimeraIO {
 			return null;
 		}
 
+		CommandBatch batch = currentBatch.get();
+		if (batch != null) {
+			addToBatch(batch, command, reply);
+			if (!reply)
+				return new ArrayList<String>();
+			// The caller needs the reply now, so send what we have
+			sendBatch(batch);
+			return batch.replies.get(batch.replies.size() - 1);
+		}
+
 		return sendChimeraCommandInternal(command, reply);
 	}
 
+	/**
+	 * Send a command to Chimera and hand each line of the reply to a handler as it
+	 * is read, rather than collecting the whole reply first.  Lines are trimmed and
+	 * empty lines are skipped, just as for {@link #sendChimeraCommand(String, boolean)}.
+	 * 
+	 * @param command
+	 *            Command string to be send.
+	 * @param lineHandler
+	 *            Handler that is called with each line of the reply.
+	 * @return <code>true</code> if the command was sent and the reply read successfully.
+	 */
+	public boolean sendChimeraCommand(String command, Consumer<String> lineHandler) {
+		if (!isChimeraLaunched()) {
+			return false;
+		}
+
+		// Make sure anything we've batched up goes first
+		CommandBatch batch = currentBatch.get();
+		if (batch != null)
+			sendBatch(batch);
+
+		return sendChimeraCommandInternal(command, lineHandler);
+	}
+
+	/**
+	 * Send a list of commands to Chimera, combining them into as few requests as
+	 * the batch limits allow.
+	 * 
+	 * @param commands
+	 *            Command strings to be sent.
+	 * @param reply
+	 *            Flag indicating whether the reply for each command is needed.
+	 * @return List of replies, one per command, in the same order as the commands. The
+	 *         reply for a command is <code>null</code> if its request failed.
+	 */
+	public List<List<String>> sendChimeraCommands(List<String> commands, boolean reply) {
+		boolean batching = isBatching();
+		if (batching) {
+			// Keep our replies separate from those of the enclosing batch
+			sendBatch(currentBatch.get());
+		}
+		CommandBatch batch = new CommandBatch();
+		for (String command : commands) {
+			addToBatch(batch, command, reply);
+		}
+		sendBatch(batch);
+		return batch.replies;
+	}
+
+	/**
+	 * Start collecting commands sent from this thread into a batch.  Until
+	 * {@link #flush()} is called, commands that don't need a reply are queued and
+	 * sent to Chimera as a single <code>;</code>-joined request.  The batch is sent
+	 * early if it grows past the batch limits, or if a command needs its reply.
+	 */
+	public void beginBatch() {
+		if (currentBatch.get() == null)
+			currentBatch.set(new CommandBatch());
+	}
+
+	/**
+	 * Check whether commands sent from this thread are currently being batched.
+	 * 
+	 * @return <code>true</code> if {@link #beginBatch()} has been called without a
+	 *         matching {@link #flush()}
+	 */
+	public boolean isBatching() {
+		return currentBatch.get() != null;
+	}
+
+	/**
+	 * Send all of the queued commands to Chimera and end the current batch.
+	 * 
+	 * @return List of replies, one per command sent during the batch. The reply for a
+	 *         command is <code>null</code> if its request failed.
+	 */
+	public List<List<String>> flush() {
+		CommandBatch batch = currentBatch.get();
+		if (batch == null)
+			return new ArrayList<List<String>>();
+		currentBatch.remove();
+		sendBatch(batch);
+		return batch.replies;
+	}
+
+	/**
+	 * Set the limits at which a batch of commands is sent automatically.
+	 * 
+	 * @param maxCommands
+	 *            maximum number of commands in a single request
+	 * @param maxLength
+	 *            maximum length of the encoded request
+	 */
+	public static void setBatchLimits(int maxCommands, int maxLength) {
+		if (maxCommands > 0)
+			MAX_BATCH_COMMANDS = maxCommands;
+		if (maxLength > 0)
+			MAX_BATCH_LENGTH = maxLength;
+	}
+
+	private void addToBatch(CommandBatch batch, String command, boolean reply) {
+		int length = URLEncoder.encode(command).length();
+		if (batch.commands.size() > 0 && (batch.commands.size() >= MAX_BATCH_COMMANDS
+				|| batch.length + length > MAX_BATCH_LENGTH)) {
+			sendBatch(batch);
+		}
+		batch.commands.add(command);
+		batch.length += length + BATCH_MARKER.length() + 10;
+		batch.needReplies |= reply;
+	}
+
+	/**
+	 * Send the queued commands of a batch as a single request and split the
+	 * reply back into one reply per command.  To find the boundaries between
+	 * replies we echo a marker after each command, even if there is only one,
+	 * but only if somebody actually wants the replies.  Chimera skips the rest
+	 * of a request when a command fails, so a command whose marker never arrives
+	 * failed or never ran, and its reply is <code>null</code>.
+	 */
+	private void sendBatch(CommandBatch batch) {
+		int count = batch.commands.size();
+		if (count == 0)
+			return;
+
+		boolean markers = batch.needReplies;
+		StringBuilder command = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i > 0)
+				command.append(";");
+			command.append(batch.commands.get(i));
+			if (markers)
+				command.append(";echo " + BATCH_MARKER + i);
+		}
+		List<String> commands = new ArrayList<String>(batch.commands);
+		batch.commands.clear();
+		batch.length = 0;
+		batch.needReplies = false;
+
+		List<String> reply = sendChimeraCommandInternal(command.toString(), true);
+		if (reply == null) {
+			for (int i = 0; i < count; i++)
+				batch.replies.add(null);
+			return;
+		}
+		if (!markers) {
+			// Without markers we can't tell the replies apart, so give everything to the
+			// last command
+			for (int i = 0; i < count - 1; i++)
+				batch.replies.add(new ArrayList<String>());
+			batch.replies.add(reply);
+			return;
+		}
+
+		int next = 0;
+		List<String> current = new ArrayList<String>();
+		for (String line : reply) {
+			if (next < count && line.equals(BATCH_MARKER + next)) {
+				batch.replies.add(current);
+				current = new ArrayList<String>();
+				next++;
+			} else {
+				current.add(line);
+			}
+		}
+		if (next < count) {
+			// Whatever came after the last marker is the error from the command that failed
+			structureManager.logWarning("ChimeraX command failed: " + commands.get(next)
+					+ (current.size() > 0 ? " (" + String.join(" ", current) + ")" : ""));
+			while (next++ < count)
+				batch.replies.add(null);
+		}
+	}
+
+	/**
+	 * The commands waiting to be sent as part of a batch, and the replies for
+	 * those that have already been sent.
+	 */
+	private static class CommandBatch {
+		List<String> commands = new ArrayList<String>();
+		List<List<String>> replies = new ArrayList<List<String>>();
+		int length = 0;
+		boolean needReplies = false;
+	}
+
+	/**
+	 * Send a command to Chimera without blocking the calling thread.  Commands are
+	 * delivered to Chimera in the order in which they were submitted.
+	 * 
+	 * @param command
+	 *            Command string to be send.
+	 * @param reply
+	 *            Flag indicating whether the future should return the reply from Chimera or not.
+	 * @return a future that completes with the lines in the Chimera reply, or <code>null</code>.
+	 */
+	public CompletableFuture<List<String>> sendChimeraCommandAsync(final String command,
+			final boolean reply) {
+		final CompletableFuture<List<String>> future = new CompletableFuture<List<String>>();
+		if (!isChimeraLaunched()) {
+			future.complete(null);
+			return future;
+		}
+		submit(future, command, new Runnable() {
+			public void run() {
+				future.complete(sendChimeraCommand(command, reply));
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Run a task that talks to Chimera on the command thread, after all
+	 * previously submitted asynchronous commands.
+	 * 
+	 * @param task
+	 *            the task to run
+	 * @return a future that completes when the task has finished
+	 */
+	public CompletableFuture<Void> runAsync(final Runnable task) {
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		submit(future, task.toString(), new Runnable() {
+			public void run() {
+				task.run();
+				future.complete(null);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Check whether we are running on the command thread, e.g. in a task passed to
+	 * {@link #runAsync(Runnable)}. Code that runs there must not wait for other asynchronous
+	 * commands, since they can only run after it has finished.
+	 * 
+	 * @return <code>true</code> if this is the command thread
+	 */
+	public boolean isCommandThread() {
+		return Thread.currentThread() == commandThread;
+	}
+
+	/**
+	 * Get the number of asynchronous commands waiting to be sent to Chimera.
+	 * 
+	 * @return the number of pending commands
+	 */
+	public int getPendingCommandCount() {
+		ThreadPoolExecutor executor = commandExecutor;
+		if (executor == null)
+			return 0;
+		return executor.getQueue().size();
+	}
+
+	private void submit(final CompletableFuture<?> future, String description, final Runnable work) {
+		try {
+			getCommandExecutor().execute(new Runnable() {
+				public void run() {
+					try {
+						work.run();
+					} catch (Exception e) {
+						future.completeExceptionally(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			structureManager.logWarning("Too many pending ChimeraX commands, dropping: " + description);
+			future.completeExceptionally(e);
+		}
+	}
+
+	private synchronized ThreadPoolExecutor getCommandExecutor() {
+		if (commandExecutor == null) {
+			commandExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(ASYNC_QUEUE_SIZE), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "structureViz ChimeraX commands");
+							t.setDaemon(true);
+							commandThread = t;
+							return t;
+						}
+					});
+			// Don't keep an idle thread around between bursts of commands
+			commandExecutor.allowCoreThreadTimeOut(true);
+		}
+		return commandExecutor;
+	}
+
 	static int CONNECT_TIMEOUT = 1; // 1 second
 	static int SOCKET_TIMEOUT = 30; // 30 seconds
+	static int MAX_CONNECTIONS = 4; // Size of the connection pool
+	static int IDLE_TIMEOUT = 60; // Evict connections idle for more than 60 seconds
+	static int ASYNC_QUEUE_SIZE = 1000; // Maximum number of pending asynchronous commands
+	static int MAX_BATCH_COMMANDS = 200; // Maximum number of commands in a single batched request
+	static int MAX_BATCH_LENGTH = 16000; // Maximum length of the encoded batched command
+	static final String BATCH_MARKER = "structureViz-batch-";
+
+	/**
+	 * Set the maximum number of pooled connections to ChimeraX.  This takes
+	 * effect the next time the connection pool is created.
+	 *
+	 * @param maxConnections
+	 *            maximum number of concurrent connections
+	 */
+	public static void setMaxConnections(int maxConnections) {
+		if (maxConnections > 0)
+			MAX_CONNECTIONS = maxConnections;
+	}
+
+	/**
+	 * Set the number of seconds a pooled connection may remain idle before
+	 * it is evicted.  This takes effect the next time the connection pool is created.
+	 *
+	 * @param idleTimeout
+	 *            idle time in seconds
+	 */
+	public static void setIdleTimeout(int idleTimeout) {
+		if (idleTimeout > 0)
+			IDLE_TIMEOUT = idleTimeout;
+	}
+
+	/**
+	 * Get the pooled client used to talk to ChimeraX, creating it if necessary.
+	 *
+	 * @return the shared {@link CloseableHttpClient}
+	 */
+	private synchronized CloseableHttpClient getHttpClient() {
+		if (httpClient == null) {
+			RequestConfig globalConfig = RequestConfig.custom()
+							.setCookieSpec(CookieSpecs.IGNORE_COOKIES)
+							.setConnectTimeout(CONNECT_TIMEOUT*1000)
+							.setSocketTimeout(SOCKET_TIMEOUT*1000).build();
+			connectionManager = new PoolingHttpClientConnectionManager(IDLE_TIMEOUT, TimeUnit.SECONDS);
+			connectionManager.setMaxTotal(MAX_CONNECTIONS);
+			// We only ever talk to a single host
+			connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+			connectionManager.setValidateAfterInactivity(1000);
+			httpClient = HttpClients.custom()
+							.setConnectionManager(connectionManager)
+							.setDefaultRequestConfig(globalConfig)
+							.evictExpiredConnections()
+							.evictIdleConnections(IDLE_TIMEOUT, TimeUnit.SECONDS)
+							.build();
+		}
+		return httpClient;
+	}
+
+	/**
+	 * Close the pooled client and all of its connections.
+	 */
+	private synchronized void closeHttpClient() {
+		if (httpClient != null) {
+			try {
+				httpClient.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+		httpClient = null;
+		connectionManager = null;
+	}
+
 	private List<String> sendChimeraCommandInternal(String command, boolean reply) {
-		
-		List<String> response = new ArrayList<>();
-		RequestConfig globalConfig = RequestConfig.custom()
-						.setCookieSpec(CookieSpecs.IGNORE_COOKIES)
-						.setConnectTimeout(CONNECT_TIMEOUT*1000)
-						.setSocketTimeout(SOCKET_TIMEOUT*1000).build();
-		CloseableHttpClient client = HttpClients.custom().setDefaultRequestConfig(globalConfig).build();
+		final List<String> response = new ArrayList<>();
+		boolean ok = sendChimeraCommandInternal(command, new Consumer<String>() {
+			public void accept(String line) {
+				response.add(line);
+			}
+		});
+		if (!ok)
+			return null;
+		return response;
+	}
+
+	private boolean sendChimeraCommandInternal(String command, Consumer<String> lineHandler) {
+		boolean ok = true;
+		CloseableHttpClient client = getHttpClient();
 		String args = URLEncoder.encode(command);
 		System.out.print("Sending: '"+command+"' ... ");
 		HttpGet request = new HttpGet(chimeraREST+"command="+args);
 		CloseableHttpResponse response1 = null;
+		HttpEntity entity1 = null;
 		try {
 			response1 = client.execute(request);
-			HttpEntity entity1 = response1.getEntity();
+			entity1 = response1.getEntity();
 			InputStream entityStream = entity1.getContent();
 			if (entity1.getContentLength() == 0) {
 				System.out.println("done - no response");
-				return response;
+				return true;
 			}
+			// Hand each line over as soon as we read it so that large replies
+			// never have to be held in memory
 			BufferedReader reader = new BufferedReader(new InputStreamReader(entityStream));
 			String inputLine;
 			while ((inputLine = reader.readLine()) != null) {
 				// System.out.println("From chimera: "+inputLine.trim());
-				if (inputLine.trim().length() > 0)
-					response.add(inputLine.trim());
+				inputLine = inputLine.trim();
+				if (inputLine.length() == 0)
+					continue;
+				try {
+					lineHandler.accept(inputLine);
+				} catch (RuntimeException e) {
+					// A line we couldn't handle is not a communication problem
+					structureManager.logWarning("Unable to process reply line: '"+inputLine+"' ("+e.getMessage()+")");
+				}
 			}
 			EntityUtils.consume(entity1);
 
@@ -263,13 +752,21 @@ public class ChimeraIO {
 			structureManager.getChimeraManager().clearOnChimeraExit();
 			chimera = null;
 			chimeraLaunched = false;
-			response = null;
+			ok = false;
 		} finally {
-			if (request != null)
-				request.releaseConnection();
+			// Consuming the entity hands the connection back to the pool
+			// rather than closing it
+			EntityUtils.consumeQuietly(entity1);
+			if (response1 != null) {
+				try {
+					response1.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
 		}
 		System.out.println("done");
-		return response;
+		return ok;
 	}
 
 }
@@ -0,0 +1,762 @@
+package edu.ucsf.rbvi.structureVizX.internal.io;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import edu.ucsf.rbvi.structureVizX.internal.utils.StringUtils;
+
+/**
+ * Reads the chain and residue hierarchy of a local PDB or mmCIF file, so that we don't have to
+ * ask ChimeraX for the residues of a structure we already have on disk. It can also read the
+ * atoms, with their elements and coordinates, so that contacts can be computed from the file.
+ *
+ * The file is read in segments, and each segment is tokenized on the fork-join pool straight
+ * from the bytes read. Unless atoms are being read, strings are only created once per residue,
+ * not once per atom. We don't memory map the file, since a mapping stays open until it is
+ * garbage collected, and on Windows that keeps the user from overwriting or deleting the file. The segment buffers are reused by
+ * the tasks of a read, so there are never more of them than tasks running at once.
+ * The segments are then stitched together in file order, so the residues come back in the same
+ * order as they appear in the file.
+ */
+public class StructureFileReader {
+	// Size of the part of the file read by each fork-join task
+	static int SEGMENT_SIZE = 16 * 1024 * 1024;
+	// Segments read this much past their end so that they can finish their last line
+	private static final int MAX_LINE = 64 * 1024;
+
+	/**
+	 * The residues of one model in a structure file, in the order they appear in the file, and
+	 * their atoms if they were read.
+	 */
+	public static class ModelResidues {
+		private final int modelNumber;
+		private final List<String> chainIds = new ArrayList<String>();
+		private final List<String> residueIndices = new ArrayList<String>();
+		private final List<String> residueTypes = new ArrayList<String>();
+		private final Map<String, Integer> residueKeys = new HashMap<String, Integer>();
+
+		// The atoms, in file order
+		private int atomCount = 0;
+		private int[] atomResidues = new int[0];
+		private float[] coords = new float[0];
+		private final List<String> atomNames = new ArrayList<String>();
+		private final List<String> elements = new ArrayList<String>();
+
+		ModelResidues(int modelNumber) {
+			this.modelNumber = modelNumber;
+		}
+
+		/**
+		 * @return the residue, which may have been added already
+		 */
+		int add(String chainId, String residueIndex, String residueType) {
+			String key = chainId + ":" + residueIndex;
+			Integer residue = residueKeys.get(key);
+			if (residue != null)
+				return residue;
+			residueKeys.put(key, chainIds.size());
+			chainIds.add(chainId);
+			residueIndices.add(residueIndex);
+			residueTypes.add(residueType);
+			return chainIds.size() - 1;
+		}
+
+		/**
+		 * Add an atom, unless the residue already has an atom with the same name. This keeps
+		 * the first alternate location of each atom.
+		 */
+		void addAtom(int residue, String atomName, String element, float x, float y, float z) {
+			for (int atom = atomCount - 1; atom >= 0 && atomResidues[atom] == residue; atom--) {
+				if (atomNames.get(atom).equals(atomName))
+					return;
+			}
+			if (atomCount == atomResidues.length) {
+				int capacity = Math.max(256, 2 * atomCount);
+				atomResidues = Arrays.copyOf(atomResidues, capacity);
+				coords = Arrays.copyOf(coords, 3 * capacity);
+			}
+			atomResidues[atomCount] = residue;
+			coords[3 * atomCount] = x;
+			coords[3 * atomCount + 1] = y;
+			coords[3 * atomCount + 2] = z;
+			atomNames.add(atomName);
+			elements.add(element);
+			atomCount++;
+		}
+
+		/**
+		 * @return the model number in the file (from the MODEL record or pdbx_PDB_model_num)
+		 */
+		public int getModelNumber() {
+			return modelNumber;
+		}
+
+		public int size() {
+			return chainIds.size();
+		}
+
+		/**
+		 * @return the chain id, or <code>null</code> if the residue isn't in a chain
+		 */
+		public String getChainId(int residue) {
+			return chainIds.get(residue);
+		}
+
+		/**
+		 * @return the residue number and insertion code, e.g. <code>36</code> or <code>36A</code>
+		 */
+		public String getResidueIndex(int residue) {
+			return residueIndices.get(residue);
+		}
+
+		public String getResidueType(int residue) {
+			return residueTypes.get(residue);
+		}
+
+		/**
+		 * @return the number of atoms, which is 0 unless the file was read with
+		 *         {@link StructureFileReader#readAtoms(File)}
+		 */
+		public int getAtomCount() {
+			return atomCount;
+		}
+
+		/**
+		 * @return the residue the atom belongs to
+		 */
+		public int getAtomResidue(int atom) {
+			return atomResidues[atom];
+		}
+
+		public String getAtomName(int atom) {
+			return atomNames.get(atom);
+		}
+
+		/**
+		 * @return the element symbol as written in the file (e.g. <code>Zn</code>), or
+		 *         <code>null</code> if the file doesn't give one
+		 */
+		public String getElement(int atom) {
+			return elements.get(atom);
+		}
+
+		public float getX(int atom) {
+			return coords[3 * atom];
+		}
+
+		public float getY(int atom) {
+			return coords[3 * atom + 1];
+		}
+
+		public float getZ(int atom) {
+			return coords[3 * atom + 2];
+		}
+	}
+
+	/**
+	 * Check whether a model path is a local structure file we can read
+	 *
+	 * @param path
+	 *            the path passed to open
+	 * @return true if this is an existing PDB or mmCIF file
+	 */
+	public static boolean canRead(String path) {
+		return (isPDB(path) || isCIF(path)) && new File(path).isFile();
+	}
+
+	/**
+	 * Read the residues of all of the models in a structure file, using all cores
+	 *
+	 * @param file
+	 *            a PDB or mmCIF file
+	 * @return the models in the order they appear in the file
+	 */
+	public static List<ModelResidues> read(File file) throws IOException {
+		return read(file, true);
+	}
+
+	/**
+	 * Read the residues of all of the models in a structure file
+	 *
+	 * @param file
+	 *            a PDB or mmCIF file
+	 * @param parallel
+	 *            false to read the whole file on the calling thread
+	 * @return the models in the order they appear in the file
+	 */
+	public static List<ModelResidues> read(File file, boolean parallel) throws IOException {
+		return read(file, parallel, false);
+	}
+
+	/**
+	 * Read the residues and atoms of all of the models in a structure file, using all cores
+	 *
+	 * @param file
+	 *            a PDB or mmCIF file
+	 * @return the models in the order they appear in the file
+	 */
+	public static List<ModelResidues> readAtoms(File file) throws IOException {
+		return read(file, true, true);
+	}
+
+	/**
+	 * Read the residues and atoms of all of the models in a structure file
+	 *
+	 * @param file
+	 *            a PDB or mmCIF file
+	 * @param parallel
+	 *            false to read the whole file on the calling thread
+	 * @return the models in the order they appear in the file
+	 */
+	public static List<ModelResidues> readAtoms(File file, boolean parallel) throws IOException {
+		return read(file, parallel, true);
+	}
+
+	private static List<ModelResidues> read(File file, boolean parallel, boolean atoms)
+			throws IOException {
+		boolean cif = isCIF(file.getName());
+		long start = 0;
+		int[] columns = null;
+		if (cif) {
+			// Find the atom_site loop, which is the only part we read in parallel
+			CIFHeader header = readCIFHeader(file);
+			if (header == null)
+				return new ArrayList<ModelResidues>();
+			start = header.dataStart;
+			columns = header.columns;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+			List<Segment> segments = new ArrayList<Segment>();
+			for (long segmentStart = start; segmentStart < size; segmentStart += SEGMENT_SIZE) {
+				segments.add(new Segment(channel, buffers, size, segmentStart,
+						Math.min(size, segmentStart + SEGMENT_SIZE), segmentStart == start, cif,
+						columns, atoms));
+			}
+
+			if (parallel && segments.size() > 1) {
+				List<Future<Segment>> parsed = new ArrayList<Future<Segment>>();
+				for (Segment segment : segments)
+					parsed.add(ForkJoinPool.commonPool().submit(segment));
+				segments.clear();
+				for (Future<Segment> future : parsed)
+					segments.add(getResult(future));
+			} else {
+				for (Segment segment : segments)
+					segment.call();
+			}
+			return merge(segments);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static Segment getResult(Future<Segment> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while reading structure file", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Stitch the segments together in file order. A segment that starts in the middle of a model
+	 * continues the model of the segment before it, and a residue split across two segments is
+	 * only added once.
+	 */
+	private static List<ModelResidues> merge(List<Segment> segments) {
+		Map<Integer, ModelResidues> models = new LinkedHashMap<Integer, ModelResidues>();
+		int modelNumber = 1;
+		for (Segment segment : segments) {
+			int atom = 0;
+			for (int residue = 0; residue < segment.residueCount; residue++) {
+				if (segment.modelNumbers[residue] != Segment.SAME_MODEL)
+					modelNumber = segment.modelNumbers[residue];
+				ModelResidues model = models.get(modelNumber);
+				if (model == null) {
+					model = new ModelResidues(modelNumber);
+					models.put(modelNumber, model);
+				}
+				int modelResidue = model.add(segment.chainIds.get(residue),
+						segment.residueIndices.get(residue), segment.residueTypes.get(residue));
+				for (; atom < segment.atomCount && segment.atomResidues[atom] == residue; atom++) {
+					model.addAtom(modelResidue, segment.atomNames.get(atom),
+							segment.elements.get(atom), segment.coords[3 * atom],
+							segment.coords[3 * atom + 1], segment.coords[3 * atom + 2]);
+				}
+			}
+			// Everything after the end of the atom_site loop is something else
+			if (segment.endOfData)
+				break;
+		}
+		return new ArrayList<ModelResidues>(models.values());
+	}
+
+	/**
+	 * The part of a file read by one task. The segment owns every line that starts in
+	 * [start, end).
+	 */
+	private static class Segment implements Callable<Segment> {
+		// The residue is in the same model as the one before it (possibly in an earlier segment)
+		static final int SAME_MODEL = Integer.MIN_VALUE;
+
+		private final FileChannel channel;
+		private final Queue<ByteBuffer> buffers;
+		private final long fileSize;
+		private final long start;
+		private final long end;
+		private final boolean first;
+		private final boolean cif;
+		private final int[] columns;
+		private final boolean atoms;
+
+		private ByteBuffer buffer;
+
+		// The residues found in the segment, in order
+		int residueCount = 0;
+		int[] modelNumbers = new int[64];
+		final List<String> chainIds = new ArrayList<String>();
+		final List<String> residueIndices = new ArrayList<String>();
+		final List<String> residueTypes = new ArrayList<String>();
+		// The atoms found in the segment, in order, if we're reading atoms
+		int atomCount = 0;
+		int[] atomResidues = new int[0];
+		float[] coords = new float[0];
+		final List<String> atomNames = new ArrayList<String>();
+		final List<String> elements = new ArrayList<String>();
+		// True if we reached the end of the mmCIF atom_site loop
+		boolean endOfData = false;
+
+		// The fields of the current line and of the last residue we added, as offsets in the
+		// buffer (start, end) for each of the fields below
+		private final int[] fields = new int[2 * FIELD_COUNT];
+		private final int[] lastFields = new int[2 * FIELD_COUNT];
+		private boolean hasLast = false;
+		private int currentModel = SAME_MODEL;
+		private boolean modelChanged = false;
+
+		Segment(FileChannel channel, Queue<ByteBuffer> buffers, long fileSize, long start,
+				long end, boolean first, boolean cif, int[] columns, boolean atoms) {
+			this.channel = channel;
+			this.buffers = buffers;
+			this.fileSize = fileSize;
+			this.start = start;
+			this.end = end;
+			this.first = first;
+			this.cif = cif;
+			this.columns = columns;
+			this.atoms = atoms;
+		}
+
+		public Segment call() throws IOException {
+			// Read one byte before our start, so we can tell whether we start on a new line,
+			// and far enough past our end to finish our last line
+			long readStart = first ? start : start - 1;
+			long readEnd = Math.min(fileSize, end + MAX_LINE);
+			buffer = read(readStart, (int) (readEnd - readStart));
+			try {
+				parse((int) (end - readStart));
+			} finally {
+				buffers.add(buffer);
+				buffer = null;
+			}
+			return this;
+		}
+
+		/**
+		 * Read part of the file into a buffer from the pool, or a new one if they're all in use
+		 */
+		private ByteBuffer read(long position, int length) throws IOException {
+			ByteBuffer read = buffers.poll();
+			if (read == null || read.capacity() < length)
+				read = ByteBuffer.allocate(Math.max(length, SEGMENT_SIZE + MAX_LINE + 1));
+			read.clear();
+			read.limit(length);
+			while (read.hasRemaining()) {
+				if (channel.read(read, position + read.position()) < 0)
+					break;
+			}
+			read.flip();
+			return read;
+		}
+
+		private void parse(int limit) {
+			int pos = 0;
+			if (!first) {
+				// Skip the rest of a line that started in the segment before us
+				while (pos < buffer.limit() && buffer.get(pos) != '\n')
+					pos++;
+				pos++;
+			}
+			while (pos < limit && !endOfData) {
+				int lineEnd = pos;
+				while (lineEnd < buffer.limit() && buffer.get(lineEnd) != '\n')
+					lineEnd++;
+				int contentEnd = lineEnd;
+				if (contentEnd > pos && buffer.get(contentEnd - 1) == '\r')
+					contentEnd--;
+				if (cif)
+					parseCIFLine(pos, contentEnd);
+				else
+					parsePDBLine(pos, contentEnd);
+				pos = lineEnd + 1;
+			}
+		}
+
+		private void parsePDBLine(int start, int end) {
+			if (startsWith(start, end, "MODEL ")) {
+				currentModel = parseInt(start + 10, Math.min(end, start + 14), 1);
+				modelChanged = true;
+				return;
+			}
+			if (!startsWith(start, end, "ATOM  ") && !startsWith(start, end, "HETATM"))
+				return;
+			if (end - start < 27)
+				return;
+			setField(MODEL, -1, -1);
+			setField(TYPE, start + 17, Math.min(end, start + 21));
+			setField(CHAIN, start + 21, start + 22);
+			setField(SEQ, start + 22, start + 26);
+			setField(INSERTION, start + 26, start + 27);
+			addResidue();
+			if (atoms && end - start >= 54) {
+				setField(NAME, start + 12, start + 16);
+				setField(X, start + 30, start + 38);
+				setField(Y, start + 38, start + 46);
+				setField(Z, start + 46, start + 54);
+				if (end - start >= 78)
+					setField(ELEMENT, start + 76, start + 78);
+				else
+					setField(ELEMENT, -1, -1);
+				addAtom();
+			}
+		}
+
+		private void parseCIFLine(int start, int end) {
+			int pos = skipWhitespace(start, end);
+			if (pos == end)
+				return;
+			byte first = buffer.get(pos);
+			if (first == '#' || first == '_' || startsWith(pos, end, "loop_")
+					|| startsWith(pos, end, "data_")) {
+				endOfData = true;
+				return;
+			}
+
+			Arrays.fill(fields, -1);
+			int column = 0;
+			while (pos < end) {
+				int tokenStart = pos;
+				int tokenEnd;
+				byte c = buffer.get(pos);
+				if (c == '\'' || c == '"') {
+					// Quoted token: ends at a matching quote followed by whitespace
+					tokenStart = pos + 1;
+					tokenEnd = tokenStart;
+					while (tokenEnd < end
+							&& !(buffer.get(tokenEnd) == c && (tokenEnd + 1 == end || isWhitespace(buffer
+									.get(tokenEnd + 1)))))
+						tokenEnd++;
+					pos = Math.min(end, tokenEnd + 1);
+				} else {
+					tokenEnd = pos;
+					while (tokenEnd < end && !isWhitespace(buffer.get(tokenEnd)))
+						tokenEnd++;
+					pos = tokenEnd;
+				}
+				if (column < columns.length && columns[column] >= 0)
+					setField(columns[column], tokenStart, tokenEnd);
+				column++;
+				pos = skipWhitespace(pos, end);
+			}
+			if (column != columns.length)
+				return;
+			// "?" and "." mean the value is missing
+			for (int field = 0; field < FIELD_COUNT; field++) {
+				int length = fields[2 * field + 1] - fields[2 * field];
+				if (length == 1) {
+					byte value = buffer.get(fields[2 * field]);
+					if (value == '?' || value == '.')
+						setField(field, -1, -1);
+				}
+			}
+			if (fields[2 * MODEL] >= 0) {
+				int model = parseInt(fields[2 * MODEL], fields[2 * MODEL + 1], 1);
+				if (model != currentModel) {
+					currentModel = model;
+					modelChanged = true;
+				}
+			}
+			addResidue();
+			if (atoms)
+				addAtom();
+		}
+
+		/**
+		 * Add a residue for the current line, unless it's the same residue as the line before
+		 */
+		private void addResidue() {
+			if (hasLast && !modelChanged && sameResidue())
+				return;
+			if (residueCount == modelNumbers.length)
+				modelNumbers = Arrays.copyOf(modelNumbers, residueCount * 2);
+			modelNumbers[residueCount++] = modelChanged ? currentModel : SAME_MODEL;
+			modelChanged = false;
+			String chainId = getField(CHAIN);
+			chainIds.add(chainId.length() == 0 ? null : chainId);
+			residueIndices.add(getField(SEQ) + getField(INSERTION));
+			residueTypes.add(getField(TYPE));
+			System.arraycopy(fields, 0, lastFields, 0, fields.length);
+			hasLast = true;
+		}
+
+		/**
+		 * Add an atom of the current residue for the current line, if it has coordinates
+		 */
+		private void addAtom() {
+			float x = getCoordinate(X);
+			float y = getCoordinate(Y);
+			float z = getCoordinate(Z);
+			if (Float.isNaN(x) || Float.isNaN(y) || Float.isNaN(z))
+				return;
+			if (atomCount == atomResidues.length) {
+				int capacity = Math.max(256, 2 * atomCount);
+				atomResidues = Arrays.copyOf(atomResidues, capacity);
+				coords = Arrays.copyOf(coords, 3 * capacity);
+			}
+			atomResidues[atomCount] = residueCount - 1;
+			coords[3 * atomCount] = x;
+			coords[3 * atomCount + 1] = y;
+			coords[3 * atomCount + 2] = z;
+			atomNames.add(getField(NAME));
+			String element = getField(ELEMENT);
+			elements.add(element.length() == 0 ? null : element);
+			atomCount++;
+		}
+
+		private float getCoordinate(int field) {
+			int start = fields[2 * field];
+			int end = fields[2 * field + 1];
+			if (start < 0 || end <= start)
+				return Float.NaN;
+			double value = StringUtils.parseDecimal(buffer.array(), buffer.arrayOffset() + start,
+					buffer.arrayOffset() + end);
+			if (Double.isNaN(value)) {
+				// Not a plain decimal number, e.g. in scientific notation
+				try {
+					value = Double.parseDouble(getField(field));
+				} catch (NumberFormatException e) {
+					return Float.NaN;
+				}
+			}
+			return (float) value;
+		}
+
+		private boolean sameResidue() {
+			for (int field = CHAIN; field < RESIDUE_FIELD_COUNT; field++) {
+				int start = fields[2 * field];
+				int length = fields[2 * field + 1] - start;
+				int lastStart = lastFields[2 * field];
+				if (length != lastFields[2 * field + 1] - lastStart)
+					return false;
+				for (int i = 0; i < length; i++) {
+					if (buffer.get(start + i) != buffer.get(lastStart + i))
+						return false;
+				}
+			}
+			return true;
+		}
+
+		private void setField(int field, int start, int end) {
+			// Trim the field (PDB columns are padded)
+			while (start >= 0 && start < end && isWhitespace(buffer.get(start)))
+				start++;
+			while (start >= 0 && end > start && isWhitespace(buffer.get(end - 1)))
+				end--;
+			fields[2 * field] = start;
+			fields[2 * field + 1] = end;
+		}
+
+		private String getField(int field) {
+			int start = fields[2 * field];
+			int end = fields[2 * field + 1];
+			if (start < 0 || end <= start)
+				return "";
+			byte[] bytes = new byte[end - start];
+			for (int i = 0; i < bytes.length; i++)
+				bytes[i] = buffer.get(start + i);
+			return new String(bytes, StandardCharsets.US_ASCII);
+		}
+
+		private boolean startsWith(int start, int end, String prefix) {
+			if (end - start < prefix.length())
+				return false;
+			for (int i = 0; i < prefix.length(); i++) {
+				if (buffer.get(start + i) != prefix.charAt(i))
+					return false;
+			}
+			return true;
+		}
+
+		private int parseInt(int start, int end, int defaultValue) {
+			int value = 0;
+			boolean digits = false;
+			boolean negative = false;
+			for (int i = start; i < end; i++) {
+				byte c = buffer.get(i);
+				if (c >= '0' && c <= '9') {
+					value = value * 10 + (c - '0');
+					digits = true;
+				} else if (c == '-' && !digits) {
+					negative = true;
+				} else if (!isWhitespace(c)) {
+					break;
+				}
+			}
+			if (!digits)
+				return defaultValue;
+			return negative ? -value : value;
+		}
+
+		private int skipWhitespace(int pos, int end) {
+			while (pos < end && isWhitespace(buffer.get(pos)))
+				pos++;
+			return pos;
+		}
+	}
+
+	// The fields we read for each atom
+	private static final int MODEL = 0;
+	private static final int CHAIN = 1;
+	private static final int SEQ = 2;
+	private static final int INSERTION = 3;
+	private static final int TYPE = 4;
+	// Fields up to here identify the residue
+	private static final int RESIDUE_FIELD_COUNT = 5;
+	private static final int NAME = 5;
+	private static final int ELEMENT = 6;
+	private static final int X = 7;
+	private static final int Y = 8;
+	private static final int Z = 9;
+	private static final int FIELD_COUNT = 10;
+
+	/**
+	 * Where the atom_site loop starts, and which of its columns hold the fields we want
+	 */
+	private static class CIFHeader {
+		long dataStart;
+		int[] columns;
+	}
+
+	/**
+	 * Read the file up to the first row of the atom_site loop
+	 */
+	private static CIFHeader readCIFHeader(File file) throws IOException {
+		InputStream stream = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+		try {
+			long offset = 0;
+			boolean inLoop = false;
+			List<String> names = new ArrayList<String>();
+			StringBuilder line = new StringBuilder();
+			while (true) {
+				// Read a line, keeping track of where the next one starts
+				line.setLength(0);
+				int c;
+				while ((c = stream.read()) >= 0 && c != '\n')
+					line.append((char) c);
+				long lineStart = offset;
+				offset += line.length() + (c >= 0 ? 1 : 0);
+				if (c < 0 && line.length() == 0)
+					return null;
+
+				String text = line.toString().trim();
+				if (text.equals("loop_")) {
+					inLoop = true;
+					names.clear();
+				} else if (inLoop && text.startsWith("_atom_site.")) {
+					names.add(text.substring("_atom_site.".length()).split("\\s+")[0]);
+				} else if (inLoop && names.size() > 0) {
+					// The first row of the atom_site loop
+					CIFHeader header = new CIFHeader();
+					header.dataStart = lineStart;
+					header.columns = getColumns(names);
+					return header;
+				} else if (text.startsWith("_")) {
+					// Some other category
+					inLoop = false;
+				}
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	private static int[] getColumns(List<String> names) {
+		int[] columns = new int[names.size()];
+		Arrays.fill(columns, -1);
+		// Prefer the author's chain ids and numbering, as ChimeraX does
+		setColumn(columns, names, MODEL, "pdbx_PDB_model_num");
+		setColumn(columns, names, CHAIN, "auth_asym_id", "label_asym_id");
+		setColumn(columns, names, SEQ, "auth_seq_id", "label_seq_id");
+		setColumn(columns, names, INSERTION, "pdbx_PDB_ins_code");
+		setColumn(columns, names, TYPE, "auth_comp_id", "label_comp_id");
+		setColumn(columns, names, NAME, "auth_atom_id", "label_atom_id");
+		setColumn(columns, names, ELEMENT, "type_symbol");
+		setColumn(columns, names, X, "Cartn_x");
+		setColumn(columns, names, Y, "Cartn_y");
+		setColumn(columns, names, Z, "Cartn_z");
+		return columns;
+	}
+
+	private static void setColumn(int[] columns, List<String> names, int field,
+			String... choices) {
+		for (String choice : choices) {
+			int column = names.indexOf(choice);
+			if (column >= 0) {
+				columns[column] = field;
+				return;
+			}
+		}
+	}
+
+	private static boolean isWhitespace(byte c) {
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+	}
+
+	private static boolean isPDB(String path) {
+		String lower = path.toLowerCase();
+		return lower.endsWith(".pdb") || lower.endsWith(".ent");
+	}
+
+	private static boolean isCIF(String path) {
+		String lower = path.toLowerCase();
+		return lower.endsWith(".cif") || lower.endsWith(".mmcif");
+	}
+}
@@ -33,12 +33,15 @@
 package edu.ucsf.rbvi.structureVizX.internal.model;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import org.cytoscape.model.CyEdge;
 import org.cytoscape.model.CyEdge.Type;
@@ -47,6 +50,7 @@ import org.cytoscape.model.CyNetwork;
 import org.cytoscape.model.CyNode;
 import org.cytoscape.model.CyTable;
 import org.cytoscape.application.CyUserLog;
+import org.cytoscape.work.TaskMonitor;
 import org.apache.log4j.Logger;
 
 import edu.ucsf.rbvi.structureVizX.internal.io.ChimeraIO;
@@ -80,13 +84,22 @@ public class AlignManager {
 	 * results
 	 */
 	public static final String structureInteraction = "structuralSimilarity";
+
+	/**
+	 * The number of matchmaker commands to send to Chimera in a single request
+	 */
+	static int ALIGN_BATCH_SIZE = 10;
+
 	// private StructureManager structureManager = null;
 	private ChimeraManager chimeraManager = null;
 	private ChimeraIO chimeraIO = null;
+	private AlignmentCache cache = null;
 	private HashMap<String, float[]> results = null;
 	private boolean assignResults = false;
 	private boolean showSequence = false;
 	private boolean createNewEdges = false;
+	private boolean useCache = false;
+	private volatile boolean cancelled = false;
 
 	/**
 	 * Create a new Align object
@@ -98,6 +111,7 @@ public class AlignManager {
 		// this.structureManager = structureManager;
 		chimeraManager = structureManager.getChimeraManager();
 		chimeraIO = structureManager.getChimeraIO();
+		cache = structureManager.getAlignmentCache();
 	}
 
 	/**
@@ -131,6 +145,27 @@ public class AlignManager {
 		this.showSequence = val;
 	};
 
+	/**
+	 * Set the flag that tells us whether to look up results in the alignment cache before asking
+	 * Chimera. Pairs that are found in the cache are not superimposed in Chimera, so this is off
+	 * by default and should only be turned on by callers that just need the scores. The cache is
+	 * never used when the sequence alignments are shown.
+	 * 
+	 * @param val
+	 *            the flag to set
+	 */
+	public void setUseCache(boolean val) {
+		this.useCache = val;
+	}
+
+	/**
+	 * Stop an all-vs-all alignment after the batch that is currently running. The pairs that were
+	 * aligned before that are kept.
+	 */
+	public void cancel() {
+		this.cancelled = true;
+	}
+
 	/**
 	 * Get the results
 	 * 
@@ -176,15 +211,40 @@ public class AlignManager {
 	public void align(ChimeraStructuralObject reference, List<ChimeraStructuralObject> models) {
 		results = new HashMap<String, float[]>();
 
+		// Only send the pairs we haven't aligned before
+		List<ChimeraStructuralObject> uncached = new ArrayList<ChimeraStructuralObject>();
 		for (ChimeraStructuralObject match : models) {
-			List<String> matchResult = singleAlign(reference, match);
-			if (matchResult != null) {
-				results.put(ChimUtils.getAlignName(match), parseResults(matchResult));
-			} else {
-				logger.warn("Chimera could not align pair: " + reference.toSpec() + " and "
-						+ match.toSpec());
+			float[] cached = getCachedResults(reference, match);
+			if (cached != null)
+				results.put(ChimUtils.getAlignName(match), cached);
+			else
+				uncached.add(match);
+		}
+
+		// Send the alignments in batches to save round-trips, but keep each
+		// request short enough that it doesn't time out
+		for (int start = 0; start < uncached.size(); start += ALIGN_BATCH_SIZE) {
+			List<ChimeraStructuralObject> batch = uncached.subList(start,
+					Math.min(start + ALIGN_BATCH_SIZE, uncached.size()));
+			List<String> commands = new ArrayList<String>();
+			for (ChimeraStructuralObject match : batch) {
+				commands.add(getAlignCommand(reference, match));
+			}
+			List<List<String>> replies = chimeraIO.sendChimeraCommands(commands, true);
+			for (int i = 0; i < batch.size(); i++) {
+				ChimeraStructuralObject match = batch.get(i);
+				List<String> matchResult = i < replies.size() ? replies.get(i) : null;
+				float[] matchResults = matchResult == null ? null : parseResults(matchResult);
+				if (matchResults != null) {
+					results.put(ChimUtils.getAlignName(match), matchResults);
+					cacheResults(reference, match, matchResults);
+				} else {
+					logger.warn("Chimera could not align pair: " + reference.toSpec() + " and "
+							+ match.toSpec());
+				}
 			}
 		}
+		cache.save();
 		chimeraManager.focus();
 		if (assignResults) {
 			setAllAttributes(reference, models);
@@ -192,23 +252,164 @@ public class AlignManager {
 	}
 
 	/**
-	 * Ask Chimera to align a single ChimeraModel to a reference ChimeraModel
+	 * This method calls Chimera to align every pair in a list of models or chains, e.g. to
+	 * cluster a set of homology models. The pairs are sent in batches of
+	 * {@link #ALIGN_BATCH_SIZE}, and the next batch is always queued before we parse the replies to
+	 * the last one, so Chimera doesn't wait for us between batches. If the alignment is cancelled,
+	 * the pairs that finished are still returned, and still assigned to the network.
+	 * 
+	 * @param objects
+	 *            the models or chains to align
+	 * @param monitor
+	 *            the task monitor to report progress to, or <code>null</code>
+	 * @return the matrix of results
+	 */
+	public AlignmentMatrix alignAllPairs(List<ChimeraStructuralObject> objects,
+			TaskMonitor monitor) {
+		cancelled = false;
+		AlignmentMatrix matrix = new AlignmentMatrix(objects);
+		int pairCount = matrix.getPairCount();
+
+		// Fill in the pairs we have aligned before, and only send the rest
+		int[] uncached = new int[pairCount];
+		int uncachedCount = 0;
+		for (int pair = 0; pair < pairCount; pair++) {
+			float[] cached = getCachedResults(matrix.getObject(matrix.getRow(pair)),
+					matrix.getObject(matrix.getColumn(pair)));
+			if (cached != null)
+				matrix.set(pair, cached);
+			else
+				uncached[uncachedCount++] = pair;
+		}
+
+		PairBatch running = null;
+		for (int start = 0; start < uncachedCount && !cancelled; start += ALIGN_BATCH_SIZE) {
+			PairBatch next = sendPairs(matrix, Arrays.copyOfRange(uncached, start,
+					Math.min(start + ALIGN_BATCH_SIZE, uncachedCount)));
+			if (running != null)
+				collectPairs(matrix, running);
+			running = next;
+			if (monitor != null) {
+				monitor.setStatusMessage("Aligned " + matrix.getAlignedCount() + " of " + pairCount
+						+ " pairs");
+				monitor.setProgress((double) (pairCount - uncachedCount + start) / pairCount);
+			}
+		}
+		if (running != null)
+			collectPairs(matrix, running);
+		cache.save();
+		if (cancelled) {
+			logger.warn("Alignment cancelled after " + matrix.getAlignedCount() + " of "
+					+ pairCount + " pairs");
+		}
+
+		chimeraManager.focus();
+		if (assignResults) {
+			setMatrixAttributes(matrix);
+		}
+		return matrix;
+	}
+
+	/**
+	 * A batch of pairs that has been queued on the Chimera command thread
+	 */
+	private static class PairBatch {
+		int[] pairs;
+		List<String> commands = new ArrayList<String>();
+		volatile List<List<String>> replies = null;
+		CompletableFuture<Void> sent = null;
+	}
+
+	private PairBatch sendPairs(AlignmentMatrix matrix, int[] pairs) {
+		final PairBatch batch = new PairBatch();
+		batch.pairs = pairs;
+		for (int pair : pairs) {
+			batch.commands.add(getAlignCommand(matrix.getObject(matrix.getRow(pair)),
+					matrix.getObject(matrix.getColumn(pair))));
+		}
+		batch.sent = chimeraIO.runAsync(new Runnable() {
+			public void run() {
+				batch.replies = chimeraIO.sendChimeraCommands(batch.commands, true);
+			}
+		});
+		return batch;
+	}
+
+	private void collectPairs(AlignmentMatrix matrix, PairBatch batch) {
+		try {
+			batch.sent.join();
+		} catch (CompletionException e) {
+			logger.warn("Chimera could not align pairs: " + e.getCause());
+		}
+		List<List<String>> replies = batch.replies;
+		for (int i = 0; i < batch.pairs.length; i++) {
+			int pair = batch.pairs[i];
+			ChimeraStructuralObject reference = matrix.getObject(matrix.getRow(pair));
+			ChimeraStructuralObject match = matrix.getObject(matrix.getColumn(pair));
+			List<String> pairResult = (replies != null && i < replies.size()) ? replies.get(i) : null;
+			float[] pairResults = pairResult == null ? null : parseResults(pairResult);
+			if (pairResults != null) {
+				matrix.set(pair, pairResults);
+				cacheResults(reference, match, pairResults);
+			} else {
+				logger.warn("Chimera could not align pair: " + reference.toSpec() + " and "
+						+ match.toSpec());
+			}
+		}
+	}
+
+	/**
+	 * Look up a pair in the alignment cache
+	 * 
+	 * @return the cached results, or <code>null</code> if the pair has to be aligned
+	 */
+	private float[] getCachedResults(ChimeraStructuralObject reference,
+			ChimeraStructuralObject match) {
+		if (!useCache || showSequence)
+			return null;
+		String key = AlignmentCache.getKey(reference, match, getAlignOptions(reference, match));
+		if (key == null)
+			return null;
+		return cache.get(key);
+	}
+
+	private void cacheResults(ChimeraStructuralObject reference, ChimeraStructuralObject match,
+			float[] results) {
+		// Only keep results that Chimera actually reported an RMSD for
+		if (results == null || Float.isNaN(results[RMSD]))
+			return;
+		String key = AlignmentCache.getKey(reference, match, getAlignOptions(reference, match));
+		if (key != null)
+			cache.put(key, results);
+	}
+
+	/**
+	 * Get the Chimera command to align a single ChimeraModel to a reference ChimeraModel
 	 * 
 	 * @param reference
 	 *            the ChimeraModel to use as a reference model
 	 * @param match
 	 *            the ChimeraModel to align to the reference
-	 * @return an Iterator over the results
+	 * @return the matchmaker command
 	 */
-	private List<String> singleAlign(ChimeraStructuralObject reference,
+	private String getAlignCommand(ChimeraStructuralObject reference,
 			ChimeraStructuralObject match) {
-		String command = "matchmaker " + reference.toSpec() + " " + match.toSpec();
-		if (reference instanceof ChimeraChain || match instanceof ChimeraChain)
-			command = command + " pair ss";
+		String command = "matchmaker " + reference.toSpec() + " " + match.toSpec()
+				+ getAlignOptions(reference, match);
 		if (showSequence) {
 			command = command + " show true";
 		}
-		return chimeraIO.sendChimeraCommand(command, true);
+		return command;
+	}
+
+	/**
+	 * @return the matchmaker options that change the results of aligning a pair
+	 */
+	private String getAlignOptions(ChimeraStructuralObject reference,
+			ChimeraStructuralObject match) {
+		if (reference instanceof ChimeraChain || match instanceof ChimeraChain)
+			return " pair ss";
+		return "";
 	}
 
 	/**
@@ -217,10 +418,12 @@ public class AlignManager {
 	 * 
 	 * @param lineIter
 	 *            the iterator over the lines of responses from Chimera
-	 * @return the array of floats containing the results from a single alignment
+	 * @return the array of floats containing the results from a single alignment, or
+	 *         <code>null</code> if the reply has no RMSD, i.e. the alignment failed
 	 */
 	private float[] parseResults(List<String> resultsList) {
 		float[] results = new float[3];
+		boolean aligned = false;
 		int index = -1;
 		for (String line : resultsList) {
 			// System.out.println(line);
@@ -233,9 +436,12 @@ public class AlignManager {
 				results[PAIRS] = pairs.floatValue();
 				Float rmsd = new Float(tokens[6]);
 				results[RMSD] = rmsd.floatValue();
+				aligned = true;
 			}
 		}
 		// System.out.println("RMSD = "+results[RMSD]+", score = "+results[SCORE]);
+		if (!aligned)
+			return null;
 		return results;
 	}
 
@@ -254,10 +460,114 @@ public class AlignManager {
 		for (ChimeraStructuralObject target : targetList) {
 			ChimeraModel targetModel = target.getChimeraModel();
 			float[] results = getResults(ChimUtils.getAlignName(target));
+			if (results == null)
+				continue;
 			setEdgeAttributes(results, sourceModel, targetModel);
 		}
 	}
 
+	/**
+	 * Set the edge attributes for all of the aligned pairs in a matrix. The nodes of each
+	 * structure are looked up, and the columns created, once for the whole matrix rather than once
+	 * per pair, and the values are written after all of the edges have been found or created.
+	 * 
+	 * @param matrix
+	 *            the results of an all-vs-all alignment
+	 */
+	private void setMatrixAttributes(AlignmentMatrix matrix) {
+		int n = matrix.size();
+		List<List<CyNode>> nodes = new ArrayList<List<CyNode>>(n);
+		List<CyNetwork> nodeNetworks = new ArrayList<CyNetwork>(n);
+		Set<CyNetwork> networks = new HashSet<CyNetwork>();
+		for (int i = 0; i < n; i++) {
+			List<CyNode> nodeList = new ArrayList<CyNode>();
+			CyNetwork network = getNodes(matrix.getObject(i).getChimeraModel(), nodeList);
+			nodes.add(nodeList);
+			nodeNetworks.add(network);
+			if (network != null)
+				networks.add(network);
+		}
+		for (CyNetwork network : networks) {
+			CyTable edgeTable = network.getDefaultEdgeTable();
+			for (String attrKey : attributeKeys) {
+				if (edgeTable.getColumn(attrKey) == null) {
+					edgeTable.createColumn(attrKey, Double.class, false);
+				}
+			}
+		}
+
+		List<CyEdge> edges = new ArrayList<CyEdge>();
+		List<CyNetwork> edgeNetworks = new ArrayList<CyNetwork>();
+		List<Integer> edgePairs = new ArrayList<Integer>();
+		for (int pair = 0; pair < matrix.getPairCount(); pair++) {
+			if (!matrix.isAligned(pair))
+				continue;
+			int i = matrix.getRow(pair);
+			int j = matrix.getColumn(pair);
+			// We assume that all nodes are in the same network
+			CyNetwork network = nodeNetworks.get(i);
+			if (network == null || !network.equals(nodeNetworks.get(j)))
+				continue;
+			for (CyNode node1 : nodes.get(i)) {
+				for (CyNode node2 : nodes.get(j)) {
+					List<CyEdge> edgeList = network.getConnectingEdgeList(node1, node2, Type.ANY);
+					if (edgeList.size() == 0 && createNewEdges) {
+						edgeList = new ArrayList<CyEdge>();
+						edgeList.add(createEdge(network, node1, node2));
+					}
+					for (CyEdge edge : edgeList) {
+						edges.add(edge);
+						edgeNetworks.add(network);
+						edgePairs.add(pair);
+					}
+				}
+			}
+		}
+
+		for (int e = 0; e < edges.size(); e++) {
+			float[] results = matrix.getResults(edgePairs.get(e));
+			for (int i = 0; i < 3; i++) {
+				edgeNetworks.get(e).getRow(edges.get(e)).set(attributeKeys[i],
+						new Double(results[i]));
+			}
+		}
+	}
+
+	/**
+	 * Get the nodes that represent a model
+	 * 
+	 * @param model
+	 *            the model
+	 * @param nodeList
+	 *            the list to add the nodes to
+	 * @return the network that all of the nodes are in, or <code>null</code> if there are no nodes
+	 *         or they are in more than one network
+	 */
+	private CyNetwork getNodes(ChimeraModel model, List<CyNode> nodeList) {
+		Map<CyIdentifiable, CyNetwork> cyObjects = model.getCyObjects();
+		Set<CyNetwork> networks = new HashSet<CyNetwork>();
+		for (CyIdentifiable cyObj : cyObjects.keySet()) {
+			if (cyObj instanceof CyNode) {
+				nodeList.add((CyNode) cyObj);
+				networks.add(cyObjects.get(cyObj));
+			}
+		}
+		if (nodeList.size() == 0 || networks.size() > 1)
+			return null;
+		return networks.iterator().next();
+	}
+
+	private CyEdge createEdge(CyNetwork network, CyNode node1, CyNode node2) {
+		CyEdge edge = network.addEdge(node1, node2, true);
+		network.getRow(edge).set(CyEdge.INTERACTION, structureInteraction);
+		network.getRow(edge).set(
+				CyNetwork.NAME,
+				network.getRow(node1).get(CyNetwork.NAME, String.class) + " ("
+						+ structureInteraction + ") "
+						+ network.getRow(node2).get(CyNetwork.NAME, String.class));
+		return edge;
+	}
+
 	/**
 	 * 
 	 * @param results
@@ -0,0 +1,257 @@
+package edu.ucsf.rbvi.structureVizX.internal.model;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.cytoscape.application.CyUserLog;
+
+/**
+ * A cache of alignment results that is kept on disk between sessions, so that pairs that have
+ * been aligned before don't have to go back to Chimera. Results are keyed by a hash of the
+ * content of both structures (see {@link ChimeraModel#getContentHash()}), the chains that were
+ * aligned, and the matchmaker options, so the key stays the same when the same files are opened
+ * again under different model numbers. Structures that were fetched rather than opened from a
+ * local file have no content hash, so their alignments are never cached.
+ *
+ * The cache holds at most a fixed number of entries and evicts the least recently used ones.
+ * It is thread-safe.
+ */
+public class AlignmentCache {
+	/**
+	 * The default maximum number of results to keep
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+	// Version 1 caches could hold results for fetched entries and failed alignments, so they are
+	// discarded
+	private static final String HEADER = "# structureViz alignment cache 2";
+
+	final Logger logger = Logger.getLogger(CyUserLog.NAME);
+
+	private final File cacheFile;
+	private final LinkedHashMap<String, float[]> entries;
+	private boolean loaded = false;
+	private boolean modified = false;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Create a cache
+	 *
+	 * @param cacheFile
+	 *            the file to keep the cache in, or <code>null</code> to only keep it in memory
+	 * @param maxEntries
+	 *            the maximum number of results to keep
+	 */
+	public AlignmentCache(File cacheFile, final int maxEntries) {
+		this.cacheFile = cacheFile;
+		this.entries = new LinkedHashMap<String, float[]>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, float[]> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Get the cache key for aligning two structures
+	 *
+	 * @param reference
+	 *            the reference model or chain
+	 * @param match
+	 *            the model or chain to align to it
+	 * @param options
+	 *            the matchmaker options that change the result, e.g. <code>pair ss</code>
+	 * @return the key, or <code>null</code> if we don't know the content of either structure
+	 */
+	public static String getKey(ChimeraStructuralObject reference, ChimeraStructuralObject match,
+			String options) {
+		String refHash = getContentKey(reference);
+		String matchHash = getContentKey(match);
+		if (refHash == null || matchHash == null)
+			return null;
+		return refHash + " " + matchHash + " " + options.trim();
+	}
+
+	private static String getContentKey(ChimeraStructuralObject obj) {
+		String hash = obj.getChimeraModel().getContentHash();
+		if (hash == null)
+			return null;
+		if (obj instanceof ChimeraChain)
+			return hash + "/" + ((ChimeraChain) obj).getChainId();
+		return hash;
+	}
+
+	/**
+	 * Look up the results for a pair, counting the hit or miss
+	 *
+	 * @param key
+	 *            the key from {@link #getKey}
+	 * @return a copy of the RMSD, score and aligned pairs, or <code>null</code> if the pair
+	 *         isn't cached
+	 */
+	public synchronized float[] get(String key) {
+		load();
+		float[] results = entries.get(key);
+		if (results == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return results.clone();
+	}
+
+	public synchronized void put(String key, float[] results) {
+		load();
+		entries.put(key, results.clone());
+		modified = true;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized int size() {
+		load();
+		return entries.size();
+	}
+
+	/**
+	 * Remove all of the results, from memory and disk, and reset the counters
+	 */
+	public synchronized void clear() {
+		loaded = true;
+		entries.clear();
+		hits = 0;
+		misses = 0;
+		modified = true;
+		save();
+	}
+
+	/**
+	 * Write the cache to disk, if it has changed since it was read. Entries are written least
+	 * recently used first, so the order survives a reload.
+	 */
+	public synchronized void save() {
+		if (cacheFile == null || !modified)
+			return;
+		File tmpFile = new File(cacheFile.getPath() + ".tmp");
+		BufferedWriter writer = null;
+		try {
+			writer = new BufferedWriter(new FileWriter(tmpFile));
+			writer.write(HEADER);
+			writer.newLine();
+			for (Map.Entry<String, float[]> entry : entries.entrySet()) {
+				float[] results = entry.getValue();
+				writer.write(entry.getKey() + "\t" + results[AlignManager.RMSD] + "\t"
+						+ results[AlignManager.SCORE] + "\t" + results[AlignManager.PAIRS]);
+				writer.newLine();
+			}
+			writer.close();
+			writer = null;
+			if (cacheFile.exists() && !cacheFile.delete())
+				throw new IOException("can't replace " + cacheFile);
+			if (!tmpFile.renameTo(cacheFile))
+				throw new IOException("can't rename " + tmpFile);
+			modified = false;
+		} catch (IOException e) {
+			logger.warn("Unable to save the alignment cache: " + e.getMessage());
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void load() {
+		if (loaded)
+			return;
+		loaded = true;
+		if (cacheFile == null || !cacheFile.isFile())
+			return;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(cacheFile));
+			String line = reader.readLine();
+			if (!HEADER.equals(line)) {
+				// An older or foreign file, start over
+				modified = true;
+				return;
+			}
+			while ((line = reader.readLine()) != null) {
+				String[] tokens = line.split("\t");
+				if (tokens.length != 4)
+					continue;
+				float[] results = new float[3];
+				try {
+					results[AlignManager.RMSD] = Float.parseFloat(tokens[1]);
+					results[AlignManager.SCORE] = Float.parseFloat(tokens[2]);
+					results[AlignManager.PAIRS] = Float.parseFloat(tokens[3]);
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				entries.put(tokens[0], results);
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to read the alignment cache: " + e.getMessage());
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get a hash of the contents of a file
+	 *
+	 * @param file
+	 *            the file
+	 * @return the SHA-1 of the file as a hex string, or <code>null</code> if it can't be read
+	 */
+	public static String hashFile(File file) {
+		InputStream input = null;
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			input = new FileInputStream(file);
+			byte[] buffer = new byte[65536];
+			int count;
+			while ((count = input.read(buffer)) > 0)
+				digest.update(buffer, 0, count);
+			StringBuilder hash = new StringBuilder();
+			for (byte b : digest.digest())
+				hash.append(String.format("%02x", b & 0xff));
+			return hash.toString();
+		} catch (IOException e) {
+			return null;
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
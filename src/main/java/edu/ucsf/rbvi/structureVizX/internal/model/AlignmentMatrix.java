@@ -0,0 +1,165 @@
+package edu.ucsf.rbvi.structureVizX.internal.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The results of aligning every pair in a list of models or chains. The RMSD, alignment score
+ * and number of aligned pairs of each alignment are kept in a single float array, indexed by
+ * pair and then by {@link AlignManager#RMSD}, {@link AlignManager#SCORE} and
+ * {@link AlignManager#PAIRS}. Only the pairs (i, j) with i &lt; j are aligned, so the matrix is
+ * stored as its upper triangle and read back symmetrically.
+ *
+ * Pairs that have not been aligned (yet) have NaN values, so a matrix that was cancelled part
+ * way through still holds everything that finished.
+ */
+public class AlignmentMatrix {
+	private final List<ChimeraStructuralObject> objects;
+	private final float[] values;
+	private int alignedCount = 0;
+
+	/**
+	 * Create an empty matrix
+	 *
+	 * @param objects
+	 *            the models or chains to align, in order
+	 */
+	public AlignmentMatrix(List<ChimeraStructuralObject> objects) {
+		this.objects = new ArrayList<ChimeraStructuralObject>(objects);
+		this.values = new float[getPairCount() * 3];
+		Arrays.fill(values, Float.NaN);
+	}
+
+	public int size() {
+		return objects.size();
+	}
+
+	public ChimeraStructuralObject getObject(int index) {
+		return objects.get(index);
+	}
+
+	public List<ChimeraStructuralObject> getObjects() {
+		return Collections.unmodifiableList(objects);
+	}
+
+	/**
+	 * @return the number of pairs in the matrix, n(n-1)/2
+	 */
+	public int getPairCount() {
+		int n = objects.size();
+		return n * (n - 1) / 2;
+	}
+
+	/**
+	 * @return the number of pairs that have been aligned so far
+	 */
+	public int getAlignedCount() {
+		return alignedCount;
+	}
+
+	public boolean isComplete() {
+		return alignedCount == getPairCount();
+	}
+
+	/**
+	 * Get the position of a pair in the upper triangle. Pairs are ordered by row, so the pairs
+	 * for the first object come first.
+	 *
+	 * @param i
+	 *            one object index
+	 * @param j
+	 *            another object index, different from i
+	 * @return the pair index
+	 */
+	public int getPair(int i, int j) {
+		if (i > j) {
+			int t = i;
+			i = j;
+			j = t;
+		}
+		int n = objects.size();
+		return i * (2 * n - i - 1) / 2 + (j - i - 1);
+	}
+
+	/**
+	 * @return the first (row) object index of a pair
+	 */
+	public int getRow(int pair) {
+		int n = objects.size();
+		int i = 0;
+		while (pair >= n - i - 1) {
+			pair -= n - i - 1;
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @return the second (column) object index of a pair
+	 */
+	public int getColumn(int pair) {
+		int i = getRow(pair);
+		return pair - getPair(i, i + 1) + i + 1;
+	}
+
+	/**
+	 * Get one result for a pair of objects
+	 *
+	 * @param i
+	 *            one object index
+	 * @param j
+	 *            another object index
+	 * @param result
+	 *            one of {@link AlignManager#RMSD}, {@link AlignManager#SCORE} or
+	 *            {@link AlignManager#PAIRS}
+	 * @return the value, 0 on the diagonal, or NaN if the pair hasn't been aligned
+	 */
+	public float get(int i, int j, int result) {
+		if (i == j)
+			return 0.0f;
+		return values[getPair(i, j) * 3 + result];
+	}
+
+	/**
+	 * @return the three results for a pair, or <code>null</code> if it hasn't been aligned
+	 */
+	public float[] getResults(int pair) {
+		if (!isAligned(pair))
+			return null;
+		return Arrays.copyOfRange(values, pair * 3, pair * 3 + 3);
+	}
+
+	public boolean isAligned(int pair) {
+		return !Float.isNaN(values[pair * 3 + AlignManager.RMSD]);
+	}
+
+	void set(int pair, float[] results) {
+		if (!isAligned(pair))
+			alignedCount++;
+		System.arraycopy(results, 0, values, pair * 3, 3);
+	}
+
+	/**
+	 * Copy one result out as a full, symmetric n x n matrix, e.g. for clustering
+	 *
+	 * @param result
+	 *            one of {@link AlignManager#RMSD}, {@link AlignManager#SCORE} or
+	 *            {@link AlignManager#PAIRS}
+	 * @return the matrix in row-major order
+	 */
+	public float[] toSquareMatrix(int result) {
+		int n = objects.size();
+		float[] matrix = new float[n * n];
+		int pair = 0;
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n; j++, pair++) {
+				float value = values[pair * 3 + result];
+				matrix[i * n + j] = value;
+				matrix[j * n + i] = value;
+			}
+		}
+		return matrix;
+	}
+}
@@ -0,0 +1,340 @@
+package edu.ucsf.rbvi.structureVizX.internal.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What the structure and residue columns of the nodes of one network parsed to, saved between
+ * associations so that reopening structures (or restoring a session) doesn't have to parse
+ * every node attribute again. Each node's entry is keyed by its SUID and carries a checksum of
+ * the cells it was parsed from, so a node whose cells have changed is simply parsed again.
+ * Entries are also found by checksum alone, which covers nodes whose SUIDs changed when a
+ * session was restored.
+ *
+ * The index is written as a small versioned binary file. Every entry is copied onto the heap
+ * when the file is read, so the file is never held open. Entries can be looked up and added
+ * from several threads at once.
+ */
+public class AssociationIndex {
+	private static final int MAGIC = 0x53564149; // "SVAI"
+	private static final int VERSION = 1;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * The parsed columns of one node
+	 */
+	public static class Entry {
+		final long checksum;
+		final List<String> modelNames;
+		final List<String> specs;
+		final AtomSpec[] parsedSpecs;
+		final List<String> residues;
+
+		/**
+		 * @param checksum
+		 *            the checksum of the node's cells, from {@link AssociationIndex#checksum}
+		 * @param modelNames
+		 *            the names of the structures the node refers to
+		 * @param specs
+		 *            the residue keys of the node
+		 * @param parsedSpecs
+		 *            the parsed residue keys, with <code>null</code> for keys that have to be
+		 *            parsed again every time
+		 * @param residues
+		 *            the functional residues of the node
+		 */
+		public Entry(long checksum, List<String> modelNames, List<String> specs,
+				AtomSpec[] parsedSpecs, List<String> residues) {
+			this.checksum = checksum;
+			this.modelNames = modelNames;
+			this.specs = specs;
+			this.parsedSpecs = parsedSpecs;
+			this.residues = residues;
+		}
+
+		public List<String> getModelNames() {
+			return modelNames;
+		}
+
+		public List<String> getSpecs() {
+			return specs;
+		}
+
+		/**
+		 * @return the parsed residue key, or <code>null</code> if it has to be parsed
+		 */
+		public AtomSpec getParsedSpec(int spec) {
+			return parsedSpecs[spec];
+		}
+
+		public List<String> getResidues() {
+			return residues;
+		}
+	}
+
+	private final long columnsChecksum;
+	private final Map<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+	// Entries by checksum, for nodes whose SUID has changed
+	private final Map<Long, Entry> checksumEntries;
+	private volatile boolean modified = false;
+
+	/**
+	 * Create an empty index
+	 *
+	 * @param columnsChecksum
+	 *            a checksum of the columns and settings the index was built with
+	 */
+	public AssociationIndex(long columnsChecksum) {
+		this(columnsChecksum, Collections.<Long, Entry> emptyMap());
+	}
+
+	private AssociationIndex(long columnsChecksum, Map<Long, Entry> checksumEntries) {
+		this.columnsChecksum = columnsChecksum;
+		this.checksumEntries = checksumEntries;
+	}
+
+	/**
+	 * Look up a node
+	 *
+	 * @param suid
+	 *            the node SUID
+	 * @param checksum
+	 *            the checksum of the node's cells now
+	 * @return the entry, or <code>null</code> if the node has to be parsed
+	 */
+	public Entry get(long suid, long checksum) {
+		Entry entry = entries.get(suid);
+		if (entry != null && entry.checksum == checksum)
+			return entry;
+		entry = checksumEntries.get(checksum);
+		if (entry != null && entry.checksum == checksum)
+			return entry;
+		return null;
+	}
+
+	public void put(long suid, Entry entry) {
+		Entry old = entries.put(suid, entry);
+		if (old != entry)
+			modified = true;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getColumnsChecksum() {
+		return columnsChecksum;
+	}
+
+	public boolean isModified() {
+		return modified;
+	}
+
+	/**
+	 * Start a checksum
+	 */
+	public static long checksum() {
+		return FNV_OFFSET;
+	}
+
+	/**
+	 * Add a string to a checksum
+	 *
+	 * @param checksum
+	 *            the checksum so far
+	 * @param str
+	 *            the string, which may be <code>null</code>
+	 * @return the new checksum
+	 */
+	public static long checksum(long checksum, String str) {
+		if (str == null) {
+			checksum = (checksum ^ 0xff) * FNV_PRIME;
+		} else {
+			for (int i = 0; i < str.length(); i++) {
+				char c = str.charAt(i);
+				checksum = (checksum ^ (c & 0xff)) * FNV_PRIME;
+				checksum = (checksum ^ (c >>> 8)) * FNV_PRIME;
+			}
+		}
+		// Separate this string from the next one
+		return (checksum ^ 0xfe) * FNV_PRIME;
+	}
+
+	/**
+	 * Read an index. The file is checked against the version and the columns checksum, and an
+	 * empty index is returned if it doesn't match or can't be read.
+	 *
+	 * @param file
+	 *            the index file
+	 * @param columnsChecksum
+	 *            a checksum of the columns and settings we are using now
+	 * @return the index
+	 */
+	public static AssociationIndex read(File file, long columnsChecksum) {
+		if (file == null || !file.isFile())
+			return new AssociationIndex(columnsChecksum);
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			long fileSize = file.length();
+			if (input.readInt() != MAGIC || input.readInt() != VERSION
+					|| input.readLong() != columnsChecksum) {
+				return new AssociationIndex(columnsChecksum);
+			}
+			int count = input.readInt();
+			if (count < 0 || count > fileSize)
+				return new AssociationIndex(columnsChecksum);
+			Map<Long, Entry> checksumEntries = new HashMap<Long, Entry>();
+			AssociationIndex index = new AssociationIndex(columnsChecksum, checksumEntries);
+			for (int i = 0; i < count; i++) {
+				long suid = input.readLong();
+				long checksum = input.readLong();
+				List<String> modelNames = readStrings(input, fileSize);
+				List<String> specs = readStrings(input, fileSize);
+				AtomSpec[] parsedSpecs = new AtomSpec[specs.size()];
+				for (int spec = 0; spec < parsedSpecs.length; spec++) {
+					if (input.readByte() == 0)
+						continue;
+					String modelName = readString(input, fileSize);
+					String subModelId = readString(input, fileSize);
+					String chain = readString(input, fileSize);
+					String residueIndex = readString(input, fileSize);
+					int residueNumber = input.readInt();
+					parsedSpecs[spec] = AtomSpec.getAttributeAtomSpec(modelName, subModelId,
+							chain, residueIndex, residueNumber);
+				}
+				List<String> residues = readStrings(input, fileSize);
+				Entry entry = new Entry(checksum, modelNames, specs, parsedSpecs, residues);
+				index.entries.put(suid, entry);
+				checksumEntries.put(checksum, entry);
+			}
+			return index;
+		} catch (EOFException e) {
+			// Truncated
+			return new AssociationIndex(columnsChecksum);
+		} catch (IOException e) {
+			return new AssociationIndex(columnsChecksum);
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the index. It is written to a temporary file first and then moved over the index,
+	 * so a failed write doesn't leave a truncated index behind.
+	 *
+	 * @param file
+	 *            the index file
+	 * @throws IOException
+	 *             if the index can't be written
+	 */
+	public void write(File file) throws IOException {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmpFile)));
+		try {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeLong(columnsChecksum);
+			output.writeInt(entries.size());
+			for (Map.Entry<Long, Entry> mapEntry : entries.entrySet()) {
+				Entry entry = mapEntry.getValue();
+				output.writeLong(mapEntry.getKey());
+				output.writeLong(entry.checksum);
+				writeStrings(output, entry.modelNames);
+				writeStrings(output, entry.specs);
+				for (AtomSpec spec : entry.parsedSpecs) {
+					if (spec == null) {
+						output.writeByte(0);
+						continue;
+					}
+					output.writeByte(1);
+					writeString(output, spec.getName());
+					String[] subModelIds = spec.getSubModelIds();
+					writeString(output, subModelIds == null || subModelIds.length == 0 ? null
+							: subModelIds[0]);
+					writeString(output, spec.getChainId());
+					writeString(output, spec.getResidueIndex());
+					output.writeInt(spec.getResidueNumber());
+				}
+				writeStrings(output, entry.residues);
+			}
+		} finally {
+			output.close();
+		}
+		try {
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		modified = false;
+	}
+
+	private static void writeStrings(DataOutputStream output, List<String> strings)
+			throws IOException {
+		output.writeInt(strings.size());
+		for (String str : strings)
+			writeString(output, str);
+	}
+
+	private static void writeString(DataOutputStream output, String str) throws IOException {
+		if (str == null) {
+			output.writeInt(-1);
+			return;
+		}
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	/**
+	 * @param fileSize
+	 *            the size of the file, which no count or length can be larger than
+	 */
+	private static List<String> readStrings(DataInputStream input, long fileSize)
+			throws IOException {
+		int count = input.readInt();
+		if (count < 0 || count > fileSize)
+			throw new EOFException();
+		String[] strings = new String[count];
+		for (int i = 0; i < count; i++)
+			strings[i] = readString(input, fileSize);
+		return Arrays.asList(strings);
+	}
+
+	private static String readString(DataInputStream input, long fileSize) throws IOException {
+		int length = input.readInt();
+		if (length < 0)
+			return null;
+		if (length > fileSize)
+			throw new EOFException();
+		byte[] bytes = new byte[length];
+		input.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,297 @@
+package edu.ucsf.rbvi.structureVizX.internal.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.ucsf.rbvi.structureVizX.internal.io.StructureFileReader;
+
+/**
+ * The coordinates of a set of atoms, fetched once from Chimera (or read from a structure file),
+ * so that contacts and distances can be computed without going back to Chimera. Coordinates and
+ * radii are kept in primitive arrays; residues are shared between their atoms.
+ *
+ * Atoms are identified by the order in which they were added. This class is not thread-safe
+ * while atoms are being added, but can be read from any number of threads afterwards.
+ */
+public class AtomCoordinates {
+	// Default van der Waals radii by element
+	private static final Map<String, Float> VDW_RADII = new HashMap<String, Float>();
+	private static final float DEFAULT_RADIUS = 1.8f;
+
+	// Standard residues, whose atom names always start with a one-letter element
+	private static final Set<String> STANDARD_RESIDUES = new HashSet<String>(Arrays.asList(
+			"ALA", "ARG", "ASN", "ASP", "CYS", "GLN", "GLU", "GLY", "HIS", "ILE", "LEU", "LYS",
+			"MET", "PHE", "PRO", "SER", "THR", "TRP", "TYR", "VAL", "A", "C", "G", "U", "DA",
+			"DC", "DG", "DT"));
+	// Metals that are named by their element in ligands (e.g. FE in HEM). Not CA, NA, CD or HG,
+	// which are also the names of carbon, nitrogen and hydrogen atoms.
+	private static final Set<String> LIGAND_METALS = new HashSet<String>(Arrays.asList("FE",
+			"ZN", "MG", "MN", "CU"));
+
+	static {
+		VDW_RADII.put("H", 1.1f);
+		VDW_RADII.put("C", 1.7f);
+		VDW_RADII.put("N", 1.625f);
+		VDW_RADII.put("O", 1.48f);
+		VDW_RADII.put("S", 1.782f);
+		VDW_RADII.put("P", 1.871f);
+		VDW_RADII.put("SE", 1.9f);
+		// Halogens and ions (Bondi 1964, and Mantina et al. 2009 for calcium)
+		VDW_RADII.put("F", 1.47f);
+		VDW_RADII.put("CL", 1.75f);
+		VDW_RADII.put("BR", 1.85f);
+		VDW_RADII.put("I", 1.98f);
+		VDW_RADII.put("NA", 2.27f);
+		VDW_RADII.put("K", 2.75f);
+		VDW_RADII.put("MG", 1.73f);
+		VDW_RADII.put("CA", 2.31f);
+		VDW_RADII.put("ZN", 1.39f);
+		VDW_RADII.put("CU", 1.4f);
+		VDW_RADII.put("NI", 1.63f);
+	}
+
+	private int atomCount = 0;
+	private float[] coords = new float[3 * 256];
+	private float[] radii = new float[256];
+	private int[] atomResidues = new int[256];
+	private String[] atomNames = new String[256];
+	private String[] elements = new String[256];
+	private float maxRadius = 0.0f;
+
+	// Residues
+	private final Map<ChimeraResidue, Integer> residueIds = new IdentityHashMap<ChimeraResidue, Integer>();
+	private final List<ChimeraResidue> residues = new ArrayList<ChimeraResidue>();
+	private final List<String> residueSpecs = new ArrayList<String>();
+
+	/**
+	 * Add an atom.
+	 *
+	 * @param residueSpec
+	 *            the spec of the atom's residue, e.g. <code>#1/A:36</code>
+	 * @param residue
+	 *            the atom's residue
+	 * @param atomName
+	 *            the atom name, e.g. <code>CA</code>
+	 * @param element
+	 *            the element symbol, or <code>null</code> to guess it from the residue type and
+	 *            atom name
+	 * @param x
+	 *            the x coordinate
+	 * @param y
+	 *            the y coordinate
+	 * @param z
+	 *            the z coordinate
+	 * @return the atom id
+	 */
+	public int addAtom(String residueSpec, ChimeraResidue residue, String atomName,
+			String element, double x, double y, double z) {
+		if (atomCount == radii.length)
+			grow(atomCount * 2);
+		Integer residueId = residueIds.get(residue);
+		if (residueId == null) {
+			residueId = residues.size();
+			residueIds.put(residue, residueId);
+			residues.add(residue);
+			residueSpecs.add(residueSpec);
+		}
+		if (element == null || element.length() == 0)
+			element = getElement(residue.getType(), atomName);
+		else
+			element = element.toUpperCase();
+
+		int atom = atomCount++;
+		coords[3 * atom] = (float) x;
+		coords[3 * atom + 1] = (float) y;
+		coords[3 * atom + 2] = (float) z;
+		atomResidues[atom] = residueId;
+		atomNames[atom] = atomName;
+		elements[atom] = element;
+		Float radius = VDW_RADII.get(element);
+		radii[atom] = radius == null ? DEFAULT_RADIUS : radius;
+		maxRadius = Math.max(maxRadius, radii[atom]);
+		return atom;
+	}
+
+	public int getAtomCount() {
+		return atomCount;
+	}
+
+	public float getX(int atom) {
+		return coords[3 * atom];
+	}
+
+	public float getY(int atom) {
+		return coords[3 * atom + 1];
+	}
+
+	public float getZ(int atom) {
+		return coords[3 * atom + 2];
+	}
+
+	public float getRadius(int atom) {
+		return radii[atom];
+	}
+
+	/**
+	 * @return the largest radius of any atom
+	 */
+	public float getMaxRadius() {
+		return maxRadius;
+	}
+
+	public String getAtomName(int atom) {
+		return atomNames[atom];
+	}
+
+	public String getElement(int atom) {
+		return elements[atom];
+	}
+
+	/**
+	 * @return the atom spec, e.g. <code>#1/A:36@CA</code>
+	 */
+	public String getAtomSpec(int atom) {
+		return residueSpecs.get(atomResidues[atom]) + "@" + atomNames[atom];
+	}
+
+	/**
+	 * @return the id of the atom's residue
+	 */
+	public int getResidueId(int atom) {
+		return atomResidues[atom];
+	}
+
+	public ChimeraResidue getResidue(int atom) {
+		return residues.get(atomResidues[atom]);
+	}
+
+	public String getResidueSpec(int atom) {
+		return residueSpecs.get(atomResidues[atom]);
+	}
+
+	public int getResidueCount() {
+		return residues.size();
+	}
+
+	/**
+	 * Get the atoms with a given name, e.g. all of the alpha carbons
+	 *
+	 * @param atomName
+	 *            the atom name
+	 * @return the atom ids, in order
+	 */
+	public int[] getAtoms(String atomName) {
+		int[] atoms = new int[atomCount];
+		int count = 0;
+		for (int atom = 0; atom < atomCount; atom++) {
+			if (atomNames[atom].equals(atomName))
+				atoms[count++] = atom;
+		}
+		return Arrays.copyOf(atoms, count);
+	}
+
+	/**
+	 * Get the atoms of one model read from a structure file. If a ChimeraModel is given, the
+	 * atoms are attached to its residues. Otherwise residues are created for model #1, so that
+	 * contacts can be found from a file without ChimeraX.
+	 *
+	 * @param fileModel
+	 *            the model, read with {@link StructureFileReader#readAtoms(java.io.File)}
+	 * @param model
+	 *            the ChimeraModel opened from the file, or <code>null</code>
+	 * @param ignoreWater
+	 *            true to leave out water molecules
+	 * @return the atoms, or <code>null</code> if a residue in the file isn't in the model (or
+	 *         has a different type), since then the file no longer matches what ChimeraX has
+	 */
+	public static AtomCoordinates read(StructureFileReader.ModelResidues fileModel,
+			ChimeraModel model, boolean ignoreWater) {
+		ChimeraResidue[] residues = new ChimeraResidue[fileModel.size()];
+		for (int residue = 0; residue < residues.length; residue++) {
+			String chainId = fileModel.getChainId(residue);
+			String index = fileModel.getResidueIndex(residue);
+			String type = fileModel.getResidueType(residue);
+			if (model == null) {
+				AtomSpec spec = new AtomSpec();
+				spec.setModelNumber(1);
+				spec.setChainId(chainId == null ? "_" : chainId);
+				spec.setResidueType(type);
+				spec.setResidueIndex(index);
+				residues[residue] = new ChimeraResidue(spec);
+			} else {
+				residues[residue] = model.getResidue(chainId == null ? "_" : chainId, index);
+				if (residues[residue] == null || !residues[residue].getType().equals(type))
+					return null;
+			}
+		}
+
+		AtomCoordinates atoms = new AtomCoordinates();
+		for (int atom = 0; atom < fileModel.getAtomCount(); atom++) {
+			ChimeraResidue residue = residues[fileModel.getAtomResidue(atom)];
+			if (ignoreWater && residue.getType().equals("HOH"))
+				continue;
+			atoms.addAtom(residue.toSpec(), residue, fileModel.getAtomName(atom),
+					fileModel.getElement(atom), fileModel.getX(atom), fileModel.getY(atom),
+					fileModel.getZ(atom));
+		}
+		return atoms;
+	}
+
+	/**
+	 * Guess the element of an atom whose element we weren't given. Atoms in standard residues
+	 * are named after their element's first letter, but ions and some ligand atoms have
+	 * two-letter elements (e.g. CA in a calcium ion, FE in a heme, or CL1 in a ligand), which
+	 * their first letter would make carbon or fluorine.
+	 *
+	 * @param residueType
+	 *            the residue type, e.g. <code>HEM</code>
+	 * @param atomName
+	 *            the atom name, e.g. <code>FE</code>
+	 * @return the element symbol, in upper case
+	 */
+	static String getElement(String residueType, String atomName) {
+		// Skip any leading digits (e.g. 1HB)
+		int start = 0;
+		while (start < atomName.length() && !Character.isLetter(atomName.charAt(start)))
+			start++;
+		if (start == atomName.length())
+			return "";
+		String name = atomName.substring(start).toUpperCase();
+		String letters = name;
+		for (int i = 0; i < name.length(); i++) {
+			if (!Character.isLetter(name.charAt(i))) {
+				letters = name.substring(0, i);
+				break;
+			}
+		}
+
+		// Single-atom ions are named after their element, e.g. ZN in ZN or CA in CA
+		if (name.equals(residueType) && letters.length() <= 2)
+			return letters;
+		if (name.startsWith("SE") && "MSE".equals(residueType))
+			return "SE";
+		if (residueType != null && !STANDARD_RESIDUES.contains(residueType)
+				&& letters.length() >= 2) {
+			String symbol = letters.substring(0, 2);
+			if (symbol.equals("CL") || symbol.equals("BR"))
+				return symbol;
+			if (letters.length() == 2 && LIGAND_METALS.contains(symbol))
+				return symbol;
+		}
+		return name.substring(0, 1);
+	}
+
+	private void grow(int capacity) {
+		coords = Arrays.copyOf(coords, 3 * capacity);
+		radii = Arrays.copyOf(radii, capacity);
+		atomResidues = Arrays.copyOf(atomResidues, capacity);
+		atomNames = Arrays.copyOf(atomNames, capacity);
+		elements = Arrays.copyOf(elements, capacity);
+	}
+}
@@ -155,6 +155,23 @@ public class AtomSpec implements Comparable<AtomSpec> {
 		return spec;
 	}
 
+	/**
+	 * Create an attribute atom spec from the parts that {@link #getAttributeAtomSpec(String,
+	 * StructureManager)} parsed earlier, e.g. when they are read back from an
+	 * {@link AssociationIndex}.
+	 */
+	static AtomSpec getAttributeAtomSpec(String modelName, String subModelId, String chain,
+			String residueIndex, int residueNumber) {
+		AtomSpec spec = new AtomSpec();
+		spec.modelName = modelName;
+		if (subModelId != null)
+			spec.subModelIds = new String[] { subModelId };
+		spec.chain = chain;
+		spec.residueIndex = residueIndex;
+		spec.residueNumber = residueNumber;
+		return spec;
+	}
+
 	/**
 	 * Listinfo models returns lines of the form:
 	 *   model id #[number] type [type] name [name]
@@ -399,6 +416,10 @@ public class AtomSpec implements Comparable<AtomSpec> {
 		return modelNumber;
 	}
 
+	public void setModelNumber(int modelNumber) {
+		this.modelNumber = modelNumber;
+	}
+
 	public String[] getSubModelIds() {
 		return subModelIds;
 	}
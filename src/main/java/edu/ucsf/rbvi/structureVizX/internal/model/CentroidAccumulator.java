@@ -0,0 +1,231 @@
+package edu.ucsf.rbvi.structureVizX.internal.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+import edu.ucsf.rbvi.structureVizX.internal.utils.StringUtils;
+
+/**
+ * Computes the centroid of each residue from a <code>getcrd</code> reply as it is read. Lines
+ * are parsed in chunks on the fork-join pool; each chunk sums up the runs of atoms that belong
+ * to the same residue (Chimera lists the atoms of a residue together), and the runs are added
+ * to running sums kept in a single array indexed by residue id, in the order the chunks were
+ * read.
+ *
+ * The same accumulator can be fed the replies for several models, but {@link #finish()} must be
+ * called after each reply.
+ */
+public class CentroidAccumulator implements Consumer<String> {
+	/**
+	 * Which atoms of each residue to average
+	 */
+	public enum Mode {
+		ALL_ATOMS("All atoms"), ALPHA_CARBON("Alpha carbon"), SIDE_CHAIN("Side chain centroid");
+
+		private final String label;
+
+		Mode(String label) {
+			this.label = label;
+		}
+
+		public String toString() {
+			return label;
+		}
+	}
+
+	private static final Set<String> BACKBONE_ATOMS = new HashSet<String>(Arrays.asList("N",
+			"CA", "C", "O", "OXT", "H", "H1", "H2", "H3", "HA", "HA2", "HA3"));
+
+	// Values per residue in the sums array: x, y, z and count for the selected atoms, then
+	// the same for all atoms, which we fall back to for residues without any selected atoms
+	// (ligands, or glycine in side chain mode)
+	private static final int STRIDE = 8;
+
+	private final ChimeraManager chimeraManager;
+	private final Mode mode;
+	private final boolean parallel;
+	private final Map<ChimeraResidue, Integer> residueIds = new IdentityHashMap<ChimeraResidue, Integer>();
+	private final List<ChimeraResidue> residues = new ArrayList<ChimeraResidue>();
+	private double[] sums = new double[STRIDE * 256];
+
+	private List<String> chunk = new ArrayList<String>();
+	private final Queue<ForkJoinTask<Runs>> parsedChunks = new ArrayDeque<ForkJoinTask<Runs>>();
+
+	/**
+	 * The atoms of consecutive residues in a chunk of lines, summed by residue
+	 */
+	private static class Runs {
+		int size = 0;
+		ChimeraResidue[] residues = new ChimeraResidue[16];
+		double[] sums = new double[STRIDE * 16];
+
+		int add(ChimeraResidue residue) {
+			if (size == residues.length) {
+				residues = Arrays.copyOf(residues, size * 2);
+				sums = Arrays.copyOf(sums, STRIDE * size * 2);
+			}
+			residues[size] = residue;
+			return size++;
+		}
+	}
+
+	/**
+	 * @param chimeraManager
+	 *            the manager used to look up residues
+	 * @param mode
+	 *            which atoms to average
+	 * @param parallel
+	 *            true to parse the reply on the fork-join pool
+	 */
+	public CentroidAccumulator(ChimeraManager chimeraManager, Mode mode, boolean parallel) {
+		this.chimeraManager = chimeraManager;
+		this.mode = mode;
+		this.parallel = parallel;
+	}
+
+	public void accept(String line) {
+		chunk.add(line);
+		if (chunk.size() >= RINManager.PARSE_CHUNK_SIZE)
+			submitChunk();
+	}
+
+	/**
+	 * Add in any lines that are still being parsed. This must be called once the whole reply
+	 * has been read.
+	 */
+	public void finish() {
+		if (chunk.size() > 0)
+			submitChunk();
+		while (!parsedChunks.isEmpty())
+			addRuns(parsedChunks.poll().join());
+	}
+
+	public int getResidueCount() {
+		return residues.size();
+	}
+
+	public ChimeraResidue getResidue(int residue) {
+		return residues.get(residue);
+	}
+
+	/**
+	 * Get one coordinate of the centroid of a residue
+	 *
+	 * @param residue
+	 *            the residue id, from 0 to {@link #getResidueCount()}
+	 * @param axis
+	 *            0, 1 or 2 for x, y or z
+	 * @return the coordinate
+	 */
+	public double getCentroid(int residue, int axis) {
+		int offset = STRIDE * residue;
+		if (sums[offset + 3] == 0.0)
+			offset += 4;
+		return sums[offset + axis] / sums[offset + 3];
+	}
+
+	private void submitChunk() {
+		final List<String> lines = chunk;
+		chunk = new ArrayList<String>();
+		if (!parallel) {
+			addRuns(parse(lines));
+			return;
+		}
+		parsedChunks.add(ForkJoinPool.commonPool().submit(new Callable<Runs>() {
+			public Runs call() {
+				return parse(lines);
+			}
+		}));
+		// Add whatever is already done, in order, so we don't hold on to it
+		while (!parsedChunks.isEmpty() && parsedChunks.peek().isDone())
+			addRuns(parsedChunks.poll().join());
+	}
+
+	private Runs parse(List<String> lines) {
+		Runs runs = new Runs();
+		String lastSpec = null;
+		int lastAtom = -1;
+		int run = -1;
+		for (String inputLine : lines) {
+			// response from chimera should look like this:
+			// Atom #0/A:355@C 36.598 78.221 2.056
+			// Atom #0/A:355@CA 35.276 77.803 1.543
+			String[] lineParts = StringUtils.splitOnWhitespace(inputLine);
+			if (lineParts.length != 5) {
+				continue;
+			}
+			String spec = lineParts[1];
+			int atom = spec.indexOf('@');
+			double x, y, z;
+			try {
+				x = Double.parseDouble(lineParts[2]);
+				y = Double.parseDouble(lineParts[3]);
+				z = Double.parseDouble(lineParts[4]);
+			} catch (NumberFormatException ex) {
+				// no coordinates for this atom, ignore
+				continue;
+			}
+			// Only look the residue up when it changes
+			if (lastSpec == null || atom != lastAtom
+					|| !spec.regionMatches(0, lastSpec, 0, atom < 0 ? spec.length() : atom)) {
+				lastSpec = spec;
+				lastAtom = atom;
+				ChimeraResidue residue = chimeraManager.getResidue(spec);
+				run = residue == null ? -1 : runs.add(residue);
+			}
+			if (run < 0) {
+				continue;
+			}
+			int offset = STRIDE * run;
+			if (isSelected(atom < 0 ? "" : spec.substring(atom + 1))) {
+				runs.sums[offset] += x;
+				runs.sums[offset + 1] += y;
+				runs.sums[offset + 2] += z;
+				runs.sums[offset + 3] += 1.0;
+			}
+			runs.sums[offset + 4] += x;
+			runs.sums[offset + 5] += y;
+			runs.sums[offset + 6] += z;
+			runs.sums[offset + 7] += 1.0;
+		}
+		return runs;
+	}
+
+	private boolean isSelected(String atomName) {
+		switch (mode) {
+		case ALPHA_CARBON:
+			return atomName.equals("CA");
+		case SIDE_CHAIN:
+			return !BACKBONE_ATOMS.contains(atomName);
+		default:
+			return true;
+		}
+	}
+
+	private void addRuns(Runs runs) {
+		for (int run = 0; run < runs.size; run++) {
+			ChimeraResidue residue = runs.residues[run];
+			Integer id = residueIds.get(residue);
+			if (id == null) {
+				id = residues.size();
+				residueIds.put(residue, id);
+				residues.add(residue);
+				if (STRIDE * (id + 1) > sums.length)
+					sums = Arrays.copyOf(sums, sums.length * 2);
+			}
+			for (int i = 0; i < STRIDE; i++)
+				sums[STRIDE * id + i] += runs.sums[STRIDE * run + i];
+		}
+	}
+}
@@ -84,21 +84,99 @@ public abstract class ChimUtils {
 	}
 
 	/**
-	 * Create the key to use for forming the model/submodel key into the modelHash
+	 * Create the key to use for forming the model/submodel key into the modelHash. The key is
+	 * the full model id (e.g. "1.2.1"), so every level of submodel is kept and "1.0" is not the
+	 * same model as "1".
 	 * 
 	 * @param model
 	 *            the model number
-	 * @param subModel
-	 *            the submodel number
-	 * @return the model key as an Integer
+	 * @param subModels
+	 *            the submodel ids, or <code>null</code>
+	 * @return the model key
 	 */
 	public static String makeModelKey(int model, String[] subModels) {
-		String modelKey = ""+model;
-		if (subModels == null || subModels.length == 0) return modelKey;
+		if (subModels == null || subModels.length == 0) return Integer.toString(model);
+		StringBuilder modelKey = new StringBuilder();
+		modelKey.append(model);
 		for (String sub: subModels)
-			modelKey = "."+sub;
+			modelKey.append('.').append(sub);
 
-		return modelKey;
+		return modelKey.toString();
+	}
+
+	/**
+	 * Compare two models by model number, then by submodel ids. Numeric ids are compared as
+	 * numbers, and a model comes before its submodels.
+	 */
+	public static int compareModelIds(int model1, String[] subModels1, int model2,
+			String[] subModels2) {
+		if (model1 != model2)
+			return model1 < model2 ? -1 : 1;
+		int length1 = subModels1 == null ? 0 : subModels1.length;
+		int length2 = subModels2 == null ? 0 : subModels2.length;
+		for (int level = 0; level < length1 && level < length2; level++) {
+			String sub1 = subModels1[level];
+			String sub2 = subModels2[level];
+			int result;
+			try {
+				result = Integer.compare(Integer.parseInt(sub1), Integer.parseInt(sub2));
+			} catch (NumberFormatException e) {
+				result = sub1.compareTo(sub2);
+			}
+			if (result == 0)
+				result = sub1.compareTo(sub2);
+			if (result != 0)
+				return result;
+		}
+		return Integer.compare(length1, length2);
+	}
+
+	/**
+	 * Value returned by {@link #makeResidueKey(int, String)} for residue indices it can't pack
+	 */
+	public static final long NO_RESIDUE_KEY = Long.MIN_VALUE;
+
+	/**
+	 * Pack a chain and residue index into a single long for use as a lookup key. The chain is
+	 * represented by a small per-model ordinal, and the residue index is of the form
+	 * [-]number[insertion code].
+	 * 
+	 * @param chainOrdinal
+	 *            the (non-negative) ordinal of the chain within its model
+	 * @param index
+	 *            the residue index, e.g. "355" or "27A"
+	 * @return the packed key, or NO_RESIDUE_KEY if the index doesn't have the expected form
+	 */
+	public static long makeResidueKey(int chainOrdinal, String index) {
+		if (index == null || chainOrdinal < 0)
+			return NO_RESIDUE_KEY;
+		int length = index.length();
+		int pos = 0;
+		boolean negative = false;
+		if (pos < length && index.charAt(pos) == '-') {
+			negative = true;
+			pos++;
+		}
+		int start = pos;
+		long number = 0;
+		while (pos < length && Character.isDigit(index.charAt(pos))) {
+			number = number * 10 + (index.charAt(pos) - '0');
+			if (number > Integer.MAX_VALUE)
+				return NO_RESIDUE_KEY;
+			pos++;
+		}
+		if (pos == start)
+			return NO_RESIDUE_KEY;
+		int insertionCode = 0;
+		if (pos < length) {
+			// At most a single character insertion code
+			if (pos != length - 1 || index.charAt(pos) > 0xFF)
+				return NO_RESIDUE_KEY;
+			insertionCode = index.charAt(pos);
+		}
+		if (negative)
+			number = -number;
+		return ((long) chainOrdinal << 40) | ((long) insertionCode << 32) | (number & 0xFFFFFFFFL);
 	}
 
 	// invoked by the getResdiue (parseConnectivityReplies in CreateStructureNetworkTask)
@@ -113,15 +191,7 @@ public abstract class ChimUtils {
 	// atomSpec = #0:1.A or #1:96.B@N
 	public static ChimeraResidue getResidue(String atomSpec, ChimeraManager chimeraManager) {
 		// System.out.println("Getting residue from: "+atomSpec);
-		AtomSpec spec = AtomSpec.getChimeraXAtomSpec(atomSpec, chimeraManager.getStructureManager());
-		ChimeraModel model = chimeraManager.getChimeraModel(spec);
-		if (model == null) {
-			model = chimeraManager.getChimeraModel();
-		}
-		String chain = "_";
-		if (spec.getChainId() != null)
-			chain = spec.getChainId();
-		return model.getResidue(chain, spec.getResidueIndex());
+		return chimeraManager.getResidue(atomSpec);
 	}
 
 	// invoked by the parseConnectivityReplies in CreateStructureNetworkTask
@@ -392,7 +462,22 @@ public abstract class ChimUtils {
 		}
 
 		AtomSpec spec = AtomSpec.getAttributeAtomSpec(attrSpec, chimeraManager.getStructureManager());
+		return fromAtomSpec(spec, attrSpec, chimeraManager);
+	}
 
+	/**
+	 * Find the structural object for an attribute spec that has already been parsed
+	 * 
+	 * @param spec
+	 *            the parsed spec
+	 * @param attrSpec
+	 *            the original attribute value, for error messages
+	 * @param chimeraManager
+	 *            the Chimera manager
+	 * @return the residue, chain or model, or <code>null</code> if the model isn't open
+	 */
+	public static ChimeraStructuralObject fromAtomSpec(AtomSpec spec, String attrSpec,
+			ChimeraManager chimeraManager) {
 		ChimeraModel chimeraModel = null;
 		ChimeraChain chimeraChain = null;
 		ChimeraResidue chimeraResidue = null;
@@ -0,0 +1,216 @@
+package edu.ucsf.rbvi.structureVizX.internal.model;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Handles the model and selection change notifications that ChimeraX sends us. ChimeraX tends
+ * to send these in bursts (e.g. one per click when the user is selecting residues), and each
+ * one costs us at least one round-trip to ChimeraX. Rather than handling each notification in
+ * its own thread, notifications are handed to a single consumer thread, which waits until no
+ * new notification of the same kind has arrived for the coalesce window and then handles all
+ * of them at once.
+ *
+ * A notification that arrives while we're handling an earlier one is always handled
+ * afterwards, so the last notification of a burst is never lost.
+ */
+public class ChimeraEventQueue {
+	public enum EventType {
+		// Models are updated before selections, since a selection may refer to a new model
+		MODEL_CHANGED, SELECTION_CHANGED
+	};
+
+	// Default coalesce window in milliseconds
+	static long DEFAULT_WINDOW = 100;
+	// A steady stream of notifications is still handled at least this often (in windows)
+	static int MAX_WINDOWS = 10;
+
+	private final StructureManager structureManager;
+	private long window = DEFAULT_WINDOW;
+
+	// For each pending event type: when it was first and last posted, and how often
+	private final Map<EventType, long[]> pending = new EnumMap<EventType, long[]>(EventType.class);
+	private final Map<EventType, Integer> pendingCounts = new EnumMap<EventType, Integer>(
+			EventType.class);
+
+	private int posted = 0;
+	private int handled = 0;
+	private int coalesced = 0;
+
+	private Thread consumer = null;
+	private boolean stopped = false;
+
+	public ChimeraEventQueue(StructureManager structureManager) {
+		this.structureManager = structureManager;
+	}
+
+	/**
+	 * Queue a notification from ChimeraX. This returns immediately.
+	 *
+	 * @param type
+	 *            the kind of notification
+	 */
+	public synchronized void post(EventType type) {
+		long now = System.currentTimeMillis();
+		posted++;
+		if (pending.containsKey(type)) {
+			pending.get(type)[1] = now;
+			pendingCounts.put(type, pendingCounts.get(type) + 1);
+		} else {
+			pending.put(type, new long[] { now, now });
+			pendingCounts.put(type, 1);
+		}
+		stopped = false;
+		if (consumer == null) {
+			consumer = new EventConsumer();
+			consumer.start();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Set the coalesce window. Notifications of the same type that arrive within this long of
+	 * each other are handled together.
+	 *
+	 * @param milliseconds
+	 *            the window, or 0 to handle notifications as soon as possible
+	 */
+	public synchronized void setWindow(long milliseconds) {
+		this.window = Math.max(0, milliseconds);
+		notifyAll();
+	}
+
+	public synchronized long getWindow() {
+		return window;
+	}
+
+	/**
+	 * @return the number of notifications waiting to be handled
+	 */
+	public synchronized int getQueueDepth() {
+		int depth = 0;
+		for (Integer count : pendingCounts.values())
+			depth += count;
+		return depth;
+	}
+
+	/**
+	 * @return the number of notifications we've received
+	 */
+	public synchronized int getPostedCount() {
+		return posted;
+	}
+
+	/**
+	 * @return the number of times we actually updated models or selections
+	 */
+	public synchronized int getHandledCount() {
+		return handled;
+	}
+
+	/**
+	 * @return the number of notifications that were folded into another one
+	 */
+	public synchronized int getCoalescedCount() {
+		return coalesced;
+	}
+
+	public synchronized String toString() {
+		return "queue depth: " + getQueueDepth() + ", posted: " + posted + ", handled: " + handled
+				+ ", coalesced: " + coalesced;
+	}
+
+	/**
+	 * Stop the consumer thread and drop any pending notifications. Posting a new notification
+	 * starts it again.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		pending.clear();
+		pendingCounts.clear();
+		notifyAll();
+	}
+
+	/**
+	 * Wait until there are events that have been quiet for the coalesce window and remove them
+	 * from the queue.
+	 *
+	 * @return the events to handle, in order, or <code>null</code> if we've been stopped
+	 */
+	private synchronized List<EventType> take() throws InterruptedException {
+		while (true) {
+			if (stopped) {
+				consumer = null;
+				return null;
+			}
+			long now = System.currentTimeMillis();
+			long wait = Long.MAX_VALUE;
+			List<EventType> ready = new ArrayList<EventType>();
+			for (EventType type : pending.keySet()) {
+				long[] times = pending.get(type);
+				long due = Math.min(times[1] + window, times[0] + window * MAX_WINDOWS);
+				if (due <= now)
+					ready.add(type);
+				else
+					wait = Math.min(wait, due - now);
+			}
+			if (ready.size() > 0) {
+				for (EventType type : ready) {
+					pending.remove(type);
+					coalesced += pendingCounts.remove(type) - 1;
+					handled++;
+				}
+				return ready;
+			}
+			if (wait == Long.MAX_VALUE)
+				wait(0);
+			else
+				wait(wait);
+		}
+	}
+
+	private void handle(EventType type) {
+		switch (type) {
+		case MODEL_CHANGED:
+			structureManager.updateModels();
+			structureManager.modelChanged();
+			break;
+		case SELECTION_CHANGED:
+			structureManager.chimeraSelectionChanged();
+			break;
+		}
+	}
+
+	class EventConsumer extends Thread {
+		public EventConsumer() {
+			super("structureViz ChimeraX events");
+			setDaemon(true);
+		}
+
+		public void run() {
+			while (true) {
+				List<EventType> events;
+				try {
+					events = take();
+				} catch (InterruptedException e) {
+					synchronized (ChimeraEventQueue.this) {
+						consumer = null;
+					}
+					return;
+				}
+				if (events == null)
+					return;
+				for (EventType type : events) {
+					try {
+						handle(type);
+					} catch (Exception e) {
+						structureManager.logWarning("Unable to handle ChimeraX " + type
+								+ " notification: " + e.getMessage());
+					}
+				}
+			}
+		}
+	}
+}
@@ -11,9 +11,19 @@ import java.net.URL;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.client.config.CookieSpecs;
@@ -25,22 +35,31 @@ import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 import org.cytoscape.application.CyUserLog;
 import org.apache.log4j.Logger;
+import org.cytoscape.work.TaskMonitor;
 
 import edu.ucsf.rbvi.structureVizX.internal.io.ChimeraIO;
+import edu.ucsf.rbvi.structureVizX.internal.io.StructureFileReader;
 import edu.ucsf.rbvi.structureVizX.internal.model.StructureManager.ModelType;
+import edu.ucsf.rbvi.structureVizX.internal.utils.StringUtils;
 
 /**
  * This object maintains the Chimera communication information.
  */
 public class ChimeraManager {
-	static private Map<String, ChimeraModel> currentModelsMap;
+	private final ChimeraModelRegistry currentModels = new ChimeraModelRegistry();
+
+	// The number of open commands to send to Chimera in a single request, so that fetching a
+	// lot of structures doesn't run past the request timeout
+	static int OPEN_BATCH_SIZE = 10;
 
 	private StructureManager structureManager;
 	private ChimeraIO chimera;
 
+	// Residues we've already looked up, keyed by the residue part of their atom spec
+	private final Map<String, ChimeraResidue> residueSpecCache = new ConcurrentHashMap<String, ChimeraResidue>();
+
 	public ChimeraManager(StructureManager structureManager, ChimeraIO chimera) {
 		this.structureManager = structureManager;
-		currentModelsMap = new HashMap<String, ChimeraModel>();
 		this.chimera = chimera;
 	}
 
@@ -51,12 +70,7 @@ public class ChimeraManager {
 	}
 
 	public List<ChimeraModel> getChimeraModels(String modelName, ModelType modelType) {
-		List<ChimeraModel> models = new ArrayList<ChimeraModel>();
-		for (ChimeraModel model : currentModelsMap.values()) {
-			if (modelName.equals(model.getModelName()) && modelType.equals(model.getModelType())) {
-				models.add(model);
-			}
-		}
+		List<ChimeraModel> models = currentModels.get(modelName, modelType);
 
 		// If we didn't find the model, see if it's an atom spec
 		if (modelName.indexOf("#") >= 0) {
@@ -71,7 +85,7 @@ public class ChimeraManager {
 
 	public Map<String, List<ChimeraModel>> getChimeraModelsMap() {
 		Map<String, List<ChimeraModel>> models = new HashMap<String, List<ChimeraModel>>();
-		for (ChimeraModel model : currentModelsMap.values()) {
+		for (ChimeraModel model : currentModels.getModels()) {
 			String modelName = model.getModelName();
 			if (!models.containsKey(modelName)) {
 				models.put(modelName, new ArrayList<ChimeraModel>());
@@ -84,43 +98,64 @@ public class ChimeraManager {
 	}
 
 	public ChimeraModel getChimeraModel(Integer modelNumber, String[] subModelIds) {
-		String key = ChimUtils.makeModelKey(modelNumber, subModelIds);
-		if (currentModelsMap.containsKey(key)) {
-			return currentModelsMap.get(key);
-		}
-		return null;
+		return currentModels.get(modelNumber, subModelIds);
 	}
 
 	public ChimeraModel getChimeraModel(AtomSpec spec) {
-		String key = ChimUtils.makeModelKey(spec.getModelNumber(), spec.getSubModelIds());
-		if (currentModelsMap.containsKey(key)) {
-			return currentModelsMap.get(key);
-		}
-		return null;
+		return currentModels.get(spec.getModelNumber(), spec.getSubModelIds());
 	}
 
 	public ChimeraModel getChimeraModel() {
-		return currentModelsMap.values().iterator().next();
+		return currentModels.getFirst();
+	}
+
+	/**
+	 * Get the residue for a ChimeraX atom spec such as #1/A:355@CA.  Specs are cached, so
+	 * repeated lookups of the same residue don't need to parse the spec again.  If the spec
+	 * doesn't include a known model, the first model is used.
+	 * 
+	 * @param atomSpec
+	 *            the atom or residue spec
+	 * @return the residue, or <code>null</code> if it can't be found
+	 */
+	public ChimeraResidue getResidue(String atomSpec) {
+		int atom = atomSpec.indexOf('@');
+		String residueSpec = atom >= 0 ? atomSpec.substring(0, atom) : atomSpec;
+		ChimeraResidue residue = residueSpecCache.get(residueSpec);
+		if (residue != null)
+			return residue;
+
+		AtomSpec spec = AtomSpec.getChimeraXAtomSpec(residueSpec, structureManager);
+		ChimeraModel model = getChimeraModel(spec);
+		if (model == null) {
+			model = getChimeraModel();
+		}
+		residue = ChimUtils.getResidue(spec, model, this);
+		if (residue != null)
+			residueSpecCache.put(residueSpec, residue);
+		return residue;
+	}
+
+	/**
+	 * Forget all of the residues we've looked up.  This needs to be called whenever
+	 * models or residues change.
+	 */
+	public void clearResidueCache() {
+		residueSpecCache.clear();
 	}
 
 	public Collection<ChimeraModel> getChimeraModels() {
 		// this method is invoked by the model navigator dialog
-		return currentModelsMap.values();
+		return currentModels.getModels();
 	}
 
 	public int getChimeraModelsCount(boolean smiles) {
 		// this method is invokes by the model navigator dialog
-		int counter = currentModelsMap.size();
+		int counter = currentModels.size();
 		if (smiles) {
 			return counter;
 		}
-
-		for (ChimeraModel model : currentModelsMap.values()) {
-			if (model.getModelType() == ModelType.SMILES) {
-				counter--;
-			}
-		}
-		return counter;
+		return counter - currentModels.size(ModelType.SMILES);
 	}
 
 	public boolean hasChimeraModel(Integer modelNubmer) {
@@ -128,89 +163,206 @@ public class ChimeraManager {
 	}
 
 	public boolean hasChimeraModel(Integer modelNubmer, String[] subModels) {
-		return currentModelsMap.containsKey(ChimUtils.makeModelKey(modelNubmer, subModels));
+		return currentModels.contains(modelNubmer, subModels);
 	}
 
 	public void addChimeraModel(Integer modelNumber, String[] subModels, ChimeraModel model) {
-		currentModelsMap.put(ChimUtils.makeModelKey(modelNumber, subModels), model);
+		currentModels.put(modelNumber, subModels, model);
+		clearResidueCache();
 	}
 
 	public void removeChimeraModel(Integer modelNumber, String[] subModels) {
-		String modelKey = ChimUtils.makeModelKey(modelNumber, subModels);
-		if (currentModelsMap.containsKey(modelKey)) {
-			currentModelsMap.remove(modelKey);
-		}
+		currentModels.remove(modelNumber, subModels);
+		clearResidueCache();
 	}
 
 	public List<ChimeraModel> openModel(String modelPath, ModelType type) {
-		structureManager.logInfo("chimera open " + modelPath);
+		return openModels(Collections.singletonList(modelPath), type, null).get(modelPath);
+	}
+
+	/**
+	 * Open several structures at once. The open commands go to Chimera in requests of
+	 * {@link #OPEN_BATCH_SIZE}, and the new models are found with a single model list. Their colors and residues are also
+	 * fetched in one request each, and residues of local structure files are read from the file.
+	 * 
+	 * @param modelPaths
+	 *            the files, PDB ids, etc. to open
+	 * @param type
+	 *            the type of all of the models
+	 * @param taskMonitor
+	 *            the monitor to report progress to, or <code>null</code>
+	 * @return the new models for each path that was opened, in the order of the paths
+	 */
+	public Map<String, List<ChimeraModel>> openModels(List<String> modelPaths, ModelType type,
+			TaskMonitor taskMonitor) {
+		Map<String, List<ChimeraModel>> openedModels = new LinkedHashMap<String, List<ChimeraModel>>();
+		if (modelPaths.size() == 0) {
+			return openedModels;
+		}
 		chimera.stopListening();
-		List<String> response = null;
 
-		// Get the current list of open models
-		List<ChimeraModel> modelList = getModelList();
+		List<String> opened = new ArrayList<String>();
+		int next = 0;
+		while (next < modelPaths.size()) {
+			if (!chimera.isChimeraLaunched()) {
+				// We lost Chimera, so there's no point trying the rest
+				for (String modelPath : modelPaths.subList(next, modelPaths.size()))
+					structureManager.logWarning("Could not open " + modelPath);
+				break;
+			}
+			List<String> batch = modelPaths.subList(next,
+					Math.min(next + OPEN_BATCH_SIZE, modelPaths.size()));
+			List<String> commands = new ArrayList<String>();
+			for (String modelPath : batch) {
+				structureManager.logInfo("chimera open " + modelPath);
+				commands.add(getOpenCommand(modelPath, type));
+			}
+			List<List<String>> responses = chimera.sendChimeraCommands(commands, true);
+			int i = 0;
+			while (i < batch.size() && responses != null && i < responses.size()
+					&& responses.get(i) != null) {
+				opened.add(batch.get(i++));
+			}
+			if (i < batch.size()) {
+				// Chimera stops at the first open that fails, so report that one and send the
+				// ones after it again
+				structureManager.logWarning("Could not open " + batch.get(i));
+				i++;
+			}
+			next += i;
+			if (taskMonitor != null) {
+				taskMonitor.setStatusMessage("Opening structures (" + next + " of "
+						+ modelPaths.size() + ")");
+			}
+		}
+		if (opened.size() == 0) {
+			chimera.startListening();
+			return openedModels;
+		}
 
-		String name = null;
-		// Check to see if we are actually loading from files.  If so,
-		// override the name
-		if (modelPath.endsWith(".pdb") || modelPath.endsWith(".cif")) {
-			File path = new File(modelPath); // Make it a file object
-			if (path.isFile()) {
-				name = path.getName();
-				name = name.substring(0, name.length()-4); // Strip off the suffix
+		// The new models are the ones we didn't know about yet. Each open creates one top-level
+		// model (with a submodel per model in the file), numbered in the order we opened them.
+		SortedMap<Integer, List<ChimeraModel>> newModels = new TreeMap<Integer, List<ChimeraModel>>();
+		for (ChimeraModel model : getModelList()) {
+			if (hasChimeraModel(model.getModelNumber(), model.getSubModelIds()))
+				continue;
+			addChimeraModel(model.getModelNumber(), model.getSubModelIds(), model);
+			if (!newModels.containsKey(model.getModelNumber()))
+				newModels.put(model.getModelNumber(), new ArrayList<ChimeraModel>());
+			newModels.get(model.getModelNumber()).add(model);
+		}
+		if (newModels.size() == opened.size()) {
+			int i = 0;
+			for (List<ChimeraModel> models : newModels.values())
+				openedModels.put(opened.get(i++), models);
+		} else {
+			// Something else opened or failed to open, so go by the model names
+			for (String modelPath : opened) {
+				String name = getModelName(modelPath, type);
+				for (List<ChimeraModel> models : newModels.values()) {
+					if (name.equalsIgnoreCase(models.get(0).getModelName())) {
+						openedModels.put(modelPath, models);
+						break;
+					}
+				}
+				if (!openedModels.containsKey(modelPath))
+					structureManager.logWarning("Could not find the models for " + modelPath);
+			}
+		}
+
+		// assign color and residues to open models
+		Map<String, Map<String, String>> attributes = getModelAttributes("color");
+		List<ChimeraModel> residueModels = new ArrayList<ChimeraModel>();
+		int done = 0;
+		for (String modelPath : openedModels.keySet()) {
+			List<ChimeraModel> models = openedModels.get(modelPath);
+			File sourceFile = getSourceFile(modelPath, type);
+			for (ChimeraModel newModel : models) {
+				newModel.setSourceFile(sourceFile);
+				// get model color
+				Color modelColor = getModelColor(newModel, attributes);
+				if (modelColor != null) {
+					newModel.setModelColor(modelColor);
+				}
+			}
+			// Create the information we need for the navigator, reading the residues ourselves
+			// if we have the file
+			if (type != ModelType.SMILES
+					&& (type == ModelType.MODBASE_MODEL || !StructureFileReader.canRead(modelPath) || !addResidues(
+							models, new File(modelPath)))) {
+				residueModels.addAll(models);
+			}
+			done++;
+			if (taskMonitor != null) {
+				taskMonitor.setStatusMessage("Opened " + modelPath + " (" + done + " of "
+						+ opened.size() + ")");
+				taskMonitor.setProgress((double) done / opened.size());
 			}
 		}
+		addResidues(residueModels);
 
+		chimera.sendChimeraCommand("view", false);
+		chimera.startListening();
+		return openedModels;
+	}
+
+	private String getOpenCommand(String modelPath, ModelType type) {
 		// TODO: [Optional] Handle modbase models
 		if (type == ModelType.MODBASE_MODEL) {
-			response = chimera.sendChimeraCommand("open modbase:" + modelPath, true);
+			return "open modbase:" + modelPath;
 			// } else if (type == ModelType.SMILES) {
 			// response = chimera.sendChimeraCommand("open smiles:" + modelName, true);
 			// modelName = "smiles:" + modelName;
-		} else {
-			if (name == null)
-				response = chimera.sendChimeraCommand("open " + modelPath, true);
-			else
-				response = chimera.sendChimeraCommand("open " + modelPath + " name " + name, true);
-		}
-		if (response == null) {
-			// something went wrong
-			structureManager.logWarning("Could not open " + modelPath);
-			return null;
 		}
+		String name = getFileModelName(modelPath);
+		if (name == null)
+			return "open " + modelPath;
+		return "open " + modelPath + " name " + name;
+	}
 
-		List<ChimeraModel> models = new ArrayList<ChimeraModel>();
+	/**
+	 * @return the name Chimera will give the model we open from a path
+	 */
+	private String getModelName(String modelPath, ModelType type) {
+		String name = getFileModelName(modelPath);
+		if (name != null)
+			return name;
+		return type == ModelType.MODBASE_MODEL ? "modbase:" + modelPath : modelPath;
+	}
 
-		for (ChimeraModel model: getModelList()) {
-			for (ChimeraModel oldModel: modelList) {
-				if (model.getModelNumber() != oldModel.getModelNumber())
-					break;
+	private String getFileModelName(String modelPath) {
+		// Check to see if we are actually loading from files.  If so,
+		// override the name
+		if (modelPath.endsWith(".pdb") || modelPath.endsWith(".cif")) {
+			File path = new File(modelPath); // Make it a file object
+			if (path.isFile()) {
+				String name = path.getName();
+				return name.substring(0, name.length()-4); // Strip off the suffix
 			}
-			models.add(model);
-			addChimeraModel(model.getModelNumber(), model.getSubModelIds(), model);
 		}
+		return null;
+	}
 
-		// assign color and residues to open models
-		for (ChimeraModel newModel : models) {
-			// get model color
-			Color modelColor = getModelColor(newModel);
-			if (modelColor != null) {
-				newModel.setModelColor(modelColor);
-			}
-
-			// Get our properties (default color scheme, etc.)
-			// Make the molecule look decent
-			// chimeraSend("repr stick "+newModel.toSpec());
-
-			// Create the information we need for the navigator
-			if (type != ModelType.SMILES) {
-				addResidues(newModel);
-			}
-		}
+	/**
+	 * Only structures opened from local files can be identified by their content, since a
+	 * fetched entry may be revised after we have seen it.
+	 * 
+	 * @return the local file we opened from a path, or <code>null</code> if it was fetched
+	 */
+	private File getSourceFile(String modelPath, ModelType type) {
+		if (type == ModelType.SMILES || type == ModelType.MODBASE_MODEL)
+			return null;
+		File file = new File(modelPath);
+		return file.isFile() ? file : null;
+	}
 
-		chimera.sendChimeraCommand("view", false);
-		chimera.startListening();
-		return models;
+	private Color getModelColor(ChimeraModel model, Map<String, Map<String, String>> attributes) {
+		if (attributes == null || attributes.get("color") == null)
+			return getModelColor(model);
+		String line = attributes.get("color").get(model.toSpec());
+		if (line == null)
+			return null;
+		return ChimUtils.parseModelColor(line);
 	}
 
 	public void closeModel(ChimeraModel model) {
@@ -218,12 +370,11 @@ public class ChimeraManager {
 
 		chimera.stopListening();
 		structureManager.logInfo("chimera close model " + model.getModelName());
-		if (currentModelsMap.containsKey(ChimUtils.makeModelKey(model.getModelNumber(),
-				model.getSubModelIds()))) {
+		if (currentModels.contains(model.getModelNumber(), model.getSubModelIds())) {
 			chimera.sendChimeraCommand("close " + model.toSpec(), false);
 			// currentModelNamesMap.remove(model.getModelName());
-			currentModelsMap.remove(ChimUtils.makeModelKey(model.getModelNumber(),
-					model.getSubModelIds()));
+			currentModels.remove(model.getModelNumber(), model.getSubModelIds());
+			clearResidueCache();
 			// selectionList.remove(chimeraModel);
 		} else {
 			structureManager.logWarning("Could not find model " + model.getModelName() + " to close.");
@@ -346,6 +497,41 @@ public class ChimeraManager {
 		return ChimUtils.parseModelColor((String) colorLines.get(0));
 	}
 
+	/**
+	 * Get the values of some attributes for all of the open atomic structures. All of the
+	 * queries go to ChimeraX in a single request, rather than one request per model.
+	 *
+	 * @param attributes
+	 *            the ChimeraX model attributes to get (e.g. "num_residues")
+	 * @return a map from attribute name to a map from model spec (e.g. "#1.2") to the reply line
+	 *         for that model, or <code>null</code> if ChimeraX didn't answer
+	 */
+	public Map<String, Map<String, String>> getModelAttributes(String... attributes) {
+		List<String> commands = new ArrayList<String>(attributes.length);
+		for (String attribute : attributes)
+			commands.add("info models type AtomicStructure attribute " + attribute);
+		List<List<String>> replies = chimera.sendChimeraCommands(commands, true);
+		if (replies == null || replies.size() != attributes.length)
+			return null;
+
+		Map<String, Map<String, String>> values = new HashMap<String, Map<String, String>>();
+		for (int i = 0; i < attributes.length; i++) {
+			Map<String, String> modelValues = new HashMap<String, String>();
+			List<String> reply = replies.get(i);
+			if (reply != null) {
+				for (String line : reply) {
+					// model id #1.2 type AtomicStructure attribute value
+					String[] tokens = StringUtils.splitOnWhitespace(line.trim());
+					if (tokens.length < 3 || !tokens[0].equals("model"))
+						continue;
+					modelValues.put(tokens[2], line);
+				}
+			}
+			values.put(attributes[i], modelValues);
+		}
+		return values;
+	}
+
 	/**
 	 * 
 	 * Get information about the residues associated with a model. This uses the Chimera listr
@@ -369,6 +555,128 @@ public class ChimeraManager {
 				model.addResidue(r);
 			}
 		}
+		clearResidueCache();
+	}
+
+	/**
+	 * Get information about the residues of several models with a single Chimera request, and
+	 * add the residues to the models.
+	 * 
+	 * @param models
+	 *            the ChimeraModels to get residue information for
+	 */
+	public void addResidues(List<ChimeraModel> models) {
+		if (models.size() == 0) {
+			return;
+		}
+		Map<String, ChimeraModel> modelMap = new HashMap<String, ChimeraModel>();
+		String spec = "";
+		for (ChimeraModel model : models) {
+			modelMap.put(ChimUtils.getModelString(model), model);
+			spec += " " + model.toSpec();
+		}
+		List<String> reply = chimera.sendChimeraCommand("info residues" + spec, true);
+		if (reply == null) {
+			return;
+		}
+		for (String inputLine : reply) {
+			AtomSpec atomSpec = AtomSpec.getListInfoAtomSpec(inputLine, structureManager);
+			ChimeraResidue r = new ChimeraResidue(atomSpec);
+			ChimeraModel model = modelMap.get(ChimUtils.getModelString(r));
+			if (model != null) {
+				model.addResidue(r);
+			}
+		}
+		clearResidueCache();
+	}
+
+	/**
+	 * Check, with a single Chimera request, whether the residues of some models are still the
+	 * ones we know about. Commands like <code>swapaa</code> change residue types without
+	 * changing the number of residues, so the residue count alone isn't enough.
+	 * 
+	 * @param models
+	 *            the ChimeraModels, with their residues, to check
+	 * @return the models whose residues have changed, or that we couldn't check
+	 */
+	public Set<ChimeraModel> getChangedModels(Collection<ChimeraModel> models) {
+		Set<ChimeraModel> changed = new HashSet<ChimeraModel>();
+		if (models.size() == 0) {
+			return changed;
+		}
+		Map<String, ChimeraModel> modelMap = new HashMap<String, ChimeraModel>();
+		String spec = "";
+		for (ChimeraModel model : models) {
+			modelMap.put(ChimUtils.getModelString(model), model);
+			spec += " " + model.toSpec();
+		}
+		List<String> reply = chimera.sendChimeraCommand("info residues" + spec, true);
+		if (reply == null) {
+			changed.addAll(models);
+			return changed;
+		}
+		Map<ChimeraModel, Integer> matched = new HashMap<ChimeraModel, Integer>();
+		for (String inputLine : reply) {
+			AtomSpec atomSpec = AtomSpec.getListInfoAtomSpec(inputLine, structureManager);
+			ChimeraResidue r = new ChimeraResidue(atomSpec);
+			ChimeraModel model = modelMap.get(ChimUtils.getModelString(r));
+			if (model == null || changed.contains(model)) {
+				continue;
+			}
+			ChimeraResidue known = model.getResidue(r.getChainId(), r.getIndex());
+			if (known == null || !known.getType().equals(r.getType())) {
+				changed.add(model);
+			} else {
+				Integer count = matched.get(model);
+				matched.put(model, count == null ? 1 : count + 1);
+			}
+		}
+		for (ChimeraModel model : models) {
+			Integer count = matched.get(model);
+			if (count == null || count != model.getResidueCount()) {
+				changed.add(model);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Add the residues from a local structure file to the models Chimera created when it opened
+	 * the file. Chimera opens each model in the file as a separate (sub)model, in file order.
+	 * 
+	 * @param models
+	 *            the new models, in order
+	 * @param file
+	 *            the PDB or mmCIF file
+	 * @return false if we couldn't read the file or it doesn't match the models, in which case
+	 *         nothing was added
+	 */
+	private boolean addResidues(List<ChimeraModel> models, File file) {
+		List<StructureFileReader.ModelResidues> fileModels;
+		try {
+			fileModels = StructureFileReader.read(file);
+		} catch (IOException e) {
+			structureManager.logWarning("Unable to read residues from " + file + ": "
+					+ e.getMessage());
+			return false;
+		}
+		if (fileModels.size() != models.size()) {
+			return false;
+		}
+		for (int i = 0; i < models.size(); i++) {
+			ChimeraModel model = models.get(i);
+			StructureFileReader.ModelResidues residues = fileModels.get(i);
+			for (int residue = 0; residue < residues.size(); residue++) {
+				AtomSpec spec = AtomSpec.getAtomSpec(model);
+				String chainId = residues.getChainId(residue);
+				spec.setChainId(chainId == null ? "_" : chainId);
+				spec.setResidueType(residues.getResidueType(residue));
+				spec.setResidueIndex(residues.getResidueIndex(residue));
+				model.addResidue(new ChimeraResidue(spec));
+			}
+		}
+		clearResidueCache();
+		return true;
 	}
 
 	public List<String> getAttrList() {
@@ -398,21 +706,64 @@ public class ChimeraManager {
 				String[] lineParts = inputLine.split("\\s");
 				// Need to look for both old and new styles of spec
 				if (lineParts.length == 5 || lineParts.length == 7) {
-					ChimeraResidue residue = ChimUtils.getResidue(lineParts[2], model, this);
-					String value = lineParts[4];
-					if (residue != null) {
-						if (value.equals("None")) {
-							continue;
-						}
-						if (value.equals("True") || value.equals("False")) {
-							values.put(residue, Boolean.valueOf(value));
-							continue;
-						}
-						try {
-							Double doubleValue = Double.valueOf(value);
-							values.put(residue, doubleValue);
-						} catch (NumberFormatException ex) {
-							values.put(residue, value);
+					ChimeraResidue residue = getResidue(lineParts[2]);
+					Object value = parseAttrValue(lineParts[4]);
+					if (residue != null && residue.getChimeraModel() == model && value != null) {
+						values.put(residue, value);
+					}
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Get the values of several residue attributes for several models. The attributes of each
+	 * model are fetched in one request, and the request for the next model is queued before we
+	 * parse the replies for the last one. Attributes that Chimera rejects for a model are logged
+	 * and marked as failed in the result.
+	 * 
+	 * @param attributes
+	 *            the attribute names
+	 * @param models
+	 *            the models to get the values for
+	 * @return the values, by residue and attribute
+	 */
+	public ResidueAttributes getAttrValues(List<String> attributes, Collection<ChimeraModel> models) {
+		ResidueAttributes values = new ResidueAttributes(attributes);
+		List<ChimeraModel> modelList = new ArrayList<ChimeraModel>(models);
+		CompletableFuture<List<List<String>>> next = null;
+		for (int i = 0; i <= modelList.size(); i++) {
+			CompletableFuture<List<List<String>>> replies = next;
+			next = i < modelList.size() ? requestAttrValues(attributes, modelList.get(i)) : null;
+			if (replies == null)
+				continue;
+			ChimeraModel model = modelList.get(i - 1);
+			List<List<String>> modelReplies;
+			try {
+				modelReplies = replies.join();
+			} catch (CompletionException e) {
+				structureManager.logWarning("Could not get attributes for " + model.toSpec());
+				for (int attribute = 0; attribute < attributes.size(); attribute++)
+					values.setFailed(attribute);
+				continue;
+			}
+			for (int attribute = 0; attribute < attributes.size(); attribute++) {
+				List<String> reply = attribute < modelReplies.size() ? modelReplies.get(attribute) : null;
+				if (reply == null) {
+					structureManager.logWarning("Could not get attribute " + attributes.get(attribute)
+							+ " for " + model.toSpec());
+					values.setFailed(attribute);
+					continue;
+				}
+				for (String inputLine : reply) {
+					String[] lineParts = inputLine.split("\\s");
+					// Need to look for both old and new styles of spec
+					if (lineParts.length == 5 || lineParts.length == 7) {
+						ChimeraResidue residue = getResidue(lineParts[2]);
+						Object value = parseAttrValue(lineParts[4]);
+						if (residue != null && residue.getChimeraModel() == model && value != null) {
+							values.set(values.addResidue(residue), attribute, value);
 						}
 					}
 				}
@@ -421,6 +772,71 @@ public class ChimeraManager {
 		return values;
 	}
 
+	private CompletableFuture<List<List<String>>> requestAttrValues(List<String> attributes,
+			ChimeraModel model) {
+		final List<String> commands = new ArrayList<String>();
+		for (String attribute : attributes)
+			commands.add("info residue " + model.toSpec() + " attribute " + attribute);
+		final CompletableFuture<List<List<String>>> replies = new CompletableFuture<List<List<String>>>();
+		if (chimera.isCommandThread()) {
+			// We would wait for ourselves on the command thread, so just send it
+			replies.complete(sendAttrCommands(commands));
+			return replies;
+		}
+		chimera.runAsync(new Runnable() {
+			public void run() {
+				replies.complete(sendAttrCommands(commands));
+			}
+		}).exceptionally(new Function<Throwable, Void>() {
+			public Void apply(Throwable t) {
+				replies.completeExceptionally(t);
+				return null;
+			}
+		});
+		return replies;
+	}
+
+	/**
+	 * Chimera stops at the first attribute it rejects, so the attributes after that one are
+	 * sent again.
+	 * 
+	 * @return the replies, one per command, with <code>null</code> for the attributes that
+	 *         failed
+	 */
+	private List<List<String>> sendAttrCommands(List<String> commands) {
+		List<List<String>> replies = new ArrayList<List<String>>(commands.size());
+		while (replies.size() < commands.size() && chimera.isChimeraLaunched()) {
+			List<List<String>> batchReplies = chimera.sendChimeraCommands(
+					commands.subList(replies.size(), commands.size()), true);
+			int i = 0;
+			while (i < batchReplies.size() && batchReplies.get(i) != null)
+				replies.add(batchReplies.get(i++));
+			if (replies.size() < commands.size())
+				replies.add(null);
+		}
+		while (replies.size() < commands.size())
+			replies.add(null);
+		return replies;
+	}
+
+	/**
+	 * @return the value of a residue attribute as a Boolean, Double or String, or
+	 *         <code>null</code> if there isn't one
+	 */
+	private Object parseAttrValue(String value) {
+		if (value.equals("None")) {
+			return null;
+		}
+		if (value.equals("True") || value.equals("False")) {
+			return Boolean.valueOf(value);
+		}
+		try {
+			return Double.valueOf(value);
+		} catch (NumberFormatException ex) {
+			return value;
+		}
+	}
+
 	public boolean isChimeraLaunched() {
 		return chimera.isChimeraLaunched();
 	}
@@ -440,7 +856,8 @@ public class ChimeraManager {
 
 	public void exitChimera() {
 		chimera.exitChimera();
-		currentModelsMap.clear();
+		currentModels.clear();
+		clearResidueCache();
 		clearOnChimeraExit();
 	}
 
@@ -1,6 +1,7 @@
 package edu.ucsf.rbvi.structureVizX.internal.model;
 
 import java.awt.Color;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -18,6 +19,7 @@ import org.cytoscape.model.CyNode;
 import org.slf4j.LoggerFactory;
 
 import edu.ucsf.rbvi.structureVizX.internal.model.StructureManager.ModelType;
+import edu.ucsf.rbvi.structureVizX.internal.utils.LongObjectMap;
 
 /**
  * This class provides the implementation for the ChimeraModel, ChimeraChain, and ChimeraResidue
@@ -35,10 +37,15 @@ public class ChimeraModel implements ChimeraStructuralObject {
 
 	private Color modelColor = null; // The color of this model (from Chimera)
 	private Object userData = null; // User data associated with this model
+	private File sourceFile = null; // The local file this model was opened from
+	private long sourceModified = 0; // The modification time of that file when we opened it
+	private String contentHash = null; // A hash of the structure this model was opened from
 	private boolean selected = false; // The selected state of this model
 
 	private TreeMap<String, ChimeraChain> chainMap; // The list of chains
 	// private TreeMap<String, ChimeraResidue> residueMap; // The list of residues
+	private Map<String, Integer> chainOrdinals; // Small integer ids for our chains
+	private LongObjectMap<ChimeraResidue> residueIndex; // Residues by packed chain and index
 	private Map<CyIdentifiable, CyNetwork> cyObjects; // The list of Cytoscape objects
 	private HashSet<ChimeraResidue> funcResidues; // List of functional residues
 
@@ -61,6 +68,8 @@ public class ChimeraModel implements ChimeraStructuralObject {
 		this.subModelIds = subModelIds;
 
 		this.chainMap = new TreeMap<String, ChimeraChain>();
+		this.chainOrdinals = new HashMap<String, Integer>();
+		this.residueIndex = new LongObjectMap<ChimeraResidue>();
 		this.cyObjects = new HashMap<CyIdentifiable, CyNetwork>();
 		this.funcResidues = new HashSet<ChimeraResidue>();
 		System.out.println("ChimeraModel: "+name);
@@ -99,6 +108,8 @@ public class ChimeraModel implements ChimeraStructuralObject {
 		this.subModelIds = spec.getSubModelIds();
 
 		this.chainMap = new TreeMap<String, ChimeraChain>();
+		this.chainOrdinals = new HashMap<String, Integer>();
+		this.residueIndex = new LongObjectMap<ChimeraResidue>();
 		this.cyObjects = new HashMap<CyIdentifiable, CyNetwork>();
 		this.funcResidues = new HashSet<ChimeraResidue>();
 	}
@@ -137,10 +148,16 @@ public class ChimeraModel implements ChimeraStructuralObject {
 			chain = new ChimeraChain(this.modelNumber, this.subModelIds, chainId);
 			chain.setChimeraModel(this);
 			chainMap.put(chainId, chain);
+			chainOrdinals.put(chainId, chainOrdinals.size());
 		} else {
 			chain = chainMap.get(chainId);
 		}
 		chain.addResidue(residue);
+
+		// Index the residue so that lookups don't have to walk the chain maps
+		long key = ChimUtils.makeResidueKey(chainOrdinals.get(chainId), residue.getIndex());
+		if (key != ChimUtils.NO_RESIDUE_KEY)
+			residueIndex.put(key, residue);
 	}
 
 	/**
@@ -269,6 +286,49 @@ public class ChimeraModel implements ChimeraStructuralObject {
 		}
 	}
 
+	/**
+	 * Get a hash of the structure this model was opened from. Models opened from the same file
+	 * contents have the same hash, whatever their model number. The file is only hashed the
+	 * first time the hash is needed.
+	 * 
+	 * @return the hash, or <code>null</code> if the model wasn't opened from a local file, or the
+	 *         file has changed since it was opened
+	 */
+	public synchronized String getContentHash() {
+		if (contentHash == null && sourceFile != null) {
+			if (sourceFile.lastModified() != sourceModified)
+				return null;
+			String fileHash = AlignmentCache.hashFile(sourceFile);
+			if (fileHash != null)
+				contentHash = fileHash + getSubModelString();
+		}
+		return contentHash;
+	}
+
+	/**
+	 * Get the local file this model was opened from
+	 * 
+	 * @return the file, or <code>null</code> if the model wasn't opened from a local file, or the
+	 *         file has changed since it was opened
+	 */
+	public synchronized File getSourceFile() {
+		if (sourceFile == null || sourceFile.lastModified() != sourceModified)
+			return null;
+		return sourceFile;
+	}
+
+	/**
+	 * Set the local file this model was opened from
+	 * 
+	 * @param sourceFile
+	 *            the file, or <code>null</code> if the model was fetched
+	 */
+	public synchronized void setSourceFile(File sourceFile) {
+		this.sourceFile = sourceFile;
+		this.sourceModified = sourceFile == null ? 0 : sourceFile.lastModified();
+		this.contentHash = null;
+	}
+
 	/**
 	 * Get the user data for this model
 	 * 
@@ -391,10 +451,14 @@ public class ChimeraModel implements ChimeraStructuralObject {
 	 * @return the residue associated with that index
 	 */
 	public ChimeraResidue getResidue(String chainId, String index) {
-		if (chainMap.containsKey(chainId)) {
-			return chainMap.get(chainId).getResidue(index);
-		}
-		return null;
+		Integer chainOrdinal = chainOrdinals.get(chainId);
+		if (chainOrdinal == null)
+			return null;
+		long key = ChimUtils.makeResidueKey(chainOrdinal, index);
+		if (key != ChimUtils.NO_RESIDUE_KEY)
+			return residueIndex.get(key);
+		// Not something we could index
+		return chainMap.get(chainId).getResidue(index);
 	}
 
 	/**
@@ -0,0 +1,244 @@
+package edu.ucsf.rbvi.structureVizX.internal.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import edu.ucsf.rbvi.structureVizX.internal.model.StructureManager.ModelType;
+
+/**
+ * The set of models currently open in ChimeraX. Models are keyed by their full (model,
+ * submodel) id (see {@link ChimUtils#makeModelKey(int, String[])}), and are also indexed by
+ * type and name so that name lookups don't have to scan all of the models. All methods are
+ * thread-safe.
+ */
+public class ChimeraModelRegistry {
+	private static final Comparator<ChimeraModel> MODEL_ORDER = new Comparator<ChimeraModel>() {
+		public int compare(ChimeraModel m1, ChimeraModel m2) {
+			return ChimUtils.compareModelIds(m1.getModelNumber(), m1.getSubModelIds(),
+					m2.getModelNumber(), m2.getSubModelIds());
+		}
+	};
+
+	private final Map<String, ChimeraModel> models = new HashMap<String, ChimeraModel>();
+	private final Map<ModelType, Map<String, List<ChimeraModel>>> nameIndex = new EnumMap<ModelType, Map<String, List<ChimeraModel>>>(
+			ModelType.class);
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// Models sorted by id. Rebuilt lazily after any change.
+	private volatile List<ChimeraModel> snapshot = null;
+
+	/**
+	 * Get a model by its number
+	 *
+	 * @param modelNumber
+	 *            the model number
+	 * @param subModelIds
+	 *            the sub-model ids, or <code>null</code>
+	 * @return the model, or <code>null</code> if there isn't one
+	 */
+	public ChimeraModel get(int modelNumber, String[] subModelIds) {
+		return get(ChimUtils.makeModelKey(modelNumber, subModelIds));
+	}
+
+	/**
+	 * Get a model by its key
+	 *
+	 * @param key
+	 *            the key returned by {@link ChimUtils#makeModelKey(int, String[])}
+	 * @return the model, or <code>null</code> if there isn't one
+	 */
+	public ChimeraModel get(String key) {
+		lock.readLock().lock();
+		try {
+			return models.get(key);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public boolean contains(int modelNumber, String[] subModelIds) {
+		return get(modelNumber, subModelIds) != null;
+	}
+
+	/**
+	 * Get all of the models with a given name and type
+	 *
+	 * @param modelName
+	 *            the name of the model
+	 * @param modelType
+	 *            the type of the model
+	 * @return a new list of matching models, which may be empty
+	 */
+	public List<ChimeraModel> get(String modelName, ModelType modelType) {
+		lock.readLock().lock();
+		try {
+			Map<String, List<ChimeraModel>> names = nameIndex.get(modelType);
+			if (names == null || !names.containsKey(modelName))
+				return new ArrayList<ChimeraModel>();
+			return new ArrayList<ChimeraModel>(names.get(modelName));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Add a model, replacing any model that has the same number
+	 *
+	 * @param modelNumber
+	 *            the model number
+	 * @param subModelIds
+	 *            the sub-model ids, or <code>null</code>
+	 * @param model
+	 *            the model to add
+	 */
+	public void put(int modelNumber, String[] subModelIds, ChimeraModel model) {
+		String key = ChimUtils.makeModelKey(modelNumber, subModelIds);
+		lock.writeLock().lock();
+		try {
+			ChimeraModel old = models.put(key, model);
+			if (old != null)
+				unindex(old);
+			index(model);
+			snapshot = null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove a model
+	 *
+	 * @param modelNumber
+	 *            the model number
+	 * @param subModelIds
+	 *            the sub-model ids, or <code>null</code>
+	 * @return the model that was removed, or <code>null</code>
+	 */
+	public ChimeraModel remove(int modelNumber, String[] subModelIds) {
+		String key = ChimUtils.makeModelKey(modelNumber, subModelIds);
+		lock.writeLock().lock();
+		try {
+			ChimeraModel old = models.remove(key);
+			if (old != null) {
+				unindex(old);
+				snapshot = null;
+			}
+			return old;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			models.clear();
+			nameIndex.clear();
+			snapshot = null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Get all of the models, ordered by model number. The returned list is an unmodifiable
+	 * snapshot, so it is safe to iterate over it while models are being added or removed.
+	 *
+	 * @return the current models
+	 */
+	public List<ChimeraModel> getModels() {
+		List<ChimeraModel> current = snapshot;
+		if (current != null)
+			return current;
+
+		lock.readLock().lock();
+		try {
+			List<ChimeraModel> sorted = new ArrayList<ChimeraModel>(models.values());
+			Collections.sort(sorted, MODEL_ORDER);
+			current = Collections.unmodifiableList(sorted);
+			snapshot = current;
+			return current;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the first model (the one with the lowest number)
+	 *
+	 * @return the first model, or <code>null</code> if there are no models
+	 */
+	public ChimeraModel getFirst() {
+		List<ChimeraModel> current = getModels();
+		if (current.size() == 0)
+			return null;
+		return current.get(0);
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return models.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the number of models of a given type
+	 *
+	 * @param modelType
+	 *            the type of model to count
+	 * @return the number of models of that type
+	 */
+	public int size(ModelType modelType) {
+		lock.readLock().lock();
+		try {
+			Map<String, List<ChimeraModel>> names = nameIndex.get(modelType);
+			if (names == null)
+				return 0;
+			int count = 0;
+			for (List<ChimeraModel> named : names.values())
+				count += named.size();
+			return count;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void index(ChimeraModel model) {
+		if (model.getModelType() == null)
+			return;
+		Map<String, List<ChimeraModel>> names = nameIndex.get(model.getModelType());
+		if (names == null) {
+			names = new HashMap<String, List<ChimeraModel>>();
+			nameIndex.put(model.getModelType(), names);
+		}
+		List<ChimeraModel> named = names.get(model.getModelName());
+		if (named == null) {
+			named = new ArrayList<ChimeraModel>(1);
+			names.put(model.getModelName(), named);
+		}
+		named.add(model);
+	}
+
+	private void unindex(ChimeraModel model) {
+		if (model.getModelType() == null)
+			return;
+		Map<String, List<ChimeraModel>> names = nameIndex.get(model.getModelType());
+		if (names == null)
+			return;
+		List<ChimeraModel> named = names.get(model.getModelName());
+		if (named == null)
+			return;
+		named.remove(model);
+		if (named.size() == 0)
+			names.remove(model.getModelName());
+	}
+}
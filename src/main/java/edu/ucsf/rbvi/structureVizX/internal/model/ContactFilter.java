@@ -0,0 +1,185 @@
+package edu.ucsf.rbvi.structureVizX.internal.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The rules of ChimeraX's <code>clash</code> and <code>contacts</code> commands, applied to
+ * atoms we already have coordinates for. Two atoms are in contact if their van der Waals spheres
+ * overlap by at least <code>overlapCutoff</code> (which may be negative). If both atoms could
+ * take part in an H-bond, the overlap is reduced by <code>hbondAllowance</code>. Atoms in the
+ * same residue are ignored, and so are atoms <code>bondSep</code> or fewer bonds apart.
+ *
+ * We don't have ChimeraX's bonds, so atoms are taken to be bonded if they are closer than the
+ * sum of their covalent radii plus a tolerance, which is also how ChimeraX connects residues it
+ * has no template for. Metals and ions are never bonded this way.
+ *
+ * Subclasses can restrict which atoms are tested against each other, e.g. to the selection.
+ */
+public class ContactFilter implements ContactGrid.PairFilter {
+	// Covalent radii by element; atoms of other elements are never bonded
+	private static final Map<String, Float> COVALENT_RADII = new HashMap<String, Float>();
+	private static final float BOND_TOLERANCE = 0.4f;
+
+	static {
+		COVALENT_RADII.put("H", 0.32f);
+		COVALENT_RADII.put("C", 0.77f);
+		COVALENT_RADII.put("N", 0.7f);
+		COVALENT_RADII.put("O", 0.66f);
+		COVALENT_RADII.put("S", 1.02f);
+		COVALENT_RADII.put("P", 1.06f);
+		COVALENT_RADII.put("SE", 1.16f);
+		COVALENT_RADII.put("F", 0.64f);
+		COVALENT_RADII.put("CL", 0.99f);
+		COVALENT_RADII.put("BR", 1.14f);
+		COVALENT_RADII.put("I", 1.33f);
+	}
+
+	protected final AtomCoordinates atoms;
+	private final double overlapCutoff;
+	private final double hbondAllowance;
+	private final int bondSep;
+
+	// The bonds of each atom (bondStart[a] to bondStart[a+1] in bonded), found before searching.
+	// bondStart is set last, so a thread that sees it also sees bonded.
+	private int[] bonded = null;
+	private volatile int[] bondStart = null;
+
+	public ContactFilter(AtomCoordinates atoms, double overlapCutoff, double hbondAllowance,
+			int bondSep) {
+		this.atoms = atoms;
+		this.overlapCutoff = overlapCutoff;
+		this.hbondAllowance = hbondAllowance;
+		this.bondSep = bondSep;
+	}
+
+	/**
+	 * Find all of the contacts between the atoms
+	 *
+	 * @param parallel
+	 *            true to search on the fork-join pool
+	 * @return the pairs of atoms in contact
+	 */
+	public ContactGrid.Pairs findContacts(boolean parallel) {
+		if (bondSep > 0)
+			findBonds(parallel);
+		ContactGrid grid = new ContactGrid(atoms, null, 2.0 * atoms.getMaxRadius()
+				- overlapCutoff);
+		return grid.findPairs(this, parallel);
+	}
+
+	public boolean accept(int atom1, int atom2, double distance) {
+		if (atoms.getResidue(atom1) == atoms.getResidue(atom2))
+			return false;
+		if (getOverlap(atom1, atom2, distance) < overlapCutoff)
+			return false;
+		if (!isIncluded(atom1, atom2))
+			return false;
+		return bondSep <= 0 || !isWithinBonds(atom1, atom2);
+	}
+
+	/**
+	 * Decide whether two atoms should be tested at all. This is called from the search threads,
+	 * so it must be thread-safe.
+	 *
+	 * @return true, unless overridden
+	 */
+	protected boolean isIncluded(int atom1, int atom2) {
+		return true;
+	}
+
+	/**
+	 * The van der Waals overlap of two atoms, less the H-bond allowance if both could take part in
+	 * an H-bond
+	 */
+	public double getOverlap(int atom1, int atom2, double distance) {
+		double overlap = atoms.getRadius(atom1) + atoms.getRadius(atom2) - distance;
+		if (isPolar(atoms.getElement(atom1)) && isPolar(atoms.getElement(atom2)))
+			overlap -= hbondAllowance;
+		return overlap;
+	}
+
+	/**
+	 * Check whether there is a path of at most <code>bondSep</code> bonds between two atoms
+	 */
+	private boolean isWithinBonds(int atom1, int atom2) {
+		if (bondStart == null)
+			findBonds(false);
+		int[] start = bondStart;
+		int[] neighbors = bonded;
+		// Breadth-first search out from atom1; there are only a few atoms within a few bonds
+		int[] reached = new int[16];
+		reached[0] = atom1;
+		int count = 1;
+		int levelStart = 0;
+		for (int level = 0; level < bondSep; level++) {
+			int levelEnd = count;
+			for (int i = levelStart; i < levelEnd; i++) {
+				int atom = reached[i];
+				for (int b = start[atom]; b < start[atom + 1]; b++) {
+					int neighbor = neighbors[b];
+					if (neighbor == atom2)
+						return true;
+					if (contains(reached, count, neighbor))
+						continue;
+					if (count == reached.length)
+						reached = Arrays.copyOf(reached, 2 * count);
+					reached[count++] = neighbor;
+				}
+			}
+			levelStart = levelEnd;
+		}
+		return false;
+	}
+
+	private synchronized void findBonds(boolean parallel) {
+		if (bondStart != null)
+			return;
+		int atomCount = atoms.getAtomCount();
+		final float[] covalentRadii = new float[atomCount];
+		float maxRadius = 0.0f;
+		for (int atom = 0; atom < atomCount; atom++) {
+			Float radius = COVALENT_RADII.get(atoms.getElement(atom));
+			covalentRadii[atom] = radius == null ? -1.0f : radius;
+			maxRadius = Math.max(maxRadius, covalentRadii[atom]);
+		}
+		ContactGrid grid = new ContactGrid(atoms, null, 2.0 * maxRadius + BOND_TOLERANCE);
+		ContactGrid.Pairs bonds = grid.findPairs(new ContactGrid.PairFilter() {
+			public boolean accept(int atom1, int atom2, double distance) {
+				if (covalentRadii[atom1] <= 0.0f || covalentRadii[atom2] <= 0.0f)
+					return false;
+				return distance <= covalentRadii[atom1] + covalentRadii[atom2] + BOND_TOLERANCE;
+			}
+		}, parallel);
+
+		// Store the bonds of each atom together, in both directions
+		int[] start = new int[atomCount + 1];
+		for (int bond = 0; bond < bonds.size(); bond++) {
+			start[bonds.getAtom1(bond) + 1]++;
+			start[bonds.getAtom2(bond) + 1]++;
+		}
+		for (int atom = 0; atom < atomCount; atom++)
+			start[atom + 1] += start[atom];
+		int[] next = Arrays.copyOf(start, atomCount);
+		int[] neighbors = new int[2 * bonds.size()];
+		for (int bond = 0; bond < bonds.size(); bond++) {
+			neighbors[next[bonds.getAtom1(bond)]++] = bonds.getAtom2(bond);
+			neighbors[next[bonds.getAtom2(bond)]++] = bonds.getAtom1(bond);
+		}
+		bonded = neighbors;
+		bondStart = start;
+	}
+
+	private static boolean contains(int[] atoms, int count, int atom) {
+		for (int i = 0; i < count; i++) {
+			if (atoms[i] == atom)
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean isPolar(String element) {
+		return element.equals("N") || element.equals("O");
+	}
+}
@@ -0,0 +1,241 @@
+package edu.ucsf.rbvi.structureVizX.internal.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Finds all pairs of atoms within a given distance of each other using a uniform cell list.
+ * Atoms are binned into cubic cells at least as wide as the search distance, so each atom only
+ * has to be compared with the atoms in its own and the 26 neighboring cells, which makes the
+ * search linear in the number of atoms for a structure of roughly uniform density.
+ *
+ * The search is split into chunks of atoms that can be run on the fork-join pool. Pairs are
+ * always reported in the same order, whether the search ran in parallel or not.
+ */
+public class ContactGrid {
+	// Number of atoms searched together as one fork-join task
+	static int SEARCH_CHUNK_SIZE = 2048;
+	// Don't allocate (many) more cells than atoms
+	private static final int MAX_CELLS_PER_ATOM = 8;
+
+	/**
+	 * Decides which pairs to report. This is called from the search threads, so it must be
+	 * thread-safe.
+	 */
+	public interface PairFilter {
+		boolean accept(int atom1, int atom2, double distance);
+	}
+
+	/**
+	 * The pairs found by a search, as parallel arrays.
+	 */
+	public static class Pairs {
+		private int size = 0;
+		private int[] atoms1 = new int[16];
+		private int[] atoms2 = new int[16];
+		private float[] distances = new float[16];
+
+		void add(int atom1, int atom2, double distance) {
+			if (size == atoms1.length) {
+				atoms1 = Arrays.copyOf(atoms1, size * 2);
+				atoms2 = Arrays.copyOf(atoms2, size * 2);
+				distances = Arrays.copyOf(distances, size * 2);
+			}
+			atoms1[size] = atom1;
+			atoms2[size] = atom2;
+			distances[size] = (float) distance;
+			size++;
+		}
+
+		void addAll(Pairs pairs) {
+			for (int i = 0; i < pairs.size; i++)
+				add(pairs.atoms1[i], pairs.atoms2[i], pairs.distances[i]);
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public int getAtom1(int pair) {
+			return atoms1[pair];
+		}
+
+		public int getAtom2(int pair) {
+			return atoms2[pair];
+		}
+
+		public float getDistance(int pair) {
+			return distances[pair];
+		}
+	}
+
+	private final AtomCoordinates atoms;
+	private final int[] subset;
+	private final double maxDistance;
+
+	// Grid geometry
+	private final float minX, minY, minZ;
+	private final double cellSize;
+	private final int nx, ny, nz;
+	// The cell of each atom in the subset, and the positions in the subset of the atoms in each
+	// cell (cellStart[c] to cellStart[c+1] in cellAtoms)
+	private final int[] atomCells;
+	private final int[] cellStart;
+	private final int[] cellAtoms;
+
+	/**
+	 * Bin the atoms for a search.
+	 *
+	 * @param atoms
+	 *            the atom coordinates
+	 * @param subset
+	 *            the atoms to search, or <code>null</code> for all of them
+	 * @param maxDistance
+	 *            the largest distance at which pairs will be reported, which may be infinite
+	 */
+	public ContactGrid(AtomCoordinates atoms, int[] subset, double maxDistance) {
+		this.atoms = atoms;
+		if (subset == null) {
+			subset = new int[atoms.getAtomCount()];
+			for (int atom = 0; atom < subset.length; atom++)
+				subset[atom] = atom;
+		}
+		this.subset = subset;
+		this.maxDistance = maxDistance;
+
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+		for (int atom : subset) {
+			minX = Math.min(minX, atoms.getX(atom));
+			minY = Math.min(minY, atoms.getY(atom));
+			minZ = Math.min(minZ, atoms.getZ(atom));
+			maxX = Math.max(maxX, atoms.getX(atom));
+			maxY = Math.max(maxY, atoms.getY(atom));
+			maxZ = Math.max(maxZ, atoms.getZ(atom));
+		}
+		if (subset.length == 0) {
+			minX = minY = minZ = maxX = maxY = maxZ = 0.0f;
+		}
+		this.minX = minX;
+		this.minY = minY;
+		this.minZ = minZ;
+
+		// Cells must be at least maxDistance wide, but we don't want too many empty ones
+		double extent = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ));
+		double size = Math.max(maxDistance, 1.0);
+		if (Double.isInfinite(size) || size > extent)
+			size = Math.max(extent, 1.0);
+		long maxCells = Math.max(1L, (long) MAX_CELLS_PER_ATOM * subset.length);
+		while (cellCount(maxX - minX, size) * cellCount(maxY - minY, size)
+				* cellCount(maxZ - minZ, size) > maxCells) {
+			size *= 1.5;
+		}
+		this.cellSize = size;
+		this.nx = (int) cellCount(maxX - minX, size);
+		this.ny = (int) cellCount(maxY - minY, size);
+		this.nz = (int) cellCount(maxZ - minZ, size);
+
+		// Counting sort of the atoms by cell, keeping them in subset order within each cell
+		atomCells = new int[subset.length];
+		cellStart = new int[nx * ny * nz + 1];
+		for (int i = 0; i < subset.length; i++) {
+			int atom = subset[i];
+			atomCells[i] = getCell(cellIndex(atoms.getX(atom), this.minX, nx),
+					cellIndex(atoms.getY(atom), this.minY, ny),
+					cellIndex(atoms.getZ(atom), this.minZ, nz));
+			cellStart[atomCells[i] + 1]++;
+		}
+		for (int cell = 0; cell < nx * ny * nz; cell++)
+			cellStart[cell + 1] += cellStart[cell];
+		cellAtoms = new int[subset.length];
+		int[] next = Arrays.copyOf(cellStart, cellStart.length - 1);
+		for (int i = 0; i < subset.length; i++)
+			cellAtoms[next[atomCells[i]]++] = i;
+	}
+
+	/**
+	 * Find all pairs of atoms that are within the maximum distance and accepted by the filter.
+	 * Each pair is reported once, with the atom that comes first in the subset first.
+	 *
+	 * @param filter
+	 *            decides which pairs to keep
+	 * @param parallel
+	 *            true to search on the fork-join pool
+	 * @return the pairs, in order of the first atom
+	 */
+	public Pairs findPairs(final PairFilter filter, boolean parallel) {
+		Pairs pairs = new Pairs();
+		if (!parallel) {
+			search(0, subset.length, filter, pairs);
+			return pairs;
+		}
+
+		List<ForkJoinTask<Pairs>> tasks = new ArrayList<ForkJoinTask<Pairs>>();
+		for (int start = 0; start < subset.length; start += SEARCH_CHUNK_SIZE) {
+			final int from = start;
+			final int to = Math.min(subset.length, start + SEARCH_CHUNK_SIZE);
+			tasks.add(ForkJoinPool.commonPool().submit(new Callable<Pairs>() {
+				public Pairs call() {
+					Pairs chunkPairs = new Pairs();
+					search(from, to, filter, chunkPairs);
+					return chunkPairs;
+				}
+			}));
+		}
+		for (ForkJoinTask<Pairs> task : tasks)
+			pairs.addAll(task.join());
+		return pairs;
+	}
+
+	private void search(int from, int to, PairFilter filter, Pairs pairs) {
+		double maxDistance2 = maxDistance * maxDistance;
+		for (int i = from; i < to; i++) {
+			int atom1 = subset[i];
+			float x = atoms.getX(atom1);
+			float y = atoms.getY(atom1);
+			float z = atoms.getZ(atom1);
+			int cell = atomCells[i];
+			int cx = cell % nx;
+			int cy = (cell / nx) % ny;
+			int cz = cell / (nx * ny);
+			for (int dz = Math.max(0, cz - 1); dz <= Math.min(nz - 1, cz + 1); dz++) {
+				for (int dy = Math.max(0, cy - 1); dy <= Math.min(ny - 1, cy + 1); dy++) {
+					for (int dx = Math.max(0, cx - 1); dx <= Math.min(nx - 1, cx + 1); dx++) {
+						int neighbor = getCell(dx, dy, dz);
+						for (int k = cellStart[neighbor]; k < cellStart[neighbor + 1]; k++) {
+							int j = cellAtoms[k];
+							if (j <= i)
+								continue;
+							int atom2 = subset[j];
+							double ddx = atoms.getX(atom2) - x;
+							double ddy = atoms.getY(atom2) - y;
+							double ddz = atoms.getZ(atom2) - z;
+							double distance2 = ddx * ddx + ddy * ddy + ddz * ddz;
+							if (distance2 > maxDistance2)
+								continue;
+							double distance = Math.sqrt(distance2);
+							if (filter.accept(atom1, atom2, distance))
+								pairs.add(atom1, atom2, distance);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private int cellIndex(float coord, float min, int cells) {
+		return Math.min(cells - 1, (int) ((coord - min) / cellSize));
+	}
+
+	private int getCell(int x, int y, int z) {
+		return x + nx * (y + ny * z);
+	}
+
+	private static long cellCount(double extent, double size) {
+		return (long) (extent / size) + 1;
+	}
+}
@@ -16,6 +16,7 @@ public class CyNetworkListener implements NetworkAboutToBeDestroyedListener, Net
 
 	public void handleEvent(NetworkAboutToBeDestroyedEvent e) {
 		if (silence) return;
+		structureManager.deleteAssociationIndex(e.getNetwork());
 		if (structureManager.getChimeraManager().isChimeraLaunched()) {
 			structureManager.deassociate(e.getNetwork());
 		}
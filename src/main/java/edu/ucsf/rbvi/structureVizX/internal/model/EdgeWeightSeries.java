@@ -0,0 +1,217 @@
+package edu.ucsf.rbvi.structureVizX.internal.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.ucsf.rbvi.structureVizX.internal.utils.LongObjectMap;
+
+/**
+ * The per-frame weights of the edges of a trajectory network. Each edge only stores the frames
+ * it is present in, as (frame, weight) pairs in a chain of fixed-size blocks. The blocks live in
+ * direct (off-heap) buffers, so a long trajectory doesn't fill up the Java heap or give the
+ * garbage collector millions of small arrays to trace. The count, sum and maximum of each edge
+ * are kept up to date as weights are added, so the summaries don't have to walk the blocks.
+ *
+ * Frames don't have to be added in order, but each edge should only have one weight per frame.
+ * This class is not thread-safe.
+ */
+public class EdgeWeightSeries {
+	// (frame, weight) pairs per block
+	private static final int BLOCK_SIZE = 32;
+	// A block is the index of the next block, followed by the pairs
+	private static final int BLOCK_BYTES = 4 + BLOCK_SIZE * 8;
+	// Blocks per direct buffer, about 1MB
+	private static final int PAGE_BLOCKS = 4096;
+
+	private final List<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+	private int blockCount = 0;
+
+	private int edgeCount = 0;
+	private long[] edgeSuids = new long[256];
+	private final LongObjectMap<Integer> edgeIds = new LongObjectMap<Integer>();
+	private int[] firstBlocks = new int[256];
+	private int[] lastBlocks = new int[256];
+	private int[] counts = new int[256];
+	private double[] sums = new double[256];
+	private float[] maxima = new float[256];
+
+	private int firstFrame = Integer.MAX_VALUE;
+	private int lastFrame = Integer.MIN_VALUE;
+
+	/**
+	 * Add an edge
+	 *
+	 * @param suid
+	 *            the SUID of the network edge
+	 * @return the index of the edge in this series
+	 */
+	public int addEdge(long suid) {
+		if (edgeCount == edgeSuids.length) {
+			int capacity = edgeCount * 2;
+			edgeSuids = Arrays.copyOf(edgeSuids, capacity);
+			firstBlocks = Arrays.copyOf(firstBlocks, capacity);
+			lastBlocks = Arrays.copyOf(lastBlocks, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+			sums = Arrays.copyOf(sums, capacity);
+			maxima = Arrays.copyOf(maxima, capacity);
+		}
+		int edge = edgeCount++;
+		edgeSuids[edge] = suid;
+		firstBlocks[edge] = -1;
+		lastBlocks[edge] = -1;
+		maxima[edge] = Float.NEGATIVE_INFINITY;
+		edgeIds.put(suid, edge);
+		return edge;
+	}
+
+	/**
+	 * Add the weight of an edge in one frame
+	 *
+	 * @param edge
+	 *            the edge index, from {@link #addEdge(long)}
+	 * @param frame
+	 *            the frame number
+	 * @param weight
+	 *            the weight of the edge in that frame
+	 */
+	public void add(int edge, int frame, float weight) {
+		int count = counts[edge];
+		int block = lastBlocks[edge];
+		if (count % BLOCK_SIZE == 0) {
+			int newBlock = newBlock();
+			if (block < 0)
+				firstBlocks[edge] = newBlock;
+			else
+				getPage(block).putInt(getOffset(block), newBlock);
+			lastBlocks[edge] = block = newBlock;
+		}
+		int offset = getOffset(block) + 4 + (count % BLOCK_SIZE) * 8;
+		ByteBuffer page = getPage(block);
+		page.putInt(offset, frame);
+		page.putFloat(offset + 4, weight);
+
+		counts[edge] = count + 1;
+		sums[edge] += weight;
+		if (weight > maxima[edge])
+			maxima[edge] = weight;
+		if (frame < firstFrame)
+			firstFrame = frame;
+		if (frame > lastFrame)
+			lastFrame = frame;
+	}
+
+	public int getEdgeCount() {
+		return edgeCount;
+	}
+
+	/**
+	 * @return the SUID of the network edge
+	 */
+	public long getEdge(int edge) {
+		return edgeSuids[edge];
+	}
+
+	/**
+	 * @return the index of a network edge in this series, or -1 if it doesn't have one
+	 */
+	public int indexOf(long suid) {
+		Integer edge = edgeIds.get(suid);
+		return edge == null ? -1 : edge;
+	}
+
+	/**
+	 * @return the first frame number, or 0 if there are no frames
+	 */
+	public int getFirstFrame() {
+		return lastFrame < firstFrame ? 0 : firstFrame;
+	}
+
+	/**
+	 * @return the number of frames from the first to the last one
+	 */
+	public int getFrameCount() {
+		return lastFrame < firstFrame ? 0 : lastFrame - firstFrame + 1;
+	}
+
+	/**
+	 * @return the number of frames the edge is present in
+	 */
+	public int getCount(int edge) {
+		return counts[edge];
+	}
+
+	/**
+	 * @return the mean weight of the edge over the frames it is present in, or NaN if it isn't
+	 *         in any
+	 */
+	public double getMean(int edge) {
+		return counts[edge] == 0 ? Double.NaN : sums[edge] / counts[edge];
+	}
+
+	/**
+	 * @return the maximum weight of the edge, or NaN if it isn't in any frame
+	 */
+	public double getMax(int edge) {
+		return counts[edge] == 0 ? Double.NaN : maxima[edge];
+	}
+
+	/**
+	 * @return the fraction of the frames the edge is present in
+	 */
+	public double getOccupancy(int edge) {
+		int frames = getFrameCount();
+		return frames == 0 ? 0.0 : (double) counts[edge] / frames;
+	}
+
+	/**
+	 * Get the weights of an edge in every frame
+	 *
+	 * @param edge
+	 *            the edge index
+	 * @return the weights, indexed from {@link #getFirstFrame()}, with 0 for the frames the edge
+	 *         isn't present in
+	 */
+	public float[] getSeries(int edge) {
+		float[] series = new float[getFrameCount()];
+		int first = getFirstFrame();
+		int remaining = counts[edge];
+		for (int block = firstBlocks[edge]; remaining > 0; block = getPage(block).getInt(
+				getOffset(block))) {
+			ByteBuffer page = getPage(block);
+			int offset = getOffset(block) + 4;
+			int pairs = Math.min(remaining, BLOCK_SIZE);
+			for (int i = 0; i < pairs; i++, offset += 8)
+				series[page.getInt(offset) - first] = page.getFloat(offset + 4);
+			remaining -= pairs;
+		}
+		return series;
+	}
+
+	/**
+	 * @return the number of bytes of off-heap memory used for the weights
+	 */
+	public long getStorageSize() {
+		return (long) pages.size() * PAGE_BLOCKS * BLOCK_BYTES;
+	}
+
+	private int newBlock() {
+		if (blockCount == pages.size() * PAGE_BLOCKS) {
+			pages.add(ByteBuffer.allocateDirect(PAGE_BLOCKS * BLOCK_BYTES).order(
+					ByteOrder.nativeOrder()));
+		}
+		int block = blockCount++;
+		getPage(block).putInt(getOffset(block), -1);
+		return block;
+	}
+
+	private ByteBuffer getPage(int block) {
+		return pages.get(block / PAGE_BLOCKS);
+	}
+
+	private static int getOffset(int block) {
+		return (block % PAGE_BLOCKS) * BLOCK_BYTES;
+	}
+}
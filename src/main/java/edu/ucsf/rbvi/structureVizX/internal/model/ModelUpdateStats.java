@@ -0,0 +1,82 @@
+package edu.ucsf.rbvi.structureVizX.internal.model;
+
+/**
+ * Counters describing how much work {@link StructureManager#updateModels()} was able to skip
+ * when refreshing the models. The counts are cumulative since the last {@link #reset()}.
+ */
+public class ModelUpdateStats {
+	private int updates = 0;
+	private int modelsReused = 0;
+	private int modelsFetched = 0;
+	private int modelsRemoved = 0;
+	private int networksReassociated = 0;
+	private int fullAssociations = 0;
+
+	synchronized void update(int reused, int fetched, int removed, int networks, boolean full) {
+		updates++;
+		modelsReused += reused;
+		modelsFetched += fetched;
+		modelsRemoved += removed;
+		networksReassociated += networks;
+		if (full)
+			fullAssociations++;
+	}
+
+	/**
+	 * @return the number of times the models have been updated
+	 */
+	public synchronized int getUpdates() {
+		return updates;
+	}
+
+	/**
+	 * @return the number of unchanged models whose residues did not need to be fetched again
+	 */
+	public synchronized int getModelsReused() {
+		return modelsReused;
+	}
+
+	/**
+	 * @return the number of new or changed models whose residues were fetched
+	 */
+	public synchronized int getModelsFetched() {
+		return modelsFetched;
+	}
+
+	/**
+	 * @return the number of models that were no longer open in ChimeraX
+	 */
+	public synchronized int getModelsRemoved() {
+		return modelsRemoved;
+	}
+
+	/**
+	 * @return the number of networks that were associated again
+	 */
+	public synchronized int getNetworksReassociated() {
+		return networksReassociated;
+	}
+
+	/**
+	 * @return the number of updates that had to associate all networks
+	 */
+	public synchronized int getFullAssociations() {
+		return fullAssociations;
+	}
+
+	public synchronized void reset() {
+		updates = 0;
+		modelsReused = 0;
+		modelsFetched = 0;
+		modelsRemoved = 0;
+		networksReassociated = 0;
+		fullAssociations = 0;
+	}
+
+	public synchronized String toString() {
+		return "updates: " + updates + ", models reused: " + modelsReused + ", models fetched: "
+				+ modelsFetched + ", models removed: " + modelsRemoved
+				+ ", networks reassociated: " + networksReassociated + ", full associations: "
+				+ fullAssociations;
+	}
+}
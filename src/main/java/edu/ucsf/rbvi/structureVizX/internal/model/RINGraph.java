@@ -0,0 +1,306 @@
+package edu.ucsf.rbvi.structureVizX.internal.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyNode;
+
+import edu.ucsf.rbvi.structureVizX.internal.utils.LongObjectMap;
+
+/**
+ * The edges of a residue interaction network while it is being built. Parsing the Chimera
+ * replies can touch the same edge many times (once per interacting atom pair), so rather than
+ * updating the edge table of the {@link CyNetwork} for every line, the edges are collected
+ * here and written to the network once all of the interactions are known (see
+ * {@link RINManager#materialize(RINGraph)}).
+ *
+ * Nodes are identified by their index in the network's node list, and edges by the order in
+ * which they were added. This class is not thread-safe.
+ */
+public class RINGraph {
+	private final CyNetwork network;
+
+	// The residues that were selected when we started, which all passes filter against
+	private final Set<String> selectedResidues;
+
+	// Nodes
+	private final Map<CyNode, Integer> nodeIds = new HashMap<CyNode, Integer>();
+	private final List<CyNode> nodes = new ArrayList<CyNode>();
+	private final List<String> nodeNames = new ArrayList<String>();
+
+	// Interned interaction types and subtypes
+	private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+	private final List<String> strings = new ArrayList<String>();
+
+	// Edges
+	private int edgeCount = 0;
+	private int[] sources = new int[64];
+	private int[] targets = new int[64];
+	private int[] types = new int[64];
+	private int[] subtypes = new int[64];
+	private int[] counts = new int[64];
+	private double[] distances = new double[64];
+	private double[] overlaps = new double[64];
+	private final List<List<String>> atoms = new ArrayList<List<String>>();
+
+	// The edges between each (unordered) pair of nodes
+	private final LongObjectMap<int[]> pairEdges = new LongObjectMap<int[]>();
+
+	public RINGraph(CyNetwork network) {
+		this(network, Collections.<String> emptySet());
+	}
+
+	/**
+	 * @param network
+	 *            the network the edges will be added to
+	 * @param selectedResidues
+	 *            the specs of the residues that were selected in Chimera
+	 */
+	public RINGraph(CyNetwork network, Collection<String> selectedResidues) {
+		this.network = network;
+		this.selectedResidues = new HashSet<String>(selectedResidues);
+		for (CyNode node : network.getNodeList())
+			getNode(node);
+	}
+
+	public CyNetwork getNetwork() {
+		return network;
+	}
+
+	/**
+	 * @param residueSpec
+	 *            a residue spec as returned by {@link ChimeraManager#getSelectedResidueSpecs()}
+	 * @return true if the residue was selected when the graph was created
+	 */
+	public boolean isSelected(String residueSpec) {
+		return selectedResidues.contains(residueSpec);
+	}
+
+	public Set<String> getSelectedResidues() {
+		return Collections.unmodifiableSet(selectedResidues);
+	}
+
+	/**
+	 * Get the id of a node, adding it to the graph if we haven't seen it before
+	 *
+	 * @param node
+	 *            a node in our network
+	 * @return the node id
+	 */
+	public int getNode(CyNode node) {
+		Integer id = nodeIds.get(node);
+		if (id != null)
+			return id;
+		id = nodes.size();
+		nodeIds.put(node, id);
+		nodes.add(node);
+		nodeNames.add(network.getRow(node).get(CyNetwork.NAME, String.class));
+		return id;
+	}
+
+	public CyNode getCyNode(int node) {
+		return nodes.get(node);
+	}
+
+	public String getNodeName(int node) {
+		return nodeNames.get(node);
+	}
+
+	public int getNodeCount() {
+		return nodes.size();
+	}
+
+	/**
+	 * Add a new edge. The edge starts out with no interactions, and no distance or overlap.
+	 *
+	 * @param source
+	 *            the source node id
+	 * @param target
+	 *            the target node id
+	 * @param type
+	 *            the interaction type
+	 * @param subtype
+	 *            the interaction subtype
+	 * @return the edge id
+	 */
+	public int addEdge(int source, int target, String type, String subtype) {
+		if (edgeCount == sources.length)
+			grow(edgeCount * 2);
+		int edge = edgeCount++;
+		sources[edge] = source;
+		targets[edge] = target;
+		types[edge] = intern(type);
+		subtypes[edge] = intern(subtype);
+		counts[edge] = 0;
+		distances[edge] = Double.NaN;
+		overlaps[edge] = Double.NaN;
+		atoms.add(null);
+
+		long pair = getPairKey(source, target);
+		int[] edges = pairEdges.get(pair);
+		if (edges == null) {
+			edges = new int[] { edge };
+		} else {
+			edges = Arrays.copyOf(edges, edges.length + 1);
+			edges[edges.length - 1] = edge;
+		}
+		pairEdges.put(pair, edges);
+		return edge;
+	}
+
+	/**
+	 * Get the edges between two nodes, in either direction
+	 *
+	 * @param source
+	 *            one node id
+	 * @param target
+	 *            the other node id
+	 * @return the edge ids, in the order they were added, which may be empty
+	 */
+	public int[] getEdges(int source, int target) {
+		int[] edges = pairEdges.get(getPairKey(source, target));
+		if (edges == null)
+			return new int[0];
+		return edges;
+	}
+
+	public int getEdgeCount() {
+		return edgeCount;
+	}
+
+	public int getSource(int edge) {
+		return sources[edge];
+	}
+
+	public int getTarget(int edge) {
+		return targets[edge];
+	}
+
+	public String getType(int edge) {
+		return strings.get(types[edge]);
+	}
+
+	public String getSubtype(int edge) {
+		return strings.get(subtypes[edge]);
+	}
+
+	/**
+	 * Change the type and subtype of an edge
+	 *
+	 * @param edge
+	 *            the edge id
+	 * @param type
+	 *            the new interaction type
+	 * @param subtype
+	 *            the new interaction subtype
+	 */
+	public void setType(int edge, String type, String subtype) {
+		types[edge] = intern(type);
+		subtypes[edge] = intern(subtype);
+	}
+
+	public int getCount(int edge) {
+		return counts[edge];
+	}
+
+	public void setCount(int edge, int count) {
+		counts[edge] = count;
+	}
+
+	/**
+	 * @return the distance for the edge, or NaN if it doesn't have one
+	 */
+	public double getDistance(int edge) {
+		return distances[edge];
+	}
+
+	public void setDistance(int edge, double distance) {
+		distances[edge] = distance;
+	}
+
+	/**
+	 * Keep the smaller of the current distance and a new one
+	 *
+	 * @param edge
+	 *            the edge id
+	 * @param distance
+	 *            the new distance
+	 */
+	public void updateMinDistance(int edge, double distance) {
+		if (Double.isNaN(distances[edge]) || distance < distances[edge])
+			distances[edge] = distance;
+	}
+
+	/**
+	 * @return the overlap for the edge, or NaN if it doesn't have one
+	 */
+	public double getOverlap(int edge) {
+		return overlaps[edge];
+	}
+
+	public void setOverlap(int edge, double overlap) {
+		overlaps[edge] = overlap;
+	}
+
+	/**
+	 * Keep the larger of the current overlap and a new one
+	 *
+	 * @param edge
+	 *            the edge id
+	 * @param overlap
+	 *            the new overlap
+	 */
+	public void updateMaxOverlap(int edge, double overlap) {
+		if (Double.isNaN(overlaps[edge]) || overlap > overlaps[edge])
+			overlaps[edge] = overlap;
+	}
+
+	/**
+	 * Get the interacting atoms for an edge. The list may be modified.
+	 *
+	 * @param edge
+	 *            the edge id
+	 * @return the list of interacting atom pairs, or <code>null</code> if there isn't one
+	 */
+	public List<String> getAtoms(int edge) {
+		return atoms.get(edge);
+	}
+
+	public void setAtoms(int edge, List<String> edgeAtoms) {
+		atoms.set(edge, edgeAtoms);
+	}
+
+	private long getPairKey(int source, int target) {
+		if (source < target)
+			return ((long) source << 32) | target;
+		return ((long) target << 32) | source;
+	}
+
+	private int intern(String str) {
+		Integer id = stringIds.get(str);
+		if (id == null) {
+			id = strings.size();
+			stringIds.put(str, id);
+			strings.add(str);
+		}
+		return id;
+	}
+
+	private void grow(int capacity) {
+		sources = Arrays.copyOf(sources, capacity);
+		targets = Arrays.copyOf(targets, capacity);
+		types = Arrays.copyOf(types, capacity);
+		subtypes = Arrays.copyOf(subtypes, capacity);
+		counts = Arrays.copyOf(counts, capacity);
+		distances = Arrays.copyOf(distances, capacity);
+		overlaps = Arrays.copyOf(overlaps, capacity);
+	}
+}
@@ -2,20 +2,30 @@ package edu.ucsf.rbvi.structureVizX.internal.model;
 
 import java.awt.Color;
 import java.awt.Paint;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
 
 import org.cytoscape.model.CyEdge;
-import org.cytoscape.model.CyEdge.Type;
 import org.cytoscape.model.CyIdentifiable;
 import org.cytoscape.model.CyNetwork;
 import org.cytoscape.model.CyNetworkFactory;
 import org.cytoscape.model.CyNode;
+import org.cytoscape.model.CyRow;
+import org.cytoscape.model.CyTable;
 import org.cytoscape.view.model.CyNetworkView;
 import org.cytoscape.view.model.CyNetworkViewManager;
 import org.cytoscape.view.model.View;
@@ -29,6 +39,8 @@ import org.cytoscape.application.CyUserLog;
 import org.apache.log4j.Logger;
 
 import edu.ucsf.rbvi.structureVizX.internal.io.ChimeraIO;
+import edu.ucsf.rbvi.structureVizX.internal.io.StructureFileReader;
+import edu.ucsf.rbvi.structureVizX.internal.utils.LongObjectMap;
 import edu.ucsf.rbvi.structureVizX.internal.utils.StringUtils;
 
 // TODO: [Optional] No dist edges between ligands and others since we only consider distance between C_alphas
@@ -66,6 +78,10 @@ public class RINManager {
 
 	public static final Map<String, String> residueAttrCommandMap = new HashMap<String, String>();
 
+	// Number of reply lines parsed together as one fork-join task
+	static int PARSE_CHUNK_SIZE = 1024;
+	private static boolean parallelParsing = true;
+
 	static {
 		residueAttrCommandMap.put("SecondaryStructure", "");
 		residueAttrCommandMap.put("Coordinates", "");
@@ -77,43 +93,57 @@ public class RINManager {
 		this.chimeraIO = structureManager.getChimeraIO();
 	}
 
-	public void includeContacts(CyNetwork rin, Map<String, CyNode> nodeMap,
+	/**
+	 * Parse contact, hydrogen bond, and distance replies on the fork-join pool. The resulting
+	 * network is the same either way; turning this off is mostly useful for comparing the two.
+	 * 
+	 * @param parallel
+	 *            false to parse the replies on the calling thread
+	 */
+	public static void setParallelParsing(boolean parallel) {
+		parallelParsing = parallel;
+	}
+
+	public static boolean isParallelParsing() {
+		return parallelParsing;
+	}
+
+	public void includeContacts(RINGraph rin, Map<String, CyNode> nodeMap,
 			int includeInteractions, boolean ignoreWater, boolean removeRedContacts,
 			double overlapCutoff, double hbondAllowance, int bondSep) {
 		// System.out.println("Getting contacts");
-		List<String> replyList = chimeraIO.sendChimeraCommand(
+		ContactReplyParser parser = new ContactReplyParser(rin, nodeMap, ignoreWater,
+				removeRedContacts, CONTACTEDGE);
+		chimeraIO.sendChimeraCommand(
 				getContactCommand(includeInteractions, overlapCutoff, hbondAllowance, bondSep),
-				true);
-		if (replyList != null) {
-			parseContactReplies(replyList, rin, nodeMap, ignoreWater, removeRedContacts,
-					CONTACTEDGE);
-		}
+				parser);
+		parser.finish();
 	}
 
-	public void includeClashes(CyNetwork rin, Map<String, CyNode> nodeMap, int includeInteractions,
+	public void includeClashes(RINGraph rin, Map<String, CyNode> nodeMap, int includeInteractions,
 			boolean ignoreWater, boolean removeRedContacts, double overlapCutoff,
 			double hbondAllowance, int bondSep) {
 		// System.out.println("Getting clashes");
-		List<String> replyList = chimeraIO.sendChimeraCommand(
+		ContactReplyParser parser = new ContactReplyParser(rin, nodeMap, ignoreWater,
+				removeRedContacts, CLASHEDGE);
+		chimeraIO.sendChimeraCommand(
 				getContactCommand(includeInteractions, overlapCutoff, hbondAllowance, bondSep),
-				true);
-		if (replyList != null) {
-			parseContactReplies(replyList, rin, nodeMap, ignoreWater, removeRedContacts, CLASHEDGE);
-		}
+				parser);
+		parser.finish();
 	}
 
-	public void includeHBonds(CyNetwork rin, Map<String, CyNode> nodeMap, int includeInteractions,
+	public void includeHBonds(RINGraph rin, Map<String, CyNode> nodeMap, int includeInteractions,
 			boolean ignoreWater, boolean removeRedContacts, boolean addHydrogens,
 			boolean relaxHBonds, double angleSlop, double distSlop) {
 		// System.out.println("Getting hydrogen bonds");
-		List<String> replyList = chimeraIO.sendChimeraCommand(
-				getHBondCommand(includeInteractions, relaxHBonds, angleSlop, distSlop), true);
-		if (replyList != null) {
-			parseHBondReplies(replyList, rin, nodeMap, ignoreWater, removeRedContacts, addHydrogens);
-		}
+		HBondReplyParser parser = new HBondReplyParser(rin, nodeMap, ignoreWater,
+				removeRedContacts, addHydrogens);
+		chimeraIO.sendChimeraCommand(
+				getHBondCommand(includeInteractions, relaxHBonds, angleSlop, distSlop), parser);
+		parser.finish();
 	}
 
-	public void includeConnectivity(CyNetwork rin) {
+	public void includeConnectivity(RINGraph rin) {
 		// System.out.println("Getting connectivity");
 		List<String> replyList = chimeraIO.sendChimeraCommand("info polymers sel", true);
 		if (replyList != null) {
@@ -121,53 +151,271 @@ public class RINManager {
 		}
 	}
 
-	public void includeDistances(CyNetwork rin, Map<String, CyNode> nodeMap,
+	public void includeDistances(RINGraph rin, Map<String, CyNode> nodeMap,
 			int includeInteractions, boolean ignoreWater, boolean removeRedContacts,
 			double distCutoff) {
 		// System.out.println("Getting distances");
-		List<String> replyList = chimeraIO.sendChimeraCommand(
-				getDistanceCommand(includeInteractions), true);
-		if (replyList != null) {
-			parseDistanceReplies(replyList, rin, nodeMap, ignoreWater, removeRedContacts,
-					distCutoff, includeInteractions);
+		DistanceReplyParser parser = new DistanceReplyParser(rin, nodeMap, ignoreWater,
+				removeRedContacts, distCutoff, includeInteractions);
+		chimeraIO.sendChimeraCommand(getDistanceCommand(includeInteractions), parser);
+		parser.finish();
+	}
+
+	/**
+	 * Get the coordinates of all atoms, so that contacts and distances can be computed locally
+	 * with {@link #includeNativeContacts} and {@link #includeNativeDistances}. If the only open
+	 * structure was opened from a local file that still matches it, the atoms and their elements
+	 * are read from the file. Otherwise they are fetched with a single <code>getcrd</code>
+	 * command, and their elements are guessed from the atom names.
+	 * 
+	 * @param ignoreWater
+	 *            skip water molecules, which would never become nodes anyway
+	 * @param readFile
+	 *            false if ChimeraX may have atoms the file doesn't, e.g. after adding hydrogens
+	 * @return the atom coordinates
+	 */
+	public AtomCoordinates getAtomCoordinates(final boolean ignoreWater, boolean readFile) {
+		if (readFile) {
+			AtomCoordinates atoms = readAtomCoordinates(ignoreWater);
+			if (atoms != null)
+				return atoms;
+		}
+		final AtomCoordinates atoms = new AtomCoordinates();
+		chimeraIO.sendChimeraCommand("getcrd", new Consumer<String>() {
+			public void accept(String inputLine) {
+				// response from chimera should look like this:
+				// Atom #0/A:355@C 36.598 78.221 2.056
+				String[] lineParts = StringUtils.splitOnWhitespace(inputLine);
+				if (lineParts.length != 5) {
+					return;
+				}
+				int atom = lineParts[1].indexOf('@');
+				if (atom < 0) {
+					return;
+				}
+				ChimeraResidue residue = chimeraManager.getResidue(lineParts[1]);
+				if (residue == null || (ignoreWater && residue.getType().equals("HOH"))) {
+					return;
+				}
+				try {
+					atoms.addAtom(lineParts[1].substring(0, atom), residue,
+							lineParts[1].substring(atom + 1), null,
+							Double.parseDouble(lineParts[2]), Double.parseDouble(lineParts[3]),
+							Double.parseDouble(lineParts[4]));
+				} catch (NumberFormatException ex) {
+					// no coordinates for this atom, ignore
+				}
+			}
+		});
+		return atoms;
+	}
+
+	/**
+	 * Read the atoms of the only open structure from the file it was opened from
+	 * 
+	 * @return the atoms, or <code>null</code> if there isn't exactly one structure open, it
+	 *         wasn't opened from a local file, or ChimeraX's copy no longer matches the file
+	 */
+	private AtomCoordinates readAtomCoordinates(boolean ignoreWater) {
+		Collection<ChimeraModel> models = chimeraManager.getChimeraModels();
+		if (models.size() != 1)
+			return null;
+		ChimeraModel model = models.iterator().next();
+		File file = model.getSourceFile();
+		if (file == null)
+			return null;
+		// ChimeraX must still have the residues it read from the file
+		if (!chimeraManager.getChangedModels(Collections.singleton(model)).isEmpty())
+			return null;
+
+		List<StructureFileReader.ModelResidues> fileModels;
+		try {
+			fileModels = StructureFileReader.readAtoms(file, parallelParsing);
+		} catch (IOException e) {
+			logger.warn("Unable to read atoms from " + file + ": " + e.getMessage());
+			return null;
+		}
+		// ChimeraX opens each model in the file as a submodel, in file order
+		int index = 0;
+		String[] subModelIds = model.getSubModelIds();
+		if (subModelIds != null && subModelIds.length > 0) {
+			if (subModelIds.length != 1)
+				return null;
+			try {
+				index = Integer.parseInt(subModelIds[0]) - 1;
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		} else if (fileModels.size() != 1) {
+			return null;
+		}
+		if (index < 0 || index >= fileModels.size())
+			return null;
+		StructureFileReader.ModelResidues fileModel = fileModels.get(index);
+		if (fileModel.size() != model.getResidueCount())
+			return null;
+
+		// It must also have as many atoms as the file, so no hydrogens were added or atoms deleted
+		Map<String, Map<String, String>> attributes = chimeraManager
+				.getModelAttributes("num_atoms");
+		String line = attributes == null ? null : attributes.get("num_atoms").get(model.toSpec());
+		if (line == null)
+			return null;
+		try {
+			String[] tokens = StringUtils.splitOnWhitespace(line.trim());
+			if (Integer.parseInt(tokens[tokens.length - 1]) != fileModel.getAtomCount())
+				return null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return AtomCoordinates.read(fileModel, model, ignoreWater);
+	}
+
+	/**
+	 * Find contacts or clashes between atoms without asking Chimera, using the rules of
+	 * Chimera's <code>clash</code> command (see {@link ContactFilter}).
+	 */
+	public void includeNativeContacts(RINGraph rin, Map<String, CyNode> nodeMap,
+			AtomCoordinates atoms, int includeInteractions, boolean ignoreWater,
+			boolean removeRedContacts, double overlapCutoff, double hbondAllowance, int bondSep) {
+		includeNativeContacts(rin, nodeMap, atoms, includeInteractions, ignoreWater,
+				removeRedContacts, overlapCutoff, hbondAllowance, bondSep, CONTACTEDGE);
+	}
+
+	public void includeNativeClashes(RINGraph rin, Map<String, CyNode> nodeMap,
+			AtomCoordinates atoms, int includeInteractions, boolean ignoreWater,
+			boolean removeRedContacts, double overlapCutoff, double hbondAllowance, int bondSep) {
+		includeNativeContacts(rin, nodeMap, atoms, includeInteractions, ignoreWater,
+				removeRedContacts, overlapCutoff, hbondAllowance, bondSep, CLASHEDGE);
+	}
+
+	private void includeNativeContacts(RINGraph rin, Map<String, CyNode> nodeMap,
+			final AtomCoordinates atoms, final int includeInteractions, boolean ignoreWater,
+			boolean removeRedContacts, final double overlapCutoff, final double hbondAllowance,
+			final int bondSep, String edgeType) {
+		final RINGraph graph = rin;
+		ContactFilter filter = new ContactFilter(atoms, overlapCutoff, hbondAllowance, bondSep) {
+			protected boolean isIncluded(int atom1, int atom2) {
+				return isContactIncluded(graph, includeInteractions, atoms, atom1, atom2);
+			}
+		};
+		ContactGrid.Pairs pairs = filter.findContacts(parallelParsing);
+
+		for (int pair = 0; pair < pairs.size(); pair++) {
+			int atom1 = pairs.getAtom1(pair);
+			int atom2 = pairs.getAtom2(pair);
+			double distance = pairs.getDistance(pair);
+			mergeContact(rin, nodeMap, ignoreWater, removeRedContacts, new Interaction(
+					atoms.getAtomSpec(atom1), atoms.getResidue(atom1), atoms.getAtomSpec(atom2),
+					atoms.getResidue(atom2), distance, filter.getOverlap(atom1, atom2, distance)),
+					edgeType);
+		}
+	}
+
+	/**
+	 * Find the distances between alpha carbons without asking Chimera.
+	 */
+	public void includeNativeDistances(RINGraph rin, Map<String, CyNode> nodeMap,
+			final AtomCoordinates atoms, final int includeInteractions, boolean ignoreWater,
+			boolean removeRedContacts, double distCutoff) {
+		final RINGraph graph = rin;
+		int[] alphaCarbons = atoms.getAtoms("CA");
+		if (includeInteractions == 0) {
+			// only among the selected residues
+			int count = 0;
+			for (int atom : alphaCarbons) {
+				if (rin.isSelected(atoms.getResidueSpec(atom)))
+					alphaCarbons[count++] = atom;
+			}
+			alphaCarbons = Arrays.copyOf(alphaCarbons, count);
+		}
+		ContactGrid grid = new ContactGrid(atoms, alphaCarbons,
+				distCutoff == 0.0 ? Double.POSITIVE_INFINITY : distCutoff);
+		ContactGrid.Pairs pairs = grid.findPairs(new ContactGrid.PairFilter() {
+			public boolean accept(int atom1, int atom2, double distance) {
+				return isDistanceIncluded(graph, includeInteractions,
+						atoms.getResidueSpec(atom1), atoms.getResidueSpec(atom2));
+			}
+		}, parallelParsing);
+
+		for (int pair = 0; pair < pairs.size(); pair++) {
+			int atom1 = pairs.getAtom1(pair);
+			int atom2 = pairs.getAtom2(pair);
+			mergeDistance(rin, nodeMap, ignoreWater, removeRedContacts, new Interaction(
+					atoms.getAtomSpec(atom1), atoms.getResidue(atom1), atoms.getAtomSpec(atom2),
+					atoms.getResidue(atom2), pairs.getDistance(pair), Double.NaN));
 		}
 	}
 
-	public void addCombinedEdges(CyNetwork rin) {
+	public void addCombinedEdges(RINGraph rin) {
 		// System.out.println("Getting combined edges");
 		if (rin == null || rin.getEdgeCount() == 0) {
 			return;
 		}
-		List<CyNode> nodes = rin.getNodeList();
-		for (int i = 0; i < rin.getNodeCount(); i++) {
-			CyNode source = nodes.get(i);
-			for (int j = i + 1; j < rin.getNodeCount(); j++) {
-				CyNode target = nodes.get(j);
-				List<CyEdge> edges = rin.getConnectingEdgeList(source, target, Type.ANY);
-				if (edges.size() > 0) {
-					CyEdge edge = rin.addEdge(source, target, true);
-					rin.getRow(edge).set(
-							CyNetwork.NAME,
-							rin.getRow(source).get(CyNetwork.NAME, String.class) + " (" + COMBIEDGE
-									+ ") " + rin.getRow(target).get(CyNetwork.NAME, String.class));
-					rin.getRow(edge).set(CyEdge.INTERACTION, COMBIEDGE);
-					rin.getRow(edge).set(INTSUBTYPE_ATTR,
-							COMBIEDGE + SUBTYPEDELIM1 + "all" + SUBTYPEDELIM2 + "all");
-					// Sum over number of other edges
-					int nrInt = 0;
-					for (CyEdge exEdge : edges) {
-						if (rin.getRow(exEdge).isSet(NUMINT_ATTR)) {
-							nrInt += rin.getRow(exEdge).get(NUMINT_ATTR, Integer.class);
-						}
-					}
-					rin.getRow(edge).set(NUMINT_ATTR, nrInt);
-					// rin.getRow(edge).set(INTATOMS_ATTR, "");
 
-				}
+		// Sum the number of interactions over the edges between each (unordered) pair of nodes
+		int edgeCount = rin.getEdgeCount();
+		LongObjectMap<int[]> pairInteractions = new LongObjectMap<int[]>(edgeCount);
+		for (int exEdge = 0; exEdge < edgeCount; exEdge++) {
+			int source = rin.getSource(exEdge);
+			int target = rin.getTarget(exEdge);
+			if (source == target) {
+				continue;
 			}
+			long pair = source < target ? ((long) source << 32) | target
+					: ((long) target << 32) | source;
+			int[] nrInt = pairInteractions.get(pair);
+			if (nrInt == null) {
+				nrInt = new int[1];
+				pairInteractions.put(pair, nrInt);
+			}
+			nrInt[0] += rin.getCount(exEdge);
+		}
+
+		// Create the combined edges in node order
+		long[] pairs = pairInteractions.keys();
+		Arrays.sort(pairs);
+		for (long pair : pairs) {
+			int edge = rin.addEdge((int) (pair >>> 32), (int) pair, COMBIEDGE,
+					COMBIEDGE + SUBTYPEDELIM1 + "all" + SUBTYPEDELIM2 + "all");
+			rin.setCount(edge, pairInteractions.get(pair)[0]);
 		}
 	}
 
+	/**
+	 * Create the network edges for all of the interactions we've collected. Each edge is added
+	 * to the network, and its attributes set, exactly once.
+	 * 
+	 * @param rin
+	 *            the interactions
+	 * @return the new edges
+	 */
+	public List<CyEdge> materialize(RINGraph rin) {
+		CyNetwork network = rin.getNetwork();
+		int edgeCount = rin.getEdgeCount();
+		List<CyEdge> edges = new ArrayList<CyEdge>(edgeCount);
+		for (int e = 0; e < edgeCount; e++) {
+			int source = rin.getSource(e);
+			int target = rin.getTarget(e);
+			String type = rin.getType(e);
+			CyEdge edge = network.addEdge(rin.getCyNode(source), rin.getCyNode(target), true);
+			CyRow row = network.getRow(edge);
+			row.set(CyNetwork.NAME, rin.getNodeName(source) + " (" + type + ") "
+					+ rin.getNodeName(target));
+			row.set(CyEdge.INTERACTION, type);
+			row.set(INTSUBTYPE_ATTR, rin.getSubtype(e));
+			row.set(NUMINT_ATTR, rin.getCount(e));
+			if (rin.getAtoms(e) != null)
+				row.set(INTATOMS_ATTR, rin.getAtoms(e));
+			if (!Double.isNaN(rin.getDistance(e)))
+				row.set(DISTANCE_ATTR, rin.getDistance(e));
+			if (!Double.isNaN(rin.getOverlap(e)))
+				row.set(OVERLAP_ATTR, rin.getOverlap(e));
+			edges.add(edge);
+		}
+		return edges;
+	}
+
 	private String getContactCommand(int includeInteractions, double overlapCutoff,
 			double hbondAllowance, int bondSep) {
 		String atomspec1 = "";
@@ -274,54 +522,179 @@ public class RINManager {
 		return command;
 	}
 
+	/**
+	 * A pair of interacting atoms read from a Chimera reply, with the residues already looked up.
+	 * The atoms are sorted so that the same pair always gives the same edge direction.
+	 */
+	private static class Interaction {
+		final String sourceAlias;
+		final String targetAlias;
+		final ChimeraResidue sourceResidue;
+		final ChimeraResidue targetResidue;
+		final double distance;
+		final double overlap;
+
+		Interaction(String alias1, ChimeraResidue residue1, String alias2,
+				ChimeraResidue residue2, double distance, double overlap) {
+			if (alias1.compareTo(alias2) > 0) {
+				this.sourceAlias = alias2;
+				this.sourceResidue = residue2;
+				this.targetAlias = alias1;
+				this.targetResidue = residue1;
+			} else {
+				this.sourceAlias = alias1;
+				this.sourceResidue = residue1;
+				this.targetAlias = alias2;
+				this.targetResidue = residue2;
+			}
+			this.distance = distance;
+			this.overlap = overlap;
+		}
+	}
+
+	/**
+	 * Base class for the contact, hydrogen bond, and distance reply parsers. Turning a reply
+	 * line into an {@link Interaction} (splitting the line, parsing the numbers and atom specs,
+	 * and looking up the residues) doesn't touch the network, so lines are collected into chunks
+	 * that are parsed on the fork-join pool. The parsed chunks are then merged into the RIN one
+	 * at a time, in the order the lines were read, so the network is exactly the same as if the
+	 * lines had been parsed one by one.
+	 */
+	private abstract class InteractionReplyParser implements Consumer<String> {
+		protected final RINGraph rin;
+		protected final Map<String, CyNode> nodeMap;
+		protected final boolean ignoreWater;
+		protected final boolean removeRedContacts;
+		private final boolean parallel = parallelParsing;
+		private List<String> chunk = new ArrayList<String>();
+		private final Queue<ForkJoinTask<List<Interaction>>> parsedChunks = new ArrayDeque<ForkJoinTask<List<Interaction>>>();
+
+		InteractionReplyParser(RINGraph rin, Map<String, CyNode> nodeMap, boolean ignoreWater,
+				boolean removeRedContacts) {
+			this.rin = rin;
+			this.nodeMap = nodeMap;
+			this.ignoreWater = ignoreWater;
+			this.removeRedContacts = removeRedContacts;
+		}
+
+		public void accept(String str) {
+			if (!isInteraction(str))
+				return;
+			if (!parallel) {
+				Interaction interaction = parse(str);
+				if (interaction != null)
+					merge(interaction);
+				return;
+			}
+			chunk.add(str);
+			if (chunk.size() >= PARSE_CHUNK_SIZE)
+				submitChunk();
+		}
+
+		/**
+		 * Merge any lines that are still being parsed. This must be called once the whole reply
+		 * has been read.
+		 */
+		void finish() {
+			if (chunk.size() > 0)
+				submitChunk();
+			while (!parsedChunks.isEmpty())
+				mergeChunk(parsedChunks.poll().join());
+		}
+
+		private void submitChunk() {
+			final List<String> lines = chunk;
+			chunk = new ArrayList<String>();
+			parsedChunks.add(ForkJoinPool.commonPool().submit(new Callable<List<Interaction>>() {
+				public List<Interaction> call() {
+					List<Interaction> interactions = new ArrayList<Interaction>(lines.size());
+					for (String line : lines) {
+						Interaction interaction = parse(line);
+						if (interaction != null)
+							interactions.add(interaction);
+					}
+					return interactions;
+				}
+			}));
+			// Merge whatever is already done, in order, so we don't hold on to it
+			while (!parsedChunks.isEmpty() && parsedChunks.peek().isDone())
+				mergeChunk(parsedChunks.poll().join());
+		}
+
+		private void mergeChunk(List<Interaction> interactions) {
+			for (Interaction interaction : interactions)
+				merge(interaction);
+		}
+
+		protected Interaction createInteraction(String alias1, String alias2, double distance,
+				double overlap) {
+			// Residues that can't be found are left null, and skipped when we merge
+			return new Interaction(alias1, chimeraManager.getResidue(alias1), alias2,
+					chimeraManager.getResidue(alias2), distance, overlap);
+		}
+
+		/**
+		 * Check a line in the order it was read. This is where the parser can look for headers.
+		 * 
+		 * @return true if the line should be parsed
+		 */
+		abstract boolean isInteraction(String line);
+
+		/**
+		 * Parse a line. This may be called from any thread, so it must not touch the network.
+		 * 
+		 * @return the interaction, or <code>null</code> if the line should be skipped
+		 */
+		abstract Interaction parse(String line);
+
+		/**
+		 * Add a parsed interaction to the RIN. This is called in the order the lines were read.
+		 */
+		abstract void merge(Interaction interaction);
+	}
+
 	/**
 	 * Clash replies look like: *preamble* *header line* *clash lines* where preamble is: Allowed
 	 * overlap: -0.4 H-bond overlap reduction: 0 Ignore contacts between atoms separated by 4 bonds
 	 * or less Ignore intra-residue contacts 44 contacts and the header line is: atom1 atom2 overlap
 	 * distance and the clash lines look like: :2470.A@N :323.A@OD2 -0.394 3.454
 	 */
-	private List<CyEdge> parseContactReplies(List<String> replyLog, CyNetwork rin,
-			Map<String, CyNode> nodeMap, boolean ignoreWater, boolean removeRedContacts,
-			String edgeType) {
-		// Scan for our header line
-		boolean foundHeader = false;
-		int index = 0;
-		for (index = 0; index < replyLog.size(); index++) {
-			String str = replyLog.get(index);
+	private class ContactReplyParser extends InteractionReplyParser {
+		private final String edgeType;
+		private boolean foundHeader = false;
+
+		ContactReplyParser(RINGraph rin, Map<String, CyNode> nodeMap, boolean ignoreWater,
+				boolean removeRedContacts, String edgeType) {
+			super(rin, nodeMap, ignoreWater, removeRedContacts);
+			this.edgeType = edgeType;
+		}
 
-			if (str.trim().startsWith("atom1")) {
-				foundHeader = true;
-				break;
+		boolean isInteraction(String str) {
+			// Scan for our header line
+			if (!foundHeader) {
+				if (str.startsWith("atom1"))
+					foundHeader = true;
+				return false;
 			}
+			return true;
 		}
-		if (!foundHeader)
-			return null;
 
-		Map<CyEdge, Double> distanceMap = new HashMap<CyEdge, Double>();
-		Map<CyEdge, Double> overlapMap = new HashMap<CyEdge, Double>();
-		for (++index; index < replyLog.size(); index++) {
-			// System.out.println(replyLog.get(index));
-			String[] line = replyLog.get(index).trim().split("\\s+");
+		Interaction parse(String str) {
+			// System.out.println(str);
+			String[] line = StringUtils.splitOnWhitespace(str);
 			if (line.length != 4)
-				continue;
-			CyEdge edge = createEdge(rin, nodeMap, ignoreWater, removeRedContacts, line[0],
-					line[1], edgeType);
-			if (edge == null) {
-				continue;
+				return null;
+			try {
+				return createInteraction(line[0], line[1], Double.parseDouble(line[3]),
+						Double.parseDouble(line[2]));
+			} catch (NumberFormatException ex) {
+				return null;
 			}
-
-			// We want the smallest distance
-			updateMap(distanceMap, edge, line[3], -1);
-			// We want the largest overlap
-			updateMap(overlapMap, edge, line[2], 1);
-		}
-		// OK, now update the edge attributes we want
-		for (CyEdge edge : distanceMap.keySet()) {
-			rin.getRow(edge).set(DISTANCE_ATTR, distanceMap.get(edge));
-			rin.getRow(edge).set(OVERLAP_ATTR, overlapMap.get(edge));
 		}
 
-		return new ArrayList<CyEdge>(distanceMap.keySet());
+		void merge(Interaction interaction) {
+			mergeContact(rin, nodeMap, ignoreWater, removeRedContacts, interaction, edgeType);
+		}
 	}
 
 	// H-bonds (donor, acceptor, hydrogen, D..A dist, D-H..A dist):
@@ -338,248 +711,369 @@ public class RINManager {
 	 * 2471.A N SER 296.A O no hydrogen 2.698 N/A HOH 2541.A O GLU 2471.A OE1 no hydrogen 2.746 N/A
 	 * HOH 2577.A O GLU 2471.A O no hydrogen 2.989 N/A
 	 */
-	private List<CyEdge> parseHBondReplies(List<String> replyLog, CyNetwork rin,
-			Map<String, CyNode> nodeMap, boolean ignoreWater, boolean removeRedContacts,
-			boolean addHydrogens) {
-		// Scan for our header line
-		boolean foundHeader = false;
-		int index = 0;
-		for (index = 0; index < replyLog.size(); index++) {
-			String str = replyLog.get(index);
-			// System.out.println("parseHBondReplies: "+str);
-			if (str.trim().startsWith("H-bonds")) {
-				foundHeader = true;
-				break;
-			}
+	private class HBondReplyParser extends InteractionReplyParser {
+		private final boolean addHydrogens;
+		private boolean foundHeader = false;
+
+		HBondReplyParser(RINGraph rin, Map<String, CyNode> nodeMap, boolean ignoreWater,
+				boolean removeRedContacts, boolean addHydrogens) {
+			super(rin, nodeMap, ignoreWater, removeRedContacts);
+			this.addHydrogens = addHydrogens;
 		}
-		if (!foundHeader) {
-			return null;
+
+		boolean isInteraction(String str) {
+			// Scan for our header line
+			if (!foundHeader) {
+				// System.out.println("parseHBondReplies: "+str);
+				if (str.startsWith("H-bonds"))
+					foundHeader = true;
+				return false;
+			}
+			return true;
 		}
 
-		Map<CyEdge, Double> distanceMap = new HashMap<CyEdge, Double>();
-		for (++index; index < replyLog.size(); index++) {
-			// System.out.println("parseHBondReplies: "+replyLog.get(index));
-			String[] line = replyLog.get(index).trim().split("\\s+");
+		Interaction parse(String str) {
+			String[] line = StringUtils.splitOnWhitespace(str);
 			if (line.length != 5 && line.length != 6)
-				continue;
+				return null;
 
-			CyEdge edge = createEdge(rin, nodeMap, ignoreWater, removeRedContacts, line[0],
-					line[1], HBONDEDGE);
-			if (edge == null) {
-				continue;
-			}
 			String distance = line[3];
 			if ((line[2].equals("no") && line[3].equals("hydrogen")) || addHydrogens) {
 				distance = line[4];
 			}
-			updateMap(distanceMap, edge, distance, -1); // We want the smallest
-														// distance
+			try {
+				return createInteraction(line[0], line[1], Double.parseDouble(distance),
+						Double.NaN);
+			} catch (NumberFormatException ex) {
+				return null;
+			}
 		}
 
-		// OK, now update the edge attributes we want
-		for (CyEdge edge : distanceMap.keySet()) {
-			rin.getRow(edge).set(DISTANCE_ATTR, distanceMap.get(edge));
+		void merge(Interaction interaction) {
+			int edge = createEdge(rin, nodeMap, ignoreWater, removeRedContacts, interaction,
+					HBONDEDGE);
+			if (edge < 0) {
+				return;
+			}
+			// We want the smallest distance
+			rin.updateMinDistance(edge, interaction.distance);
 		}
-
-		return new ArrayList<CyEdge>(distanceMap.keySet());
 	}
 
 	/**
 	 * Parse the connectivity information from Chimera. The data is of the form: physical chain
 	 * #0:283.A #0:710.A physical chain #0:283.B #0:710.B physical chain #0:283.C #0:710.C
 	 * 
-	 * We don't use this data to create new nodes -- only new edges. If two nodes are within the
-	 * same physical chain, we connect them with a "backbone/connected" edge
+	 * We don't use this data to create new nodes -- only new edges. If two nodes are adjacent
+	 * residues within the same physical chain, we connect them with a "backbone/connected"
+	 * edge. Rather than comparing every pair of nodes, we look up the residue for each node
+	 * once, sort the residues of each chain by residue number, and connect neighbors.
 	 */
-	private List<CyEdge> parseConnectivityReplies(List<String> replyLog, CyNetwork rin) {
-		List<CyEdge> edgeList = new ArrayList<CyEdge>();
-		List<ChimeraResidue[]> rangeList = new ArrayList<ChimeraResidue[]>();
+	private void parseConnectivityReplies(List<String> replyLog, RINGraph rin) {
+
+		// Get the ranges for each chain
+		Map<String, List<int[]>> rangeMap = new HashMap<String, List<int[]>>();
 		for (String line : replyLog) {
 			String[] tokens = StringUtils.tokenize(line);
 			if (tokens.length != 4)
 				continue;
-			String start = tokens[2];
-			String end = tokens[3];
-
-			ChimeraResidue[] range = new ChimeraResidue[2];
 
 			// Get the residues from the reside spec
-			range[0] = ChimUtils.getResidue(start, chimeraManager);
-			range[1] = ChimUtils.getResidue(end, chimeraManager);
-			if (range[0] != null && range[1] != null) {
-				rangeList.add(range);
-			}
+			ChimeraResidue start = ChimUtils.getResidue(tokens[2], chimeraManager);
+			ChimeraResidue end = ChimUtils.getResidue(tokens[3], chimeraManager);
+			// range should contain residues from the same chain
+			if (start == null || end == null || start.getChimeraModel() != end.getChimeraModel()
+					|| !start.getChainId().equals(end.getChainId()))
+				continue;
+
+			String chainKey = getChainKey(start);
+			if (!rangeMap.containsKey(chainKey))
+				rangeMap.put(chainKey, new ArrayList<int[]>());
+			rangeMap.get(chainKey).add(
+					new int[] { Math.min(start.getResidueNumber(), end.getResidueNumber()),
+							Math.max(start.getResidueNumber(), end.getResidueNumber()) });
 		}
+		if (rangeMap.size() == 0)
+			return;
 
-		// For each node pair, figure out if the pair is connected
-		List<CyNode> nodes = rin.getNodeList();
-		for (int i = 0; i < nodes.size(); i++) {
-			CyNode node1 = nodes.get(i);
-			ChimeraResidue[] range = getRange(rangeList, node1, rin);
-			if (range == null) {
+		// Find the chain and range for each of our residue nodes
+		Map<String, List<ConnectivityNode>> chainNodes = new HashMap<String, List<ConnectivityNode>>();
+		CyNetwork network = rin.getNetwork();
+		for (CyNode node : network.getNodeList()) {
+			String residueAttr = network.getRow(node).get(ChimUtils.DEFAULT_STRUCTURE_KEY,
+					String.class);
+			ChimeraStructuralObject cso = ChimUtils.fromAttribute(residueAttr, chimeraManager);
+			// Models and chains can't be connected
+			if (cso == null || !(cso instanceof ChimeraResidue))
 				continue;
-			}
-			for (int j = i + 1; j < nodes.size(); j++) {
-				CyNode node2 = nodes.get(j);
-				if (inRange2(range, node1, node2, rin)) {
-					// These two nodes are connected
-					edgeList.add(createConnectivityEdge(rin, node1, node2));
+			ChimeraResidue residue = (ChimeraResidue) cso;
+			String chainKey = getChainKey(residue);
+			List<int[]> ranges = rangeMap.get(chainKey);
+			if (ranges == null)
+				continue;
+			int residueNumber = residue.getResidueNumber();
+			for (int i = 0; i < ranges.size(); i++) {
+				int[] range = ranges.get(i);
+				if (range[0] <= residueNumber && residueNumber <= range[1]) {
+					if (!chainNodes.containsKey(chainKey))
+						chainNodes.put(chainKey, new ArrayList<ConnectivityNode>());
+					chainNodes.get(chainKey).add(
+							new ConnectivityNode(rin.getNode(node), residueNumber, i));
+					break;
 				}
 			}
 		}
 
-		// Now, make the edges based on whether any pair of nodes are in the
+		// Now, sweep along each chain and connect the nodes for consecutive residues in the
 		// same range
-		return edgeList;
+		for (List<ConnectivityNode> nodes : chainNodes.values()) {
+			Collections.sort(nodes);
+			int first = 0;
+			while (first < nodes.size()) {
+				// nodes [first, next) all have the same residue number and range
+				int next = first + 1;
+				while (next < nodes.size() && nodes.get(next).compareTo(nodes.get(first)) == 0)
+					next++;
+				int last = next;
+				while (last < nodes.size() && nodes.get(last).range == nodes.get(first).range
+						&& nodes.get(last).residueNumber == nodes.get(first).residueNumber + 1)
+					last++;
+				for (int i = first; i < next; i++) {
+					for (int j = next; j < last; j++) {
+						// These two nodes are connected
+						createConnectivityEdge(rin, nodes.get(i).node, nodes.get(j).node);
+					}
+				}
+				first = next;
+			}
+		}
+	}
+
+	private String getChainKey(ChimeraResidue residue) {
+		return residue.getChimeraModel().toSpec() + "/" + residue.getChainId();
+	}
+
+	/**
+	 * A residue node, sorted by the polymer range it's in and then by residue number
+	 */
+	private static class ConnectivityNode implements Comparable<ConnectivityNode> {
+		final int node;
+		final int residueNumber;
+		final int range;
+
+		ConnectivityNode(int node, int residueNumber, int range) {
+			this.node = node;
+			this.residueNumber = residueNumber;
+			this.range = range;
+		}
+
+		public int compareTo(ConnectivityNode other) {
+			if (range != other.range)
+				return range < other.range ? -1 : 1;
+			if (residueNumber != other.residueNumber)
+				return residueNumber < other.residueNumber ? -1 : 1;
+			return 0;
+		}
 	}
 
 	/**
 	 * 
 	 * distmat #0:36.A@CA #0:37.A@CA 3.777 distmat #0:36.A@CA #0:38.A@CA 6.663
-	 * 
-	 * @param replyLog
-	 * @param rin
-	 * @param nodeMap
-	 * @return
 	 */
-	private List<CyEdge> parseDistanceReplies(List<String> replyLog, CyNetwork rin,
-			Map<String, CyNode> nodeMap, boolean ignoreWater, boolean removeRedContacts,
-			double distCutoff, int includeInteractions) {
-		List<String> selectedResidues = chimeraManager.getSelectedResidueSpecs();
-		List<CyEdge> distEdges = new ArrayList<CyEdge>();
-		for (int index = 0; index < replyLog.size(); index++) {
-			// System.out.println(replyLog.get(index));
-			String[] line = replyLog.get(index).trim().split("\\s+");
+	private class DistanceReplyParser extends InteractionReplyParser {
+		private final double distCutoff;
+		private final int includeInteractions;
+
+		DistanceReplyParser(RINGraph rin, Map<String, CyNode> nodeMap, boolean ignoreWater,
+				boolean removeRedContacts, double distCutoff, int includeInteractions) {
+			super(rin, nodeMap, ignoreWater, removeRedContacts);
+			this.distCutoff = distCutoff;
+			this.includeInteractions = includeInteractions;
+		}
+
+		boolean isInteraction(String str) {
+			// Drop pairs that are out of the cutoff before we split the line. The check is a
+			// little generous, since parseLastNumber may be off in the last bit.
+			if (distCutoff != 0.0) {
+				double distance = StringUtils.parseLastNumber(str);
+				if (distance > distCutoff * (1.0 + 1e-9))
+					return false;
+			}
+			return true;
+		}
+
+		Interaction parse(String str) {
+			// System.out.println(str);
+			String[] line = StringUtils.splitOnWhitespace(str);
 			if (line.length != 4)
-				continue;
+				return null;
 
 			String distance = line[3];
 			// try to read distance and create an edge if distance between atoms smaller than cutoff
 			// special case of cutoff = 0: create all edges
 			try {
-				Double distNum = Double.parseDouble(distance);
+				double distNum = Double.parseDouble(distance);
 				String res1 = line[1].substring(0, line[1].indexOf("@"));
 				String res2 = line[2].substring(0, line[2].indexOf("@"));
 				// continue
 				// if distance is below cutoff or if cutoff is not set, i.e. equal to 0 (to retrieve
-				// all distance) and
-				// 1) if retrieve only for selected residues
-				// 2) if retrieve for selected and neighbors and the first residue is selected and
-				// the second is not
-				// 3) if retrieve for both selected and neighbors and the first residue is selected
+				// all distance) and the residues pass the selection filter
 				if ((distCutoff == 0.0 || distNum <= distCutoff)
-						&& (includeInteractions == 0
-								|| (includeInteractions == 1
-										&& ((selectedResidues.contains(res1) && !selectedResidues
-												.contains(res2))) || (selectedResidues
-										.contains(res2) && !selectedResidues.contains(res1))) || (includeInteractions == 2 && (selectedResidues
-								.contains(res1) || selectedResidues.contains(res2))))) {
-					CyEdge edge = createEdge(rin, nodeMap, ignoreWater, removeRedContacts, line[1],
-							line[2], DISTEDGE);
-					if (edge == null) {
-						continue;
-					}
-					distEdges.add(edge);
-					rin.getRow(edge).set(DISTANCE_ATTR, distNum);
+						&& isDistanceIncluded(rin, includeInteractions, res1, res2)) {
+					return createInteraction(line[1], line[2], distNum, Double.NaN);
 				}
 			} catch (Exception ex) {
 				// ignore
 			}
+			return null;
+		}
+
+		void merge(Interaction interaction) {
+			mergeDistance(rin, nodeMap, ignoreWater, removeRedContacts, interaction);
+		}
+	}
+
+	private void mergeContact(RINGraph rin, Map<String, CyNode> nodeMap, boolean ignoreWater,
+			boolean removeRedContacts, Interaction interaction, String edgeType) {
+		int edge = createEdge(rin, nodeMap, ignoreWater, removeRedContacts, interaction, edgeType);
+		if (edge < 0) {
+			return;
 		}
-		return distEdges;
+
+		// We want the smallest distance
+		rin.updateMinDistance(edge, interaction.distance);
+		// We want the largest overlap
+		rin.updateMaxOverlap(edge, interaction.overlap);
+	}
+
+	private void mergeDistance(RINGraph rin, Map<String, CyNode> nodeMap, boolean ignoreWater,
+			boolean removeRedContacts, Interaction interaction) {
+		int edge = createEdge(rin, nodeMap, ignoreWater, removeRedContacts, interaction, DISTEDGE);
+		if (edge < 0) {
+			return;
+		}
+		rin.setDistance(edge, interaction.distance);
+	}
+
+	/**
+	 * Decide whether to keep the distance between two residues, depending on which of them are
+	 * selected:
+	 * 1) if retrieve only for selected residues
+	 * 2) if retrieve for selected and neighbors and the first residue is selected and the second
+	 * is not
+	 * 3) if retrieve for both selected and neighbors and the first residue is selected
+	 */
+	private static boolean isDistanceIncluded(RINGraph rin, int includeInteractions,
+			String res1, String res2) {
+		boolean selected1 = rin.isSelected(res1);
+		boolean selected2 = rin.isSelected(res2);
+		return includeInteractions == 0
+				|| (includeInteractions == 1 && selected1 && !selected2)
+				|| (selected2 && !selected1)
+				|| (includeInteractions == 2 && (selected1 || selected2));
+	}
+
+	/**
+	 * The atom selection rules of the clash command: "sel test self", "sel test other", or "sel
+	 * test model"
+	 */
+	private static boolean isContactIncluded(RINGraph rin, int includeInteractions,
+			AtomCoordinates atoms, int atom1, int atom2) {
+		boolean selected1 = rin.isSelected(atoms.getResidueSpec(atom1));
+		boolean selected2 = rin.isSelected(atoms.getResidueSpec(atom2));
+		if (includeInteractions == 0)
+			return selected1 && selected2;
+		else if (includeInteractions == 1)
+			return selected1 != selected2;
+		return (selected1 || selected2)
+				&& atoms.getResidue(atom1).getChimeraModel() == atoms.getResidue(atom2)
+						.getChimeraModel();
 	}
 
-	private CyEdge createEdge(CyNetwork rin, Map<String, CyNode> nodeMap, boolean ignoreWater,
-			boolean removeRedContacts, String sourceAlias, String targetAlias, String type) {
+	/**
+	 * Add an interaction between two atoms to the RIN. If there is already an edge of the same
+	 * subtype between the two residues, the interaction is added to it.
+	 * 
+	 * @return the edge id, or -1 if either residue isn't part of the network
+	 */
+	private int createEdge(RINGraph rin, Map<String, CyNode> nodeMap, boolean ignoreWater,
+			boolean removeRedContacts, Interaction interaction, String type) {
 		// Create our two nodes. Note that makeResidueNode also adds three
 		// attributes:
 		// 1) FunctionalResidues; 2) Seed; 3) SideChainOnly
-		// sort source and target to avoid duplicated edges with different directions
-		List<String> residues = new ArrayList<String>();
-		residues.add(sourceAlias);
-		residues.add(targetAlias);
-		Collections.sort(residues);
-		CyNode source = createResidueNode(rin, nodeMap, ignoreWater, residues.get(0));
-		CyNode target = createResidueNode(rin, nodeMap, ignoreWater, residues.get(1));
-		if (source == null || target == null) {
-			return null;
+		// source and target are already sorted to avoid duplicated edges with different directions
+		String sourceResidue = interaction.sourceAlias;
+		String targetResidue = interaction.targetAlias;
+		CyNode sourceNode = createResidueNode(rin.getNetwork(), nodeMap, ignoreWater,
+				interaction.sourceResidue);
+		CyNode targetNode = createResidueNode(rin.getNetwork(), nodeMap, ignoreWater,
+				interaction.targetResidue);
+		if (sourceNode == null || targetNode == null) {
+			return -1;
 		}
-		String interactingAtoms = residues.get(0) + "," + residues.get(1);
-		String sourceAtom = ChimUtils.getAtomName(residues.get(0));
-		String targetAtom = ChimUtils.getAtomName(residues.get(1));
-		List<String> subtype = new ArrayList<String>();
-		subtype.add(ChimUtils.getIntSubtype(rin.getRow(source).get(CyNetwork.NAME, String.class),
-				sourceAtom));
-		subtype.add(ChimUtils.getIntSubtype(rin.getRow(target).get(CyNetwork.NAME, String.class),
-				targetAtom));
-		Collections.sort(subtype);
-		String interactionSubtype = type + SUBTYPEDELIM1 + subtype.get(0) + SUBTYPEDELIM2
-				+ subtype.get(1);
+		int source = rin.getNode(sourceNode);
+		int target = rin.getNode(targetNode);
+		String interactingAtoms = sourceResidue + "," + targetResidue;
+		String sourceSubtype = ChimUtils.getIntSubtype(rin.getNodeName(source),
+				ChimUtils.getAtomName(sourceResidue));
+		String targetSubtype = ChimUtils.getIntSubtype(rin.getNodeName(target),
+				ChimUtils.getAtomName(targetResidue));
+		if (sourceSubtype.compareTo(targetSubtype) > 0) {
+			String subtype = sourceSubtype;
+			sourceSubtype = targetSubtype;
+			targetSubtype = subtype;
+		}
+		String interactionSubtype = type + SUBTYPEDELIM1 + sourceSubtype + SUBTYPEDELIM2
+				+ targetSubtype;
 
 		// Check if our edge already exists
-		CyEdge edge = null;
-		List<CyEdge> existingEdges = rin.getConnectingEdgeList(source, target, Type.ANY);
-		if (existingEdges.size() > 0) {
-			for (CyEdge exEdge : existingEdges) {
-				// if it already exists, add new pair of interacting atoms
-				List<String> exEdgeAtoms = rin.getRow(exEdge).getList(INTATOMS_ATTR, String.class);
-				if (rin.getRow(exEdge).get(INTSUBTYPE_ATTR, String.class)
-						.equals(interactionSubtype)) {
-					exEdgeAtoms.add(interactingAtoms);
-					rin.getRow(exEdge).set(INTATOMS_ATTR, exEdgeAtoms);
-					rin.getRow(exEdge).set(NUMINT_ATTR,
-							rin.getRow(exEdge).get(NUMINT_ATTR, Integer.class) + 1);
-					return exEdge;
-				}
-				// if a contact should be replaced by a hydrogen bond since they are redundant
-				if (removeRedContacts
-						&& type.equals(HBONDEDGE)
-						&& rin.getRow(exEdge)
-								.get(INTSUBTYPE_ATTR, String.class)
-								.equals(CONTACTEDGE + SUBTYPEDELIM1 + subtype.get(0)
-										+ SUBTYPEDELIM2 + subtype.get(1))) {
-					if (exEdgeAtoms.contains(interactingAtoms)) {
-						if (exEdgeAtoms.size() == 1) {
-							edge = exEdge;
-							rin.getRow(edge).set(OVERLAP_ATTR, null);
-							break;
-						} else {
-							// if the hudrogen bond is redundant with only one of the contacts,
-							// don't replace it, but decrease the number of contacts
-							exEdgeAtoms.remove(interactingAtoms);
-							rin.getRow(exEdge).set(INTATOMS_ATTR, exEdgeAtoms);
-							rin.getRow(exEdge).set(NUMINT_ATTR,
-									rin.getRow(exEdge).get(NUMINT_ATTR, Integer.class) - 1);
-						}
+		int edge = -1;
+		for (int exEdge : rin.getEdges(source, target)) {
+			// if it already exists, add new pair of interacting atoms
+			List<String> exEdgeAtoms = rin.getAtoms(exEdge);
+			if (rin.getSubtype(exEdge).equals(interactionSubtype)) {
+				exEdgeAtoms.add(interactingAtoms);
+				rin.setCount(exEdge, rin.getCount(exEdge) + 1);
+				return exEdge;
+			}
+			// if a contact should be replaced by a hydrogen bond since they are redundant
+			if (removeRedContacts
+					&& type.equals(HBONDEDGE)
+					&& rin.getSubtype(exEdge).equals(
+							CONTACTEDGE + SUBTYPEDELIM1 + sourceSubtype + SUBTYPEDELIM2
+									+ targetSubtype)) {
+				if (exEdgeAtoms.contains(interactingAtoms)) {
+					if (exEdgeAtoms.size() == 1) {
+						edge = exEdge;
+						rin.setOverlap(edge, Double.NaN);
+						rin.setDistance(edge, Double.NaN);
+						break;
+					} else {
+						// if the hudrogen bond is redundant with only one of the contacts,
+						// don't replace it, but decrease the number of contacts
+						exEdgeAtoms.remove(interactingAtoms);
+						rin.setCount(exEdge, rin.getCount(exEdge) - 1);
 					}
 				}
 			}
 		}
 		// if not, create our edge
-		if (edge == null) {
-			edge = rin.addEdge(source, target, true);
+		if (edge < 0) {
+			edge = rin.addEdge(source, target, type, interactionSubtype);
 		}
 		// and set its attributes
-		String edgeName = rin.getRow(source).get(CyNetwork.NAME, String.class) + " (" + type + ") "
-				+ rin.getRow(target).get(CyNetwork.NAME, String.class);
-		rin.getRow(edge).set(CyNetwork.NAME, edgeName);
-		rin.getRow(edge).set(CyEdge.INTERACTION, type);
-		rin.getRow(edge).set(INTSUBTYPE_ATTR, interactionSubtype);
-		rin.getRow(edge).set(NUMINT_ATTR, 1);
+		rin.setType(edge, type, interactionSubtype);
+		rin.setCount(edge, 1);
 		List<String> intAtomsAttr = new ArrayList<String>();
 		intAtomsAttr.add(interactingAtoms);
-		rin.getRow(edge).set(INTATOMS_ATTR, intAtomsAttr);
+		rin.setAtoms(edge, intAtomsAttr);
 		return edge;
 	}
 
-	private CyEdge createConnectivityEdge(CyNetwork rin, CyNode node1, CyNode node2) {
-		CyEdge edge = rin.addEdge(node1, node2, true);
-		String edgeName = rin.getRow(node1).get(CyNetwork.NAME, String.class) + " (" + BBEDGE
-				+ ") " + rin.getRow(node2).get(CyNetwork.NAME, String.class);
-		rin.getRow(edge).set(CyNetwork.NAME, edgeName);
-		rin.getRow(edge).set(CyEdge.INTERACTION, BBEDGE);
-		rin.getRow(edge).set(INTSUBTYPE_ATTR, BBEDGE + SUBTYPEDELIM1 + "mc" + SUBTYPEDELIM2 + "mc");
-		rin.getRow(edge).set(NUMINT_ATTR, 1);
+	private int createConnectivityEdge(RINGraph rin, int node1, int node2) {
+		int edge = rin.addEdge(node1, node2, BBEDGE, BBEDGE + SUBTYPEDELIM1 + "mc"
+				+ SUBTYPEDELIM2 + "mc");
+		rin.setCount(edge, 1);
 		return edge;
 	}
 
@@ -589,16 +1083,15 @@ public class RINManager {
 		// We want to convert that to a node identifier of [pdbid#]ABC nnn
 		// and add FunctionalResidues and BackboneOnly attributes
 		// boolean singleModel = false;
-		AtomSpec spec = AtomSpec.getChimeraXAtomSpec(alias, structureManager);
-		ChimeraModel model = chimeraManager.getChimeraModel(spec);
-		if (model == null) {
-			model = chimeraManager.getChimeraModel();
-			// singleModel = true;
-		}
-		ChimeraResidue residue = ChimUtils.getResidue(spec, model, chimeraManager);
+		return createResidueNode(rin, nodeMap, ignoreWater, chimeraManager.getResidue(alias));
+	}
+
+	private CyNode createResidueNode(CyNetwork rin, Map<String, CyNode> nodeMap,
+			boolean ignoreWater, ChimeraResidue residue) {
 		if (residue == null || (ignoreWater && residue.getType().equals("HOH"))) {
 			return null;
 		}
+		ChimeraModel model = residue.getChimeraModel();
 		// boolean backbone = ChimUtils.isBackbone(alias);
 
 		int displayType = ChimeraResidue.getDisplayType();
@@ -657,124 +1150,24 @@ public class RINManager {
 		return node;
 	}
 
-	private void updateMap(Map<CyEdge, Double> map, CyEdge edge, String value, int comparison) {
-		// Save the minimum distance between atoms
-		Double v = Double.valueOf(value);
-		if (map.containsKey(edge)) {
-			if (comparison < 0 && map.get(edge).compareTo(v) > 0)
-				map.put(edge, v);
-			else if (comparison > 0 && map.get(edge).compareTo(v) < 0)
-				map.put(edge, v);
-		} else {
-			map.put(edge, v);
-		}
-	}
-
-	private ChimeraResidue[] getRange(List<ChimeraResidue[]> rangeList, CyNode node, CyNetwork rin) {
-		for (ChimeraResidue[] range : rangeList) {
-			if (inRange(range, node, rin))
-				return range;
-		}
-		return null;
-	}
-
-	private boolean inRange(ChimeraResidue[] range, CyNode node, CyNetwork rin) {
-		String residueAttr = rin.getRow(node).get(ChimUtils.DEFAULT_STRUCTURE_KEY, String.class);
-		ChimeraStructuralObject cso = ChimUtils.fromAttribute(residueAttr, chimeraManager);
-		// Models can't be in a range...
-		if (cso == null || cso instanceof ChimeraModel)
-			return false;
-
-		// A chain might be in a range -- check this
-		if (cso instanceof ChimeraChain) {
-			String chainID = ((ChimeraChain) cso).getChainId();
-			return inChainRange(range, chainID);
-		}
-
-		// OK, we have a residue, but we need to be careful to make
-		// sure that the chains match
-		ChimeraResidue residue = (ChimeraResidue) cso;
-		if (!inChainRange(range, residue.getChainId())) {
-			return false;
-		}
-
-		int startIndex = range[0].residueNumber;
-		int endIndex = range[1].residueNumber;
-		int residueIndex = residue.residueNumber;
-
-		if (endIndex < startIndex) {
-			if (endIndex <= residueIndex && residueIndex <= startIndex)
-				return true;
-		} else {
-			if (startIndex <= residueIndex && residueIndex <= endIndex)
-				return true;
-		}
-
-		return false;
-	}
-
-	private boolean inRange2(ChimeraResidue[] range, CyNode node1, CyNode node2, CyNetwork rin) {
-		ChimeraStructuralObject cso1 = ChimUtils.fromAttribute(
-				rin.getRow(node1).get(ChimUtils.DEFAULT_STRUCTURE_KEY, String.class),
-				chimeraManager);
-		ChimeraStructuralObject cso2 = ChimUtils.fromAttribute(
-				rin.getRow(node2).get(ChimUtils.DEFAULT_STRUCTURE_KEY, String.class),
-				chimeraManager);
-		// Models can't be in a range...
-		if (cso1 == null || cso1 instanceof ChimeraModel || cso1 instanceof ChimeraChain
-				|| cso2 == null || cso2 instanceof ChimeraModel || cso2 instanceof ChimeraChain)
-			return false;
-
-		// OK, we have a residue, but we need to be careful to make
-		// sure that the chains match
-		ChimeraResidue residue1 = (ChimeraResidue) cso1;
-		ChimeraResidue residue2 = (ChimeraResidue) cso2;
-
-		if (!inChainRange(range, residue1.getChainId())) {
-			return false;
-		} else if (!inChainRange(range, residue2.getChainId())) {
-			return false;
-		}
-
-		int startIndex = range[0].residueNumber;
-		int endIndex = range[1].residueNumber;
-		int residueIndex1 = residue1.residueNumber;
-		int residueIndex2 = residue2.residueNumber;
-		int diff = Math.abs(residueIndex1 - residueIndex2);
-
-		if (endIndex < startIndex) {
-			if (diff == 1 && endIndex <= residueIndex1 && residueIndex1 <= startIndex
-					&& endIndex <= residueIndex2 && residueIndex2 <= startIndex)
-				return true;
-		} else {
-			if (diff == 1 && startIndex <= residueIndex1 && residueIndex1 <= endIndex
-					&& startIndex <= residueIndex2 && residueIndex2 <= endIndex)
-				return true;
-		}
-		return false;
-	}
-
-	private boolean inChainRange(ChimeraResidue[] range, String chainID) {
-		String start = range[0].getChainId();
-		String end = range[1].getChainId();
-		// range should contain residues from the same chain
-		if (!start.equals(end)) {
-			return false;
-		}
-		// change positions if necessary
-		if (start.compareTo(end) > 0) {
-			end = range[0].getChainId();
-			start = range[1].getChainId();
-		}
-		// chainID should be in the chain
-		if (start.compareTo(chainID) <= 0 && chainID.compareTo(end) <= 0) {
-			return true;
-		}
-		return false;
-	}
-
 	public CyNetwork createRIN(Map<String, CyNode> nodeMap, String networkName,
 			boolean ignoreWater, boolean includeCombiEdges) {
+		return createRIN(nodeMap, new ArrayList<String>(), networkName, ignoreWater,
+				includeCombiEdges);
+	}
+
+	/**
+	 * Create a new RIN containing the selected residues.
+	 * 
+	 * @param nodeMap
+	 *            filled in with the residue nodes, indexed by name
+	 * @param selectedResidues
+	 *            filled in with the specs of the selected residues, so that later passes don't
+	 *            have to ask Chimera again
+	 * @return the new network
+	 */
+	public CyNetwork createRIN(Map<String, CyNode> nodeMap, Collection<String> selectedResidues,
+			String networkName, boolean ignoreWater, boolean includeCombiEdges) {
 		// get factories, etc.
 		CyNetworkFactory cyNetworkFactory = (CyNetworkFactory) structureManager
 				.getService(CyNetworkFactory.class);
@@ -802,6 +1195,7 @@ public class RINManager {
 
 		// add all selected nodes
 		List<String> residues = chimeraManager.getSelectedResidueSpecs();
+		selectedResidues.addAll(residues);
 		for (String res : residues) {
 			// System.out.println("get selected residue: "+res);
 			createResidueNode(rin, nodeMap, ignoreWater, res);
@@ -820,57 +1214,94 @@ public class RINManager {
 	}
 
 	public void annotate(CyNetwork network, String resAttr, String command) {
+		annotate(network, Collections.singletonList(resAttr), Collections.singletonList(command));
+	}
+
+	/**
+	 * Annotate the residue nodes of a network with several Chimera residue attributes at once.
+	 * All of the attributes are fetched for all of the associated models before anything is
+	 * written, and then each column is written in one pass over the residues.
+	 * 
+	 * @param network
+	 *            the network to annotate
+	 * @param resAttrs
+	 *            the names of the columns to write
+	 * @param commands
+	 *            the Chimera attribute for each column
+	 * @return the columns Chimera couldn't give us all of the values for
+	 */
+	public List<String> annotate(CyNetwork network, List<String> resAttrs, List<String> commands) {
+		List<String> failed = new ArrayList<String>();
 		// get models
 		Set<ChimeraStructuralObject> chimObjs = structureManager.getAssociatedChimObjs(network);
 		if (chimObjs == null) {
-			return;
+			return failed;
 		}
-		// System.out.println("Annotate from " + chimObjs.size() + " chimera objects.");
 		// TODO: [Optional] What to do if there are two open models associated with the same
 		// network?
 		// Now, attributes are just overwritten
+		List<ChimeraModel> models = new ArrayList<ChimeraModel>();
 		for (ChimeraStructuralObject chimObj : chimObjs) {
-			if (chimObj instanceof ChimeraModel) {
-				// get attribute values
-				Map<ChimeraResidue, Object> resValues = 
-				                     chimeraManager.getAttrValues(command,
-						                                              chimObj.getChimeraModel(), false);
-				if (resValues.size() == 0) {
-					continue;
+			if (chimObj instanceof ChimeraModel)
+				models.add(chimObj.getChimeraModel());
+		}
+		ResidueAttributes resValues = chimeraManager.getAttrValues(commands, models);
+		for (int attr = 0; attr < resAttrs.size(); attr++) {
+			if (resValues.isFailed(attr))
+				failed.add(resAttrs.get(attr));
+		}
+		if (resValues.getResidueCount() == 0) {
+			return failed;
+		}
+
+		// find the nodes for each residue once, for all of the columns
+		List<List<CyIdentifiable>> resNodes = new ArrayList<List<CyIdentifiable>>();
+		for (int res = 0; res < resValues.getResidueCount(); res++) {
+			List<CyIdentifiable> nodes = new ArrayList<CyIdentifiable>();
+			Set<CyIdentifiable> cyObjs = structureManager.getAssociatedCyObjs(resValues
+					.getResidue(res));
+			if (cyObjs != null) {
+				for (CyIdentifiable cyId : cyObjs) {
+					if (cyId instanceof CyNode && network.containsNode((CyNode) cyId))
+						nodes.add(cyId);
 				}
-				Object testObj = resValues.values().iterator().next();
-				if (testObj == null) {
+			}
+			resNodes.add(nodes);
+		}
+
+		CyTable nodeTable = network.getDefaultNodeTable();
+		for (int attr = 0; attr < resAttrs.size(); attr++) {
+			String resAttr = resAttrs.get(attr);
+			Class<?> type = resValues.getType(attr);
+			if (type == null) {
+				continue;
+			}
+			// create attribute
+			if (nodeTable.getColumn(resAttr) != null
+					&& nodeTable.getColumn(resAttr).getType() != type) {
+				nodeTable.deleteColumn(resAttr);
+			}
+			if (nodeTable.getColumn(resAttr) == null) {
+				nodeTable.createColumn(resAttr, type, false);
+			}
+			// save all the values
+			boolean ribbonColor = commands.get(attr).equals("ribbon_color");
+			for (int res = 0; res < resValues.getResidueCount(); res++) {
+				Object value = resValues.get(res, attr);
+				if (value == null || value.getClass() != type) {
 					continue;
 				}
-				// create attribute
-				if (network.getDefaultNodeTable().getColumn(resAttr) != null
-						&& network.getDefaultNodeTable().getColumn(resAttr).getType() != testObj
-								.getClass()) {
-					network.getDefaultNodeTable().deleteColumn(resAttr);
-				} else if (network.getDefaultNodeTable().getColumn(resAttr) == null) {
-					network.getDefaultNodeTable().createColumn(resAttr, testObj.getClass(), false);
+				// Special case ribbon_color to remove the alpha
+				if (ribbonColor) {
+					String[] colors = ((String) value).split(",");
+					value = colors[0] + "," + colors[1] + "," + colors[2];
 				}
-				// save all the values
-				for (ChimeraResidue res : resValues.keySet()) {
-					Set<CyIdentifiable> cyObjs = structureManager.getAssociatedCyObjs(res);
-					if (cyObjs == null) {
-						continue;
-					}
-					for (CyIdentifiable cyId : cyObjs) {
-						if (cyId instanceof CyNode && network.containsNode((CyNode) cyId)) {
-							// Special case ribbon_color to remove the alpha
-							if (command.equals("ribbon_color")) {
-								String[] colors = ((String)resValues.get(res)).split(",");
-								String color = colors[0]+","+colors[1]+","+colors[2];
-								network.getRow(cyId).set(resAttr, color);
-							} else {
-								network.getRow(cyId).set(resAttr, resValues.get(res));
-							}
-						}
-					}
+				for (CyIdentifiable cyId : resNodes.get(res)) {
+					network.getRow(cyId).set(resAttr, value);
 				}
 			}
 		}
+		return failed;
 	}
 
 	public void annotateSS(CyNetwork network) {
@@ -913,89 +1344,67 @@ public class RINManager {
 	}
 
 	public void annotateCoord(CyNetwork network, String resAttr) {
+		annotateCoord(network, resAttr, CentroidAccumulator.Mode.ALL_ATOMS);
+	}
+
+	/**
+	 * Save the centroid of each residue as the .x, .y and .z columns of its nodes
+	 * 
+	 * @param network
+	 *            the network to annotate
+	 * @param resAttr
+	 *            the column name prefix
+	 * @param mode
+	 *            which atoms of each residue to average
+	 */
+	public void annotateCoord(CyNetwork network, String resAttr, CentroidAccumulator.Mode mode) {
 		Set<ChimeraStructuralObject> chimObjs = structureManager.getAssociatedChimObjs(network);
 		if (chimObjs == null) {
 			return;
 		}
-		if (network.getDefaultNodeTable().getColumn(resAttr + ".x") == null) {
-			network.getDefaultNodeTable().createColumn(resAttr + ".x", Double.class, false);
-		}
-		if (network.getDefaultNodeTable().getColumn(resAttr + ".y") == null) {
-			network.getDefaultNodeTable().createColumn(resAttr + ".y", Double.class, false);
-		}
-		if (network.getDefaultNodeTable().getColumn(resAttr + ".z") == null) {
-			network.getDefaultNodeTable().createColumn(resAttr + ".z", Double.class, false);
+		CyTable nodeTable = network.getDefaultNodeTable();
+		String[] columns = { resAttr + ".x", resAttr + ".y", resAttr + ".z" };
+		for (String column : columns) {
+			if (nodeTable.getColumn(column) == null) {
+				nodeTable.createColumn(column, Double.class, false);
+			}
 		}
-		// get coordinates
-		Map<ChimeraResidue, List<double[]>> resCoords = new HashMap<ChimeraResidue, List<double[]>>();
+		// get coordinates, keeping a running sum of the atom coordinates and the
+		// number of atoms for each residue
+		CentroidAccumulator centroids = new CentroidAccumulator(chimeraManager, mode,
+				isParallelParsing());
 		for (ChimeraStructuralObject model : chimObjs) {
 			if (model instanceof ChimeraModel) {
-				List<String> reply = chimeraIO.sendChimeraCommand("getcrd "+model.toSpec()+" screen", true);
-				if (reply == null) {
-					continue;
-				}
-				String[] lineParts = null;
-				for (String inputLine : reply) {
-					// response from chimera should look like this:
-					// Atom #0/A:355@C 36.598 78.221 2.056
-					// Atom #0/A:355@CA 35.276 77.803 1.543
-					lineParts = inputLine.split("\\s+");
-					if (lineParts.length != 5) {
-						continue;
-					}
-					AtomSpec spec = AtomSpec.getChimeraXAtomSpec(lineParts[1], structureManager);
-					ChimeraResidue residue = ChimUtils.getResidue(spec, model.getChimeraModel(), 
-					                                              chimeraManager);
-					String atom = spec.getAtomName();
-					if (residue == null) {
-						continue;
-					}
-					double[] coord = null;
-					try {
-						coord = new double[3];
-						for (int i = 0; i < 3; i++) {
-							coord[i] = Double.valueOf(lineParts[i + 2]);
-						}
-						// TODO: average location of ligands?
-						// if (!resCoords.containsKey(residue) || atom.equals("CA")) {
-						// 	resCoords.put(residue, coord);
-						// }
-						if (!resCoords.containsKey(residue)) {
-							resCoords.put(residue, new ArrayList<double[]>());
-						}
-						resCoords.get(residue).add(coord);
-					} catch (NumberFormatException ex) {
-						// no coordinates for this node, ignore
-						// ex.printStackTrace();
-					}
-				}
+				chimeraIO.sendChimeraCommand("getcrd " + model.toSpec() + " screen", centroids);
+				centroids.finish();
 			}
 		}
 
-		for (ChimeraResidue residue: resCoords.keySet()) {
-			double coords[] = {0.0,0.0,0.0};
-			int atoms = resCoords.get(residue).size();
-			for (double[] coord: resCoords.get(residue)) {
-				coords[0] += coord[0]/atoms;
-				coords[1] += coord[1]/atoms;
-				coords[2] += coord[2]/atoms;
+		// find the nodes for each residue
+		List<List<CyIdentifiable>> resNodes = new ArrayList<List<CyIdentifiable>>();
+		for (int res = 0; res < centroids.getResidueCount(); res++) {
+			List<CyIdentifiable> nodes = new ArrayList<CyIdentifiable>();
+			Set<CyIdentifiable> cyObjs = structureManager.getAssociatedCyObjs(centroids
+					.getResidue(res));
+			if (cyObjs != null) {
+				for (CyIdentifiable cyId : cyObjs) {
+					if (cyId instanceof CyNode && network.containsNode((CyNode) cyId))
+						nodes.add(cyId);
+				}
 			}
-			resCoords.get(residue).add(0, coords);
+			resNodes.add(nodes);
 		}
 
-		// save coordinates as attributes
-		for (CyNode node : network.getNodeList()) {
-			Set<ChimeraStructuralObject> nodeChimObjs = 
-							structureManager.getAssociatedChimObjs(node);
-			if (nodeChimObjs == null) {
-				continue;
-			}
-			for (ChimeraStructuralObject chimObj : nodeChimObjs) {
-				if (resCoords.containsKey(chimObj)) {
-					final double[] coord = resCoords.get(chimObj).get(0);
-					network.getRow(node).set(resAttr + ".x", coord[0]);
-					network.getRow(node).set(resAttr + ".y", coord[1]);
-					network.getRow(node).set(resAttr + ".z", coord[2]);
+		// save coordinates as attributes, one column at a time
+		for (int axis = 0; axis < columns.length; axis++) {
+			for (int res = 0; res < centroids.getResidueCount(); res++) {
+				List<CyIdentifiable> nodes = resNodes.get(res);
+				if (nodes.isEmpty()) {
+					continue;
+				}
+				Double coord = centroids.getCentroid(res, axis);
+				for (CyIdentifiable cyId : nodes) {
+					network.getRow(cyId).set(columns[axis], coord);
 				}
 			}
 		}
@@ -1069,24 +1478,30 @@ public class RINManager {
 				}
 			}
 		}
-		for (final Color color : color2res.keySet()) {
-			List<AtomSpec> specList = color2res.get(color);
-			Collections.sort(specList);
-			String spec = AtomSpec.collapseSpecs(specList);
-			String colorDef = null;
-			try {
-				float[] rgbColorCodes = color.getRGBColorComponents(null);
-				for (int i = 0; i < rgbColorCodes.length; i++) {
-					if (colorDef == null)
-						colorDef = ""+(int)(rgbColorCodes[i]*255);
-					else
-						colorDef += ","+(int)(rgbColorCodes[i]*255);
+		// Send all of the color commands in as few requests as possible
+		chimeraIO.beginBatch();
+		try {
+			for (final Color color : color2res.keySet()) {
+				List<AtomSpec> specList = color2res.get(color);
+				Collections.sort(specList);
+				String spec = AtomSpec.collapseSpecs(specList);
+				String colorDef = null;
+				try {
+					float[] rgbColorCodes = color.getRGBColorComponents(null);
+					for (int i = 0; i < rgbColorCodes.length; i++) {
+						if (colorDef == null)
+							colorDef = ""+(int)(rgbColorCodes[i]*255);
+						else
+							colorDef += ","+(int)(rgbColorCodes[i]*255);
+					}
+				} catch (Exception e) {
+					continue;
 				}
-			} catch (Exception e) {
-				continue;
+				chimeraIO.sendChimeraCommand("color "+spec+" rgb("+colorDef+") target ar",
+				 		false);
 			}
-			chimeraIO.sendChimeraCommand("color "+spec+" rgb("+colorDef+") target ar",
-			 		false);
+		} finally {
+			chimeraIO.flush();
 		}
 	}
 
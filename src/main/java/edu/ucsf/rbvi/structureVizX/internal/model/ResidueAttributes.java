@@ -0,0 +1,116 @@
+package edu.ucsf.rbvi.structureVizX.internal.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The values of several residue attributes for a set of residues, fetched from Chimera in one
+ * go (see {@link ChimeraManager#getAttrValues(List, Collection)}). Values are stored by column,
+ * one array per attribute, indexed by the order in which the residues were added. Missing
+ * values are <code>null</code>.
+ *
+ * This class is not thread-safe.
+ */
+public class ResidueAttributes {
+	private final List<String> attributes;
+	private final Map<ChimeraResidue, Integer> residueIds = new HashMap<ChimeraResidue, Integer>();
+	private final List<ChimeraResidue> residues = new ArrayList<ChimeraResidue>();
+	private final Object[][] columns;
+	// The type of the first value of each attribute
+	private final Class<?>[] types;
+	// The attributes Chimera couldn't give us for at least one model
+	private final boolean[] failed;
+	private int capacity = 16;
+
+	/**
+	 * @param attributes
+	 *            the attribute names, in column order
+	 */
+	public ResidueAttributes(List<String> attributes) {
+		this.attributes = new ArrayList<String>(attributes);
+		this.columns = new Object[attributes.size()][capacity];
+		this.types = new Class<?>[attributes.size()];
+		this.failed = new boolean[attributes.size()];
+	}
+
+	public List<String> getAttributes() {
+		return Collections.unmodifiableList(attributes);
+	}
+
+	public int getResidueCount() {
+		return residues.size();
+	}
+
+	public ChimeraResidue getResidue(int residue) {
+		return residues.get(residue);
+	}
+
+	/**
+	 * Get the row of a residue, adding it if we haven't seen it before
+	 *
+	 * @param residue
+	 *            the residue
+	 * @return the row index
+	 */
+	public int addResidue(ChimeraResidue residue) {
+		Integer id = residueIds.get(residue);
+		if (id != null)
+			return id;
+		id = residues.size();
+		if (id == capacity) {
+			capacity *= 2;
+			for (int attribute = 0; attribute < columns.length; attribute++)
+				columns[attribute] = Arrays.copyOf(columns[attribute], capacity);
+		}
+		residueIds.put(residue, id);
+		residues.add(residue);
+		return id;
+	}
+
+	/**
+	 * Set a value
+	 *
+	 * @param residue
+	 *            the row, from {@link #addResidue(ChimeraResidue)}
+	 * @param attribute
+	 *            the column
+	 * @param value
+	 *            the value, a Boolean, Double or String
+	 */
+	public void set(int residue, int attribute, Object value) {
+		columns[attribute][residue] = value;
+		if (types[attribute] == null && value != null)
+			types[attribute] = value.getClass();
+	}
+
+	/**
+	 * @return the value, or <code>null</code> if the residue doesn't have one
+	 */
+	public Object get(int residue, int attribute) {
+		return columns[attribute][residue];
+	}
+
+	/**
+	 * @return the type of the first value of an attribute, or <code>null</code> if it has no
+	 *         values
+	 */
+	public Class<?> getType(int attribute) {
+		return types[attribute];
+	}
+
+	/**
+	 * Mark an attribute as failed, i.e. Chimera couldn't give us its values for some model
+	 */
+	public void setFailed(int attribute) {
+		failed[attribute] = true;
+	}
+
+	public boolean isFailed(int attribute) {
+		return failed[attribute];
+	}
+}
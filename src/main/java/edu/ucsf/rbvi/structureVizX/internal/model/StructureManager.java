@@ -1,17 +1,32 @@
 package edu.ucsf.rbvi.structureVizX.internal.model;
 
+import java.awt.Color;
 import java.awt.Component;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 import org.cytoscape.application.CyApplicationConfiguration;
 import org.cytoscape.application.CyApplicationManager;
@@ -35,6 +50,7 @@ import org.cytoscape.service.util.CyServiceRegistrar;
 import org.cytoscape.view.model.CyNetworkView;
 import org.cytoscape.view.model.CyNetworkViewManager;
 import org.cytoscape.work.TaskFactory;
+import org.cytoscape.work.TaskMonitor;
 import org.cytoscape.work.swing.DialogTaskManager;
 import org.cytoscape.application.CyUserLog;
 import org.apache.log4j.Logger;
@@ -43,6 +59,7 @@ import edu.ucsf.rbvi.structureVizX.internal.io.ChimeraIO;
 import edu.ucsf.rbvi.structureVizX.internal.tasks.CreateStructureNetworkTaskFactory;
 import edu.ucsf.rbvi.structureVizX.internal.ui.AlignStructuresDialog;
 import edu.ucsf.rbvi.structureVizX.internal.ui.ModelNavigatorDialog;
+import edu.ucsf.rbvi.structureVizX.internal.utils.StringUtils;
 
 /**
  * This object maintains the relationship between Chimera objects and Cytoscape objects.
@@ -74,6 +91,8 @@ public class StructureManager {
 	private Map<CyNetwork, StructureSettings> settings = null;
 	private StructureSettings defaultSettings = null;
 	private Map<CyIdentifiable, Set<ChimeraStructuralObject>> currentCyMap = null;
+	// The keys of currentCyMap, indexed by SUID, for handling Cytoscape selection events
+	private Map<Long, CyIdentifiable> cySUIDMap = null;
 	private Map<ChimeraStructuralObject, Set<CyIdentifiable>> currentChimMap = null;
 	private Map<CyIdentifiable, Set<CyNetwork>> networkMap = null;
 
@@ -83,9 +102,36 @@ public class StructureManager {
 	private AlignStructuresDialog alDialog = null;
 	private AssociationTask aTask = null;
 
-	static private List<ChimeraStructuralObject> chimSelectionList;
+	static private Set<ChimeraStructuralObject> chimSelectionList;
+	// Changes to chimSelectionList that haven't been sent to Chimera yet
+	private final Set<ChimeraStructuralObject> selectionAdded = new LinkedHashSet<ChimeraStructuralObject>();
+	private final Set<ChimeraStructuralObject> selectionRemoved = new LinkedHashSet<ChimeraStructuralObject>();
+	private boolean fullSelectionSync = true;
+	private int selectionUpdates = 0;
+	// Guards the selection list, the changes to it and the sync state above, which are changed
+	// from the event dispatch thread and read by the ChimeraX event thread
+	private final Object selectionLock = new Object();
+	static int FULL_SELECTION_SYNC = 50;
 	private boolean ignoreCySelection = false;
+	private boolean incrementalUpdate = true;
+	private final ModelUpdateStats updateStats = new ModelUpdateStats();
+	private ChimeraEventQueue eventQueue = null;
 	private File configurationDirectory = null;
+	private AlignmentCache alignmentCache = null;
+	private final Map<CyNetwork, AssociationIndex> associationIndexes = new WeakHashMap<CyNetwork, AssociationIndex>();
+	private final Map<CyNetwork, String> associationIndexIds = new WeakHashMap<CyNetwork, String>();
+	// Network column that holds the id of the network's association index file
+	static final String ASSOCIATION_INDEX_ATTR = "structureViz association index";
+	// Association index files that haven't been used for this long are deleted
+	static long ASSOCIATION_INDEX_MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+	private boolean associationIndexesPruned = false;
+	// Association indexes are written in order on a thread of their own
+	private ThreadPoolExecutor indexWriter = null;
+	private final Map<CyNetwork, EdgeWeightSeries> edgeWeightSeries = new WeakHashMap<CyNetwork, EdgeWeightSeries>();
+
+	// Number of nodes resolved together as one fork-join task when associating networks
+	static int ASSOCIATE_CHUNK_SIZE = 2048;
+	private static boolean parallelAssociation = true;
 
 	private String defaultChimeraPath = null;
 
@@ -96,6 +142,7 @@ public class StructureManager {
 		this.haveGUI = haveGUI;
 		settings = new HashMap<CyNetwork, StructureSettings>();
 		currentCyMap = new HashMap<CyIdentifiable, Set<ChimeraStructuralObject>>();
+		cySUIDMap = new HashMap<Long, CyIdentifiable>();
 		currentChimMap = new HashMap<ChimeraStructuralObject, Set<CyIdentifiable>>();
 		networkMap = new HashMap<CyIdentifiable, Set<CyNetwork>>();
 		aTask = new AssociationTask();
@@ -104,7 +151,8 @@ public class StructureManager {
 		chimera = new ChimeraIO(this);
 		chimeraManager = new ChimeraManager(this, chimera);
 		rinManager = new RINManager(this);
-		chimSelectionList = new ArrayList<ChimeraStructuralObject>();
+		eventQueue = new ChimeraEventQueue(this);
+		chimSelectionList = new LinkedHashSet<ChimeraStructuralObject>();
 		defaultChimeraPath = CytoUtils.getDefaultChimeraPath(registrar, chimeraPathPropertyKey);
 		appManager = registrar.getService(CyApplicationManager.class);
 	}
@@ -121,6 +169,66 @@ public class StructureManager {
 		return rinManager;
 	}
 
+	/**
+	 * @return the directory to keep our files in, or <code>null</code> if there isn't one
+	 */
+	public File getConfigurationDirectory() {
+		if (configurationDirectory == null) {
+			CyApplicationConfiguration config = getService(CyApplicationConfiguration.class);
+			if (config != null)
+				configurationDirectory = config.getAppConfigurationDirectoryLocation(StructureManager.class);
+			if (configurationDirectory != null && !configurationDirectory.exists())
+				configurationDirectory.mkdirs();
+		}
+		return configurationDirectory;
+	}
+
+	/**
+	 * @return the cache of alignment results, which is shared by all alignments
+	 */
+	public synchronized AlignmentCache getAlignmentCache() {
+		if (alignmentCache == null) {
+			File directory = getConfigurationDirectory();
+			alignmentCache = new AlignmentCache(directory == null ? null : new File(directory,
+					"alignmentCache.txt"), AlignmentCache.DEFAULT_MAX_ENTRIES);
+		}
+		return alignmentCache;
+	}
+
+	/**
+	 * @return the per-frame edge weights of a trajectory network, or <code>null</code> if the
+	 *         network wasn't imported from a trajectory
+	 */
+	public synchronized EdgeWeightSeries getEdgeWeightSeries(CyNetwork network) {
+		return edgeWeightSeries.get(network);
+	}
+
+	public synchronized void setEdgeWeightSeries(CyNetwork network, EdgeWeightSeries series) {
+		if (series == null)
+			edgeWeightSeries.remove(network);
+		else
+			edgeWeightSeries.put(network, series);
+	}
+
+	/**
+	 * Set whether the nodes of networks are resolved to structures on the fork-join pool when
+	 * networks are associated with the open models
+	 * 
+	 * @param parallel
+	 *            true to resolve in parallel
+	 */
+	public static void setParallelAssociation(boolean parallel) {
+		parallelAssociation = parallel;
+	}
+
+	public static boolean isParallelAssociation() {
+		return parallelAssociation;
+	}
+
+	public ChimeraEventQueue getEventQueue() {
+		return eventQueue;
+	}
+
 	public <S> S getService(Class<S> serviceClass) {
 		try {
 			return registrar.getService(serviceClass);
@@ -149,7 +257,31 @@ public class StructureManager {
 		this.structureNetFactory = (CreateStructureNetworkTaskFactory) factory;
 	}
 
+	/**
+	 * Open all of the structures in the lists that aren't open yet, in one go
+	 * 
+	 * @return the new models for each structure that was opened
+	 */
+	private Map<String, List<ChimeraModel>> openModels(Collection<List<String>> chimObjNames,
+			ModelType type, TaskMonitor taskMonitor) {
+		Set<String> toOpen = new LinkedHashSet<String>();
+		for (List<String> names : chimObjNames) {
+			if (names == null)
+				continue;
+			for (String chimObjName : names) {
+				if (chimeraManager.getChimeraModels(chimObjName, type).size() == 0)
+					toOpen.add(chimObjName);
+			}
+		}
+		return chimeraManager.openModels(new ArrayList<String>(toOpen), type, taskMonitor);
+	}
+
 	public boolean openStructures(Collection<List<String>> chimObjNames, ModelType type) {
+		return openStructures(chimObjNames, type, null);
+	}
+
+	public boolean openStructures(Collection<List<String>> chimObjNames, ModelType type,
+			TaskMonitor taskMonitor) {
 		// new models
 		Map<String, List<ChimeraModel>> newModels = new HashMap<String, List<ChimeraModel>>();
 		if (chimObjNames.size() > 0) {
@@ -157,18 +289,12 @@ public class StructureManager {
 			if (names == null) {
 				return false;
 			}
+			Map<String, List<ChimeraModel>> openedModels = openModels(
+					Collections.singletonList(names), type, taskMonitor);
 			for (String chimObjName : names) {
-				// get or open the corresponding models if they already exist
-				List<ChimeraModel> currentModels = chimeraManager.getChimeraModels(chimObjName, type);
-				if (currentModels.size() == 0) {
-					// open and return models
-					currentModels = chimeraManager.openModel(chimObjName, type);
-					if (currentModels == null) {
-						System.out.println("openModel returns null!");
-						// failed to open model, continue with next
-						continue;
-					}
-					System.out.println("openModel returns "+currentModels.size()+" models");
+				// get the models we just opened
+				List<ChimeraModel> currentModels = openedModels.remove(chimObjName);
+				if (currentModels != null) {
 					// if (type == ModelType.SMILES) {
 					// newModels.put("smiles:" + chimObjName, currentModels);
 					// } else {
@@ -200,6 +326,27 @@ public class StructureManager {
 	// at the same time
 	public boolean openStructures(CyNetwork network,
 			Map<CyIdentifiable, List<String>> chimObjNames, ModelType type) {
+		return openStructures(network, chimObjNames, type, null);
+	}
+
+	/**
+	 * Open the structures for some Cytoscape objects and associate them with the new models.
+	 * Structures that aren't open yet are all opened together, see
+	 * {@link ChimeraManager#openModels(List, ModelType, TaskMonitor)}.
+	 * 
+	 * @param network
+	 *            the network the objects are in, or <code>null</code>
+	 * @param chimObjNames
+	 *            the structures to open for each object
+	 * @param type
+	 *            the type of the structures
+	 * @param taskMonitor
+	 *            the monitor to report progress to, or <code>null</code>
+	 * @return true if there was anything to open
+	 */
+	public boolean openStructures(CyNetwork network,
+			Map<CyIdentifiable, List<String>> chimObjNames, ModelType type,
+			TaskMonitor taskMonitor) {
 		if (!chimeraManager.isChimeraLaunched()
 				&& !chimeraManager.launchChimera(getChimeraPaths(network))) {
 			logger.error("Chimera could not be launched.");
@@ -207,7 +354,7 @@ public class StructureManager {
 		} else if (chimObjNames.size() == 0) {
 			return false;
 		} else if (network == null) {
-			return openStructures(chimObjNames.values(), type);
+			return openStructures(chimObjNames.values(), type, taskMonitor);
 		}
 
 		// potential rins
@@ -220,6 +367,8 @@ public class StructureManager {
 				getCurrentChemStructKeys(network)));
 		// new models
 		Map<String, List<ChimeraModel>> newModels = new HashMap<String, List<ChimeraModel>>();
+		Map<String, List<ChimeraModel>> openedModels = openModels(chimObjNames.values(), type,
+				taskMonitor);
 		// for each node that has an associated structure
 		for (CyIdentifiable cyObj : chimObjNames.keySet()) {
 			// get possible res specs
@@ -230,7 +379,7 @@ public class StructureManager {
 			}
 			// save node to track its selection and mapping to chimera objects
 			if (!currentCyMap.containsKey(cyObj)) {
-				currentCyMap.put(cyObj, new HashSet<ChimeraStructuralObject>());
+				addCyMapEntry(cyObj);
 			}
 			// save node to network mapping to keep track of selection events
 			if (!networkMap.containsKey(cyObj)) {
@@ -239,18 +388,9 @@ public class StructureManager {
 			networkMap.get(cyObj).add(network);
 			// for each structure that has to be opened
 			for (String chimObjName : chimObjNames.get(cyObj)) {
-				// get or open the corresponding models if they already exist
-				List<ChimeraModel> currentModels = chimeraManager.getChimeraModels(chimObjName,
-						type);
-				if (currentModels.size() == 0) {
-					// open and return models
-					currentModels = chimeraManager.openModel(chimObjName, type);
-					if (currentModels == null) {
-						System.out.println("openModel returns null!");
-						// failed to open model, continue with next
-						continue;
-					}
-					System.out.println("openModel returns "+currentModels.size()+" models");
+				// get the models we just opened, the first time we see them
+				List<ChimeraModel> currentModels = openedModels.remove(chimObjName);
+				if (currentModels != null) {
 					// if (type == ModelType.SMILES) {
 					// newModels.put("smiles:" + chimObjName, currentModels);
 					// } else {
@@ -437,7 +577,7 @@ public class StructureManager {
 				}
 				model = chimObj.getChimeraModel();
 				if (!currentCyMap.containsKey(node)) {
-					currentCyMap.put(node, new HashSet<ChimeraStructuralObject>());
+					addCyMapEntry(node);
 				}
 				currentCyMap.get(node).add(chimObj);
 				if (!currentChimMap.containsKey(chimObj)) {
@@ -449,7 +589,7 @@ public class StructureManager {
 		if (model != null) {
 			model.addCyObject(rin, rin);
 			if (!currentCyMap.containsKey(rin)) {
-				currentCyMap.put(rin, new HashSet<ChimeraStructuralObject>());
+				addCyMapEntry(rin);
 			}
 			currentCyMap.get(rin).add(model);
 		}
@@ -464,6 +604,7 @@ public class StructureManager {
 		if (alDialog != null) {
 			alDialog.setVisible(false);
 		}
+		eventQueue.stop();
 		chimeraManager.exitChimera();
 	}
 
@@ -471,9 +612,13 @@ public class StructureManager {
 	public void clearOnChimeraExit() {
 		// clear structures
 		currentCyMap.clear();
+		cySUIDMap.clear();
 		currentChimMap.clear();
 		networkMap.clear();
-		chimSelectionList.clear();
+		synchronized (selectionLock) {
+			chimSelectionList.clear();
+			resetSelectionChanges(true);
+		}
 		if (chimTable != null) {
 			((CyTableManager) getService(CyTableManager.class)).deleteTable(chimTable.getSUID());
 		}
@@ -520,7 +665,7 @@ public class StructureManager {
 
 		// select only those associated with selected Chimera objects
 		Set<CyIdentifiable> currentCyObjs = new HashSet<CyIdentifiable>();
-		for (ChimeraStructuralObject chimObj : chimSelectionList) {
+		for (ChimeraStructuralObject chimObj : getChimSelectionList()) {
 			ChimeraModel currentSelModel = chimObj.getChimeraModel();
 			if (currentChimMap.containsKey(currentSelModel)) {
 				currentCyObjs.addAll(currentChimMap.get(currentSelModel));
@@ -566,13 +711,14 @@ public class StructureManager {
 		}
 		// clearSelectionList();
 		// System.out.println("cytoscape selection changed");
-		// iterate over all cy objects with associated models
-		for (CyIdentifiable cyObj : currentCyMap.keySet()) {
-			if (cyObj instanceof CyNetwork || !selectedRows.containsKey(cyObj.getSUID())) {
+		// only look at the rows that have changed
+		for (Long suid : selectedRows.keySet()) {
+			CyIdentifiable cyObj = cySUIDMap.get(suid);
+			if (cyObj == null || cyObj instanceof CyNetwork) {
 				continue;
 			}
 			for (ChimeraStructuralObject chimObj : currentCyMap.get(cyObj)) {
-				if (selectedRows.get(cyObj.getSUID())) {
+				if (selectedRows.get(suid)) {
 					addChimSelection(chimObj);
 					if (chimObj instanceof ChimeraResidue) {
 						if (chimObj.getChimeraModel().isSelected()) {
@@ -599,27 +745,93 @@ public class StructureManager {
 		selectionChanged();
 	}
 
-	// Save models in a HashMap/Set for better performance?
+	/**
+	 * Send our selection to Chimera. Normally only the objects that have been added to or
+	 * removed from the selection since the last update are sent. The whole selection is sent
+	 * after the selection list has been cleared, when the changes are larger than the selection
+	 * itself, and every {@link #FULL_SELECTION_SYNC} updates so that any drift between Chimera
+	 * and our list is corrected.
+	 */
 	public void updateChimeraSelection() {
-		// System.out.println("update Chimera selection");
-		List<AtomSpec> specList = new ArrayList<AtomSpec>();
-		for (int i = 0; i < chimSelectionList.size(); i++) {
-			ChimeraStructuralObject nodeInfo = chimSelectionList.get(i);
-			specList.add(nodeInfo.toAtomSpec());
-			/*
-			// System.out.println("Adding "+nodeInfo.toSpec()+" ("+nodeInfo+") to selection");
-			// we do not care about the model anymore
-			selSpec = selSpec.concat(nodeInfo.toSpec());
-			if (i < chimSelectionList.size() - 1)
-				selSpec = selSpec.concat("|");
-			*/
+		List<AtomSpec> specList = null;
+		List<AtomSpec> added = null;
+		List<AtomSpec> removed = null;
+		// Take what we need to send while holding the lock, but send it after
+		synchronized (selectionLock) {
+			if (!fullSelectionSync && selectionUpdates < FULL_SELECTION_SYNC
+					&& selectionAdded.size() + selectionRemoved.size() <= chimSelectionList.size()) {
+				if (selectionAdded.size() == 0 && selectionRemoved.size() == 0)
+					return;
+				added = new ArrayList<AtomSpec>(selectionAdded.size());
+				for (ChimeraStructuralObject chimObj : selectionAdded)
+					added.add(chimObj.toAtomSpec());
+				removed = new ArrayList<AtomSpec>(selectionRemoved.size());
+				for (ChimeraStructuralObject chimObj : selectionRemoved)
+					removed.add(chimObj.toAtomSpec());
+				selectionUpdates++;
+			} else {
+				// System.out.println("update Chimera selection");
+				specList = new ArrayList<AtomSpec>();
+				for (ChimeraStructuralObject nodeInfo : chimSelectionList) {
+					specList.add(nodeInfo.toAtomSpec());
+				}
+				selectionUpdates = 0;
+			}
+			resetSelectionChanges(false);
+		}
+		if (added != null) {
+			resyncOnFailure(chimera.selectChangesAsync(added, removed));
+			return;
 		}
 
+		// Don't block the (possibly UI) thread that changed the Cytoscape selection
 		if (specList.size() > 0) {
 			System.out.println("Selecting "+specList);
-			chimera.select("sel", specList);
+			resyncOnFailure(chimera.selectAsync("sel", specList));
 		} else {
-			chimera.select("~sel", specList);
+			resyncOnFailure(chimera.selectAsync("~sel", specList));
+		}
+	}
+
+	/**
+	 * The changes have already been forgotten by the time they are sent, so if they never make
+	 * it to Chimera (the command queue was full, or Chimera couldn't apply them) the next update
+	 * has to send the whole selection.
+	 */
+	private void resyncOnFailure(CompletableFuture<Void> sent) {
+		sent.whenComplete(new BiConsumer<Void, Throwable>() {
+			public void accept(Void result, Throwable failure) {
+				if (failure != null) {
+					synchronized (selectionLock) {
+						fullSelectionSync = true;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Set how often the whole selection is sent to Chimera rather than just the changes.
+	 * 
+	 * @param updates
+	 *            the number of incremental updates between full updates, or 0 to always
+	 *            send the whole selection
+	 */
+	public static void setFullSelectionSync(int updates) {
+		FULL_SELECTION_SYNC = Math.max(0, updates);
+	}
+
+	/**
+	 * Forget the changes to the selection list since the last update.
+	 * 
+	 * @param fullSync
+	 *            true if the next update needs to send the whole selection
+	 */
+	private void resetSelectionChanges(boolean fullSync) {
+		synchronized (selectionLock) {
+			selectionAdded.clear();
+			selectionRemoved.clear();
+			fullSelectionSync = fullSync;
 		}
 	}
 
@@ -630,53 +842,59 @@ public class StructureManager {
 	 */
 	public void chimeraSelectionChanged() {
 		// System.out.println("Chimera selection changed");
-		clearSelectionList();
 		// Execute the command to get the list of models with selections
 		Map<String, ChimeraModel> selectedModelsMap = chimeraManager.getSelectedModels();
 		// Now get the residue-level data
 		chimeraManager.getSelectedResidues(selectedModelsMap);
-		// Get the selected objects
-		try {
-			for (ChimeraModel selectedModel : selectedModelsMap.values()) {
-				int modelNumber = selectedModel.getModelNumber();
-				String[] subModelIds = selectedModel.getSubModelIds();
-				// Get the corresponding "real" model
-				if (chimeraManager.hasChimeraModel(modelNumber, subModelIds)) {
-					ChimeraModel dataModel = chimeraManager.getChimeraModel(modelNumber, subModelIds);
-					if (dataModel.getResidueCount() == selectedModel.getResidueCount()
-							|| dataModel.getModelType() == StructureManager.ModelType.SMILES) {
-						// Select the entire model
-						addChimSelection(dataModel);
-						// dataModel.setSelected(true);
-					} else {
-						for (ChimeraChain selectedChain : selectedModel.getChains()) {
-							ChimeraChain dataChain = dataModel.getChain(selectedChain.getChainId());
-							System.out.println("dataChain has "+dataChain.getResidueCount()+" residues and "
-							                   +"selectedChain has "+selectedChain.getResidueCount()+" residues");
-							if (selectedChain.getResidueCount() == dataChain.getResidueCount()) {
-								addChimSelection(dataChain);
-								// dataChain.setSelected(true);
-							}
-							// else {
-							// Need to select individual residues
-							for (ChimeraResidue res : selectedChain.getResidues()) {
-								String residueIndex = res.getIndex();
-								// System.out.println("Looking at residue '"+res.toSpec()+" with index "+residueIndex);
-								ChimeraResidue residue = dataChain.getResidue(residueIndex);
-								if (residue == null) {
-									// System.out.println("Can't find it");
-									continue;
+		// Replace our list without letting other threads see it half done
+		synchronized (selectionLock) {
+			clearSelectionList();
+			// Get the selected objects
+			try {
+				for (ChimeraModel selectedModel : selectedModelsMap.values()) {
+					int modelNumber = selectedModel.getModelNumber();
+					String[] subModelIds = selectedModel.getSubModelIds();
+					// Get the corresponding "real" model
+					if (chimeraManager.hasChimeraModel(modelNumber, subModelIds)) {
+						ChimeraModel dataModel = chimeraManager.getChimeraModel(modelNumber, subModelIds);
+						if (dataModel.getResidueCount() == selectedModel.getResidueCount()
+								|| dataModel.getModelType() == StructureManager.ModelType.SMILES) {
+							// Select the entire model
+							addChimSelection(dataModel);
+							// dataModel.setSelected(true);
+						} else {
+							for (ChimeraChain selectedChain : selectedModel.getChains()) {
+								ChimeraChain dataChain = dataModel.getChain(selectedChain.getChainId());
+								System.out.println("dataChain has "+dataChain.getResidueCount()+" residues and "
+								                   +"selectedChain has "+selectedChain.getResidueCount()+" residues");
+								if (selectedChain.getResidueCount() == dataChain.getResidueCount()) {
+									addChimSelection(dataChain);
+									// dataChain.setSelected(true);
 								}
-								addChimSelection(residue);
-								// residue.setSelected(true);
-							} // resIter.hasNext
-								// }
-						} // chainIter.hasNext()
+								// else {
+								// Need to select individual residues
+								for (ChimeraResidue res : selectedChain.getResidues()) {
+									String residueIndex = res.getIndex();
+									// System.out.println("Looking at residue '"+res.toSpec()+" with index "+residueIndex);
+									ChimeraResidue residue = dataChain.getResidue(residueIndex);
+									if (residue == null) {
+										// System.out.println("Can't find it");
+										continue;
+									}
+									addChimSelection(residue);
+									// residue.setSelected(true);
+								} // resIter.hasNext
+									// }
+							} // chainIter.hasNext()
+						}
 					}
-				}
-			} // modelIter.hasNext()
-		} catch (Exception ex) {
-			logger.warn("Could not update selection", ex);
+				} // modelIter.hasNext()
+			} catch (Exception ex) {
+				logger.warn("Could not update selection", ex);
+			}
+			// Our list now matches Chimera's selection
+			resetSelectionChanges(false);
+			selectionUpdates = 0;
 		}
 		// System.out.println("selection list: " + getChimSelectionCount());
 		// Finally, update the navigator panel
@@ -685,10 +903,12 @@ public class StructureManager {
 	}
 
 	public void selectFunctResidues(Collection<ChimeraModel> models) {
-		clearSelectionList();
-		for (ChimeraModel model : models) {
-			for (ChimeraResidue residue : model.getFuncResidues()) {
-				addChimSelection(residue);
+		synchronized (selectionLock) {
+			clearSelectionList();
+			for (ChimeraModel model : models) {
+				for (ChimeraResidue residue : model.getFuncResidues()) {
+					addChimSelection(residue);
+				}
 			}
 		}
 		updateChimeraSelection();
@@ -697,14 +917,16 @@ public class StructureManager {
 	}
 
 	public void selectFunctResidues(CyNode node, CyNetwork network) {
-		clearSelectionList();
-		if (currentCyMap.containsKey(node)) {
-			Set<ChimeraStructuralObject> chimObjects = currentCyMap.get(node);
-			for (ChimeraStructuralObject obj : chimObjects) {
-				if (obj instanceof ChimeraModel) {
-					ChimeraModel model = (ChimeraModel) obj;
-					for (ChimeraResidue residue : model.getFuncResidues()) {
-						addChimSelection(residue);
+		synchronized (selectionLock) {
+			clearSelectionList();
+			if (currentCyMap.containsKey(node)) {
+				Set<ChimeraStructuralObject> chimObjects = currentCyMap.get(node);
+				for (ChimeraStructuralObject obj : chimObjects) {
+					if (obj instanceof ChimeraModel) {
+						ChimeraModel model = (ChimeraModel) obj;
+						for (ChimeraResidue residue : model.getFuncResidues()) {
+							addChimSelection(residue);
+						}
 					}
 				}
 			}
@@ -715,11 +937,15 @@ public class StructureManager {
 	}
 
 	public List<ChimeraStructuralObject> getChimSelectionList() {
-		return chimSelectionList;
+		synchronized (selectionLock) {
+			return new ArrayList<ChimeraStructuralObject>(chimSelectionList);
+		}
 	}
 
 	public int getChimSelectionCount() {
-		return chimSelectionList.size();
+		synchronized (selectionLock) {
+			return chimSelectionList.size();
+		}
 	}
 
 	/**
@@ -730,9 +956,12 @@ public class StructureManager {
 	 *            the selection to add to our list
 	 */
 	public void addChimSelection(ChimeraStructuralObject selectionToAdd) {
-		if (selectionToAdd != null && !chimSelectionList.contains(selectionToAdd)) {
-			chimSelectionList.add(selectionToAdd);
-			selectionToAdd.setSelected(true);
+		synchronized (selectionLock) {
+			if (selectionToAdd != null && chimSelectionList.add(selectionToAdd)) {
+				selectionToAdd.setSelected(true);
+				if (!selectionRemoved.remove(selectionToAdd))
+					selectionAdded.add(selectionToAdd);
+			}
 		}
 	}
 
@@ -744,9 +973,12 @@ public class StructureManager {
 	 *            the selection to remove from our list
 	 */
 	public void removeChimSelection(ChimeraStructuralObject selectionToRemove) {
-		if (selectionToRemove != null && chimSelectionList.contains(selectionToRemove)) {
-			chimSelectionList.remove(selectionToRemove);
-			selectionToRemove.setSelected(false);
+		synchronized (selectionLock) {
+			if (selectionToRemove != null && chimSelectionList.remove(selectionToRemove)) {
+				selectionToRemove.setSelected(false);
+				if (!selectionAdded.remove(selectionToRemove))
+					selectionRemoved.add(selectionToRemove);
+			}
 		}
 	}
 
@@ -754,11 +986,30 @@ public class StructureManager {
 	 * Clear the list of selected objects
 	 */
 	public void clearSelectionList() {
-		for (ChimeraStructuralObject cso : chimSelectionList) {
-			if (cso != null)
-				cso.setSelected(false);
+		synchronized (selectionLock) {
+			for (ChimeraStructuralObject cso : chimSelectionList) {
+				if (cso != null)
+					cso.setSelected(false);
+			}
+			chimSelectionList.clear();
+			resetSelectionChanges(true);
 		}
-		chimSelectionList.clear();
+	}
+
+	/**
+	 * Start keeping track of the Chimera objects associated with a Cytoscape object
+	 * 
+	 * @param cyObj
+	 *            the node, edge or network
+	 */
+	private void addCyMapEntry(CyIdentifiable cyObj) {
+		currentCyMap.put(cyObj, new HashSet<ChimeraStructuralObject>());
+		cySUIDMap.put(cyObj.getSUID(), cyObj);
+	}
+
+	private void removeCyMapEntry(CyIdentifiable cyObj) {
+		currentCyMap.remove(cyObj);
+		cySUIDMap.remove(cyObj.getSUID());
 	}
 
 	/**
@@ -830,12 +1081,12 @@ public class StructureManager {
 					&& ((ChimeraModel) chimObj).getCyObjects().containsKey(network)) {
 				((ChimeraModel) chimObj).getCyObjects().remove(network);
 				if (currentCyMap.containsKey(network)) {
-					currentCyMap.remove(network);
+					removeCyMapEntry(network);
 				}
 			}
 		}
 		if (currentCyMap.containsKey(network)) {
-			currentCyMap.remove(network);
+			removeCyMapEntry(network);
 		}
 		deassociate(new HashSet<CyIdentifiable>(network.getNodeList()), false);
 		deassociate(new HashSet<CyIdentifiable>(network.getEdgeList()), false);
@@ -856,7 +1107,7 @@ public class StructureManager {
 						currentChimMap.get(chimObj).remove(cyObj);
 					}
 				}
-				currentCyMap.remove(cyObj);
+				removeCyMapEntry(cyObj);
 			}
 			networkMap.remove(cyObj);
 		}
@@ -872,7 +1123,11 @@ public class StructureManager {
 	 */
 
 	/**
-	 * Dump and refresh all of our model/chain/residue info
+	 * Refresh all of our model/chain/residue info. If incremental updates are on (the default),
+	 * models whose name and residue count haven't changed are kept along with their residues,
+	 * and only the networks associated with changed or removed models are associated again.
+	 * Opening a new model still requires that all networks be checked for nodes that refer to
+	 * it.
 	 */
 	public void updateModels() {
 		// Stop all of our listeners while we try to handle this
@@ -884,19 +1139,57 @@ public class StructureManager {
 		// Get the list of our current models
 		Set<ChimeraModel> currentModels = new HashSet<ChimeraModel>(chimeraManager.getChimeraModels());
 
+		// Get the colors and residue counts for all of the models in one go
+		Map<String, Map<String, String>> attributes = chimeraManager.getModelAttributes("color",
+				"num_residues");
+
+		// The residue count doesn't tell us about mutations, so check the residues of the
+		// models that look unchanged, all in one request
+		Set<ChimeraModel> changedModels = Collections.emptySet();
+		if (incrementalUpdate) {
+			List<ChimeraModel> candidates = new ArrayList<ChimeraModel>();
+			for (ChimeraModel newModel : newModelList) {
+				ChimeraModel oldModel = chimeraManager.getChimeraModel(newModel.getModelNumber(),
+						newModel.getSubModelIds());
+				if (oldModel != null && oldModel.getModelType() != ModelType.SMILES
+						&& isModelUnchanged(oldModel, newModel, attributes))
+					candidates.add(oldModel);
+			}
+			changedModels = chimeraManager.getChangedModels(candidates);
+		}
+
+		int reused = 0;
+		int fetched = 0;
+		boolean modelsAdded = false;
+		Set<CyNetwork> changedNetworks = new HashSet<CyNetwork>();
+
 		// Match them up -- assume that the model #'s haven't changed
 		for (ChimeraModel newModel : newModelList) {
-			// Get the color (for our navigator)
-			newModel.setModelColor(chimeraManager.getModelColor(newModel));
-
 			// Get our model info
 			int modelNumber = newModel.getModelNumber();
 			String[] subModelIds = newModel.getSubModelIds();
+			ChimeraModel oldModel = chimeraManager.getChimeraModel(modelNumber, subModelIds);
+
+			// If nothing has changed, keep what we already know about this model
+			if (incrementalUpdate && oldModel != null && !changedModels.contains(oldModel)
+					&& isModelUnchanged(oldModel, newModel, attributes)) {
+				Color color = getModelColor(newModel, attributes);
+				if (color != null)
+					oldModel.setModelColor(color);
+				currentModels.remove(oldModel);
+				reused++;
+				continue;
+			}
+
+			// Get the color (for our navigator)
+			Color color = getModelColor(newModel, attributes);
+			if (color == null)
+				color = chimeraManager.getModelColor(newModel);
+			newModel.setModelColor(color);
 
 			// If we already know about this model number, get the Structure,
 			// which tells us about the associated CyNode
-			if (chimeraManager.hasChimeraModel(modelNumber, subModelIds)) {
-				ChimeraModel oldModel = chimeraManager.getChimeraModel(modelNumber, subModelIds);
+			if (oldModel != null) {
 				chimeraManager.removeChimeraModel(modelNumber, subModelIds);
 				newModel.setModelType(oldModel.getModelType());
 				if (oldModel.getModelType() == ModelType.SMILES) {
@@ -914,6 +1207,7 @@ public class StructureManager {
 						}
 					}
 				}
+				changedNetworks.addAll(oldModelCyObjs.values());
 				// add new model to the chimera objects map and remove old model
 				if (currentChimMap.containsKey(oldModel)) {
 					currentChimMap.put(newModel, currentChimMap.get(oldModel));
@@ -922,6 +1216,8 @@ public class StructureManager {
 
 				// Remove this from our list
 				currentModels.remove(oldModel);
+			} else {
+				modelsAdded = true;
 			}
 			// add new model to ChimeraManager
 			chimeraManager.addChimeraModel(modelNumber, subModelIds, newModel);
@@ -929,6 +1225,7 @@ public class StructureManager {
 			// Get the residue information
 			if (newModel.getModelType() != ModelType.SMILES) {
 				chimeraManager.addResidues(newModel);
+				fetched++;
 			}
 			for (CyIdentifiable cyObj : newModel.getCyObjects().keySet()) {
 				if (cyObj != null && cyObj instanceof CyNetwork) {
@@ -946,17 +1243,85 @@ public class StructureManager {
 		for (ChimeraModel model: currentModels) {
 			if (currentChimMap.containsKey(model))
 				currentChimMap.remove(model);
+			changedNetworks.addAll(model.getCyObjects().values());
 			chimeraManager.removeChimeraModel(model.getModelNumber(), model.getSubModelIds());
 		}
 
-		// associate all models with any node or network
-		aTask.associate();
+		// associate the models with any node or network
+		int networks;
+		boolean full = !incrementalUpdate || modelsAdded;
+		if (full) {
+			networks = aTask.associate();
+		} else {
+			changedNetworks.remove(null);
+			networks = aTask.associate(changedNetworks);
+		}
+		updateStats.update(reused, fetched, currentModels.size(), networks, full);
+		logInfo("Updated models: " + reused + " reused, " + fetched + " fetched, "
+				+ currentModels.size() + " removed, " + networks + " networks associated");
 
 		// Restart all of our listeners
 		chimera.startListening();
 		// Done
 	}
 
+	/**
+	 * Turn incremental model updates on or off. When off, {@link #updateModels()} fetches the
+	 * residues for every model and associates every network.
+	 * 
+	 * @param incremental
+	 *            true to only update models that have changed
+	 */
+	public void setIncrementalUpdate(boolean incremental) {
+		this.incrementalUpdate = incremental;
+	}
+
+	public boolean isIncrementalUpdate() {
+		return incrementalUpdate;
+	}
+
+	/**
+	 * Get the counts of the work done (and skipped) by {@link #updateModels()}.
+	 * 
+	 * @return the update statistics
+	 */
+	public ModelUpdateStats getModelUpdateStats() {
+		return updateStats;
+	}
+
+	/**
+	 * A quick check, from the model attributes, of whether a model might be unchanged. The
+	 * residues still have to be checked with {@link ChimeraManager#getChangedModels}.
+	 */
+	private boolean isModelUnchanged(ChimeraModel oldModel, ChimeraModel newModel,
+			Map<String, Map<String, String>> attributes) {
+		// We don't keep residues for SMILES models, and their names are our own
+		if (oldModel.getModelType() == ModelType.SMILES)
+			return true;
+		if (!oldModel.getModelName().equals(newModel.getModelName()))
+			return false;
+		if (attributes == null)
+			return false;
+		String line = attributes.get("num_residues").get(newModel.toSpec());
+		if (line == null)
+			return false;
+		try {
+			String[] tokens = StringUtils.splitOnWhitespace(line.trim());
+			return Integer.parseInt(tokens[tokens.length - 1]) == oldModel.getResidueCount();
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private Color getModelColor(ChimeraModel model, Map<String, Map<String, String>> attributes) {
+		if (attributes == null)
+			return null;
+		String line = attributes.get("color").get(model.toSpec());
+		if (line == null)
+			return null;
+		return ChimUtils.parseModelColor(line);
+	}
+
 	public void launchModelNavigatorDialog() {
 		// TODO: [Optional] Use haveGUI flag
 		// if (!haveGUI) {
@@ -1021,7 +1386,7 @@ public class StructureManager {
 	public void selectionChanged() {
 		if (mnDialog != null) {
 			// System.out.println("update dialog selection");
-			mnDialog.updateSelection(new ArrayList<ChimeraStructuralObject>(chimSelectionList));
+			mnDialog.updateSelection(getChimSelectionList());
 		}
 	}
 
@@ -1337,11 +1702,16 @@ public class StructureManager {
 	 *            String representation of the residues (comma separated)
 	 */
 	public List<String> getResidueList(CyNetwork network, CyIdentifiable cyObj) {
-		List<String> residueList = new ArrayList<String>();
 		// Get from attribute
 		CyTable nodeTable = network.getDefaultNodeTable();
 		List<String> attrsFound = CytoUtils.getMatchingAttributes(nodeTable,
 				getCurrentResidueKeys(network));
+		return getResidueList(nodeTable, attrsFound, cyObj);
+	}
+
+	private List<String> getResidueList(CyTable nodeTable, List<String> attrsFound,
+			CyIdentifiable cyObj) {
+		List<String> residueList = new ArrayList<String>();
 		if (attrsFound == null || attrsFound.size() == 0 || !nodeTable.rowExists(cyObj.getSUID())) {
 			return residueList;
 		}
@@ -1375,6 +1745,142 @@ public class StructureManager {
 		return residueList;
 	}
 
+	/**
+	 * Get the association index of a network, reading it from disk if we don't have it yet
+	 * 
+	 * @param network
+	 *            the network
+	 * @param columnsChecksum
+	 *            the checksum of the columns we are associating with now
+	 * @return the index, which is empty if there is no index for these columns
+	 */
+	private synchronized AssociationIndex getAssociationIndex(CyNetwork network,
+			long columnsChecksum) {
+		AssociationIndex index = associationIndexes.get(network);
+		if (index != null && index.getColumnsChecksum() == columnsChecksum)
+			return index;
+		File indexFile = getAssociationIndexFile(network);
+		index = AssociationIndex.read(indexFile, columnsChecksum);
+		// Keep indexes that are still in use from being pruned
+		if (indexFile != null && indexFile.isFile())
+			indexFile.setLastModified(System.currentTimeMillis());
+		associationIndexes.put(network, index);
+		return index;
+	}
+
+	/**
+	 * Forget the association index of a network that is being destroyed, and delete its file.
+	 * 
+	 * @param network
+	 *            the network
+	 */
+	public void deleteAssociationIndex(CyNetwork network) {
+		final File indexFile;
+		synchronized (this) {
+			associationIndexes.remove(network);
+			String id = associationIndexIds.remove(network);
+			if (id == null
+					&& network.getDefaultNetworkTable().getColumn(ASSOCIATION_INDEX_ATTR) != null)
+				id = network.getRow(network).get(ASSOCIATION_INDEX_ATTR, String.class);
+			File directory = getAssociationIndexDirectory();
+			if (id == null || directory == null)
+				return;
+			indexFile = new File(directory, id + ".idx");
+		}
+		// After any write of the same index that is still waiting
+		getIndexWriter().execute(new Runnable() {
+			public void run() {
+				if (indexFile.exists() && !indexFile.delete())
+					logWarning("Unable to delete the association index " + indexFile);
+			}
+		});
+	}
+
+	private synchronized void setAssociationIndex(CyNetwork network, AssociationIndex index) {
+		associationIndexes.put(network, index);
+	}
+
+	private synchronized ThreadPoolExecutor getIndexWriter() {
+		if (indexWriter == null) {
+			indexWriter = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "structureViz association index writer");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			indexWriter.allowCoreThreadTimeOut(true);
+		}
+		return indexWriter;
+	}
+
+	/**
+	 * Association indexes are kept by a random id that is stored in the network table. Unlike
+	 * the SUID, it survives saving and restoring a session, and unlike the name, it is never
+	 * shared by two networks.
+	 * 
+	 * @return the association index file for a network, or <code>null</code> if we have nowhere
+	 *         to keep it
+	 */
+	private synchronized File getAssociationIndexFile(CyNetwork network) {
+		File directory = getAssociationIndexDirectory();
+		if (directory == null)
+			return null;
+		return new File(directory, getAssociationIndexId(network) + ".idx");
+	}
+
+	private synchronized String getAssociationIndexId(CyNetwork network) {
+		String id = associationIndexIds.get(network);
+		if (id != null)
+			return id;
+		CyTable table = network.getDefaultNetworkTable();
+		if (table.getColumn(ASSOCIATION_INDEX_ATTR) == null)
+			table.createColumn(ASSOCIATION_INDEX_ATTR, String.class, false);
+		id = network.getRow(network).get(ASSOCIATION_INDEX_ATTR, String.class);
+		// A copy of a network, or a session that is opened twice, brings along the id of
+		// a network we already have
+		if (id == null || !id.matches("[0-9a-f-]+") || associationIndexIds.containsValue(id)) {
+			id = UUID.randomUUID().toString();
+			network.getRow(network).set(ASSOCIATION_INDEX_ATTR, id);
+		}
+		associationIndexIds.put(network, id);
+		return id;
+	}
+
+	/**
+	 * The first time this is called, index files that haven't been used for
+	 * {@link #ASSOCIATION_INDEX_MAX_AGE} are deleted, so indexes of networks that are gone
+	 * don't pile up.
+	 * 
+	 * @return the directory association indexes are kept in, or <code>null</code> if there is
+	 *         none
+	 */
+	private synchronized File getAssociationIndexDirectory() {
+		File directory = getConfigurationDirectory();
+		if (directory == null)
+			return null;
+		final File indexDirectory = new File(directory, "associations");
+		if (!indexDirectory.exists() && !indexDirectory.mkdirs())
+			return null;
+		if (!associationIndexesPruned) {
+			associationIndexesPruned = true;
+			getIndexWriter().execute(new Runnable() {
+				public void run() {
+					File[] files = indexDirectory.listFiles();
+					if (files == null)
+						return;
+					long oldest = System.currentTimeMillis() - ASSOCIATION_INDEX_MAX_AGE;
+					for (File file : files) {
+						if (file.getName().endsWith(".idx") && file.lastModified() < oldest)
+							file.delete();
+					}
+				}
+			});
+		}
+		return indexDirectory;
+	}
+
 	public void logError(String errMessage) {
 		logger.error("structureVizX: "+errMessage);
 	}
@@ -1401,116 +1907,401 @@ public class StructureManager {
 			modelChanged();
 		}
 
-		public void associate() {
+		public int associate() {
 			CyNetworkManager netManager = (CyNetworkManager) getService(CyNetworkManager.class);
 			Map<String, List<ChimeraModel>> newModels = chimeraManager.getChimeraModelsMap();
 			// iterate over all networks
-			for (CyNetwork network : netManager.getNetworkSet()) {
-				associateNetwork(network, newModels);
+			Set<CyNetwork> networks = netManager.getNetworkSet();
+			List<NetworkAssociation> resolved = resolve(networks, newModels);
+			merge(resolved);
+			saveIndexes(resolved);
+			modelChanged();
+			return networks.size();
+		}
+
+		/**
+		 * Associate only some of the networks, for example the ones whose models have changed.
+		 * Networks that have since been destroyed are skipped.
+		 * 
+		 * @param networks
+		 *            the networks to associate
+		 * @return the number of networks that were associated
+		 */
+		public int associate(Collection<CyNetwork> networks) {
+			CyNetworkManager netManager = (CyNetworkManager) getService(CyNetworkManager.class);
+			Map<String, List<ChimeraModel>> newModels = chimeraManager.getChimeraModelsMap();
+			List<CyNetwork> existing = new ArrayList<CyNetwork>();
+			for (CyNetwork network : networks) {
+				if (netManager.networkExists(network.getSUID()))
+					existing.add(network);
 			}
+			List<NetworkAssociation> resolved = resolve(existing, newModels);
+			merge(resolved);
+			saveIndexes(resolved);
 			modelChanged();
+			return existing.size();
+		}
+
+		public void associateNetwork(CyNetwork network, Map<String, List<ChimeraModel>> newModels) {
+			List<NetworkAssociation> resolved = resolve(Collections.singletonList(network),
+					newModels);
+			merge(resolved);
+			saveIndexes(resolved);
+		}
+
+		/**
+		 * Work out which structural objects the nodes of some networks belong to. This only
+		 * reads the networks and the Chimera models, so the nodes are resolved in chunks on the
+		 * fork-join pool; nothing is changed until the results are passed to {@link #merge}.
+		 * 
+		 * @param networks
+		 *            the networks to resolve
+		 * @param newModels
+		 *            the open models, by name
+		 * @return the associations for each network, in the order of the networks
+		 */
+		private List<NetworkAssociation> resolve(Collection<CyNetwork> networks,
+				final Map<String, List<ChimeraModel>> newModels) {
+			List<NetworkAssociation> resolved = new ArrayList<NetworkAssociation>();
+			int nodeCount = 0;
+			for (CyNetwork network : networks)
+				nodeCount += network.getNodeCount();
+			boolean parallel = parallelAssociation && nodeCount > ASSOCIATE_CHUNK_SIZE;
+
+			for (CyNetwork network : networks) {
+				final NetworkAssociation association = new NetworkAssociation(network);
+				List<CyIdentifiable> nodes = new ArrayList<CyIdentifiable>();
+				nodes.addAll(network.getNodeList());
+				for (int start = 0; start < nodes.size(); start += ASSOCIATE_CHUNK_SIZE) {
+					final List<CyIdentifiable> chunk = nodes.subList(start,
+							Math.min(start + ASSOCIATE_CHUNK_SIZE, nodes.size()));
+					Callable<List<NodeAssociation>> task = new Callable<List<NodeAssociation>>() {
+						public List<NodeAssociation> call() {
+							return resolveNodes(association, chunk, newModels);
+						}
+					};
+					if (parallel) {
+						association.chunks.add(ForkJoinPool.commonPool().submit(task));
+					} else {
+						association.chunks.add(ForkJoinTask.adapt(task));
+						association.chunks.get(association.chunks.size() - 1).invoke();
+					}
+				}
+				resolved.add(association);
+			}
+			return resolved;
+		}
+
+		private List<NodeAssociation> resolveNodes(NetworkAssociation association,
+				List<CyIdentifiable> nodes, Map<String, List<ChimeraModel>> newModels) {
+			CyTable nodeTable = association.network.getDefaultNodeTable();
+			// Look the nodes up in the index, and only parse the ones that have changed
+			AssociationIndex.Entry[] entries = new AssociationIndex.Entry[nodes.size()];
+			long[] checksums = new long[nodes.size()];
+			List<CyIdentifiable> changed = new ArrayList<CyIdentifiable>();
+			for (int i = 0; i < nodes.size(); i++) {
+				CyIdentifiable cyObj = nodes.get(i);
+				// skip if node does not exist anymore
+				if (!nodeTable.rowExists(cyObj.getSUID()))
+					continue;
+				checksums[i] = association.getChecksum(cyObj);
+				entries[i] = association.index.get(cyObj.getSUID(), checksums[i]);
+				if (entries[i] == null)
+					changed.add(cyObj);
+			}
+			if (changed.size() > 0) {
+				association.parsedCount.addAndGet(changed.size());
+				// get the pdb names associated with the nodes
+				Map<CyIdentifiable, List<String>> mapChimObjNames = new HashMap<CyIdentifiable, List<String>>();
+				getChimObjNames(mapChimObjNames, association.network, changed, ModelType.PDB_MODEL,
+						true);
+				getChimObjNames(mapChimObjNames, association.network, changed, ModelType.SMILES,
+						true);
+				for (int i = 0; i < nodes.size(); i++) {
+					if (entries[i] == null && nodeTable.rowExists(nodes.get(i).getSUID())) {
+						entries[i] = parseNode(association, nodes.get(i), checksums[i],
+								mapChimObjNames.get(nodes.get(i)));
+					}
+				}
+			}
+
+			List<NodeAssociation> resolved = new ArrayList<NodeAssociation>();
+			for (int i = 0; i < nodes.size(); i++) {
+				if (entries[i] == null)
+					continue;
+				association.updatedIndex.put(nodes.get(i).getSUID(), entries[i]);
+				NodeAssociation node = resolveNode(association, nodes.get(i), entries[i],
+						newModels);
+				if (node != null)
+					resolved.add(node);
+			}
+			return resolved;
+		}
+
+		/**
+		 * Parse the structure and residue columns of a node for the association index
+		 */
+		private AssociationIndex.Entry parseNode(NetworkAssociation association,
+				CyIdentifiable cyObj, long checksum, List<String> modelNames) {
+			CyTable nodeTable = association.network.getDefaultNodeTable();
+			if (modelNames == null)
+				modelNames = Collections.emptyList();
+			List<String> specsFound = ChimUtils.getResidueKeys(nodeTable, cyObj,
+					association.attrsFound);
+			AtomSpec[] parsedSpecs = new AtomSpec[specsFound.size()];
+			for (int i = 0; i < parsedSpecs.length; i++) {
+				String resSpec = specsFound.get(i);
+				// Lists and specs we can't parse go through ChimUtils.fromAttribute every time
+				if (resSpec.indexOf(',') > 0)
+					continue;
+				try {
+					parsedSpecs[i] = AtomSpec.getAttributeAtomSpec(resSpec, StructureManager.this);
+				} catch (RuntimeException e) {
+					parsedSpecs[i] = null;
+				}
+			}
+			List<String> residueList = getResidueList(nodeTable, association.residueAttrsFound,
+					cyObj);
+			return new AssociationIndex.Entry(checksum, modelNames, specsFound, parsedSpecs,
+					residueList);
+		}
+
+		/**
+		 * Find the structural objects for a node that has been parsed
+		 * 
+		 * @return the node's associations, or <code>null</code> if none of its models is open
+		 */
+		private NodeAssociation resolveNode(NetworkAssociation association, CyIdentifiable cyObj,
+				AssociationIndex.Entry entry, Map<String, List<ChimeraModel>> newModels) {
+			CyNetwork network = association.network;
+			NodeAssociation node = new NodeAssociation(cyObj);
+			List<String> specsFound = entry.getSpecs();
+			// iterate over all associated structures for a node
+			for (String modelName : entry.getModelNames()) {
+				// node should be associated with current model
+				if (!newModels.containsKey(modelName))
+					continue;
+				node.open = true;
+				// check if it is a RIN
+				boolean foundRIN = false;
+				if (!modelName.startsWith("smiles:") && cyObj instanceof CyNode
+						&& network.containsNode((CyNode) cyObj)) {
+					for (int i = 0; i < specsFound.size(); i++) {
+						ChimeraStructuralObject residue = getStructuralObject(entry, i);
+						if (residue != null
+								&& (residue instanceof ChimeraResidue || residue instanceof ChimeraChain)
+								&& residue.getChimeraModel().getModelName().equals(modelName)) {
+							// if it is a RIN save only node <-> residue
+							// association
+							foundRIN = true;
+							node.residues.add(residue);
+						}
+					}
+				}
+				if (!foundRIN) {
+					// save node <-> model association
+					for (int i = 0; i < specsFound.size(); i++) {
+						String resSpec = specsFound.get(i);
+						ChimeraStructuralObject specModel = getStructuralObject(entry, i);
+						for (ChimeraModel model : newModels.get(modelName)) {
+							node.touchedModels.add(model);
+							if ((specModel == null && (resSpec.equals(modelName) || model
+									.getModelName().equals("smiles:" + resSpec)))
+									|| (specModel != null && model.toSpec().equals(
+											specModel.toSpec()))) {
+								node.models.add(model);
+								node.funcResidues.add(ChimUtils.parseFuncRes(entry.getResidues(),
+										model.getModelName()));
+							}
+						}
+					}
+				}
+			}
+			return node.open ? node : null;
+		}
+
+		private ChimeraStructuralObject getStructuralObject(AssociationIndex.Entry entry, int spec) {
+			String resSpec = entry.getSpecs().get(spec);
+			AtomSpec parsedSpec = entry.getParsedSpec(spec);
+			if (parsedSpec == null)
+				return ChimUtils.fromAttribute(resSpec, chimeraManager);
+			return ChimUtils.fromAtomSpec(parsedSpec, resSpec, chimeraManager);
+		}
+
+		/**
+		 * Keep the association indexes of networks that had to be parsed, in memory and on disk
+		 * 
+		 * @param resolved
+		 *            the associations returned by {@link #resolve}
+		 */
+		private void saveIndexes(List<NetworkAssociation> resolved) {
+			for (NetworkAssociation association : resolved) {
+				final AssociationIndex updated = association.updatedIndex;
+				if (association.parsedCount.get() == 0 && updated.size() == association.index.size())
+					continue;
+				setAssociationIndex(association.network, updated);
+				final File indexFile = getAssociationIndexFile(association.network);
+				if (indexFile == null)
+					continue;
+				// Don't hold up the thread that is handling Chimera's model events
+				getIndexWriter().execute(new Runnable() {
+					public void run() {
+						try {
+							updated.write(indexFile);
+						} catch (IOException e) {
+							logWarning("Unable to save the association index: " + e.getMessage());
+						}
+					}
+				});
+			}
 		}
 
-		public synchronized void associateNetwork(CyNetwork network,
-				Map<String, List<ChimeraModel>> newModels) {
-			// System.out.println("associateNetwork");
-			// Thread.dumpStack();
-			// ChimeraModel rinModel = null;
-			Set<ChimeraModel> rinModels = new HashSet<ChimeraModel>();
-			// for each network get the pdb names associated with its nodes
-			List<CyIdentifiable> nodes = new ArrayList<CyIdentifiable>();
-			nodes.addAll(network.getNodeList());
-			Map<CyIdentifiable, List<String>> mapChimObjNames = new HashMap<CyIdentifiable, List<String>>();
-			getChimObjNames(mapChimObjNames, network, nodes, ModelType.PDB_MODEL, true);
-			getChimObjNames(mapChimObjNames, network, nodes, ModelType.SMILES, true);
-			List<String> attrsFound = CytoUtils.getMatchingAttributes(
-					network.getDefaultNodeTable(), getCurrentStructureKeys(network));
-			attrsFound.addAll(CytoUtils.getMatchingAttributes(network.getDefaultNodeTable(),
-					getCurrentChemStructKeys(network)));
-			// System.out.println("nodes with pdb found: " + mapChimObjNames.size());
-			// iterate over all nodes with associated structures
-			for (CyIdentifiable cyObj : mapChimObjNames.keySet()) {
-				List<String> specsFound = ChimUtils.getResidueKeys(network.getDefaultNodeTable(),
-						cyObj, attrsFound);
-				// iterate over all associated structures for a node
-				for (String modelName : mapChimObjNames.get(cyObj)) {
-					// node should be associated with current model
-					if (newModels.containsKey(modelName)) {
+		/**
+		 * Add the resolved associations to our maps. This is the only part of association that
+		 * writes, so it is the only part that is synchronized.
+		 * 
+		 * @param resolved
+		 *            the associations returned by {@link #resolve}
+		 */
+		private synchronized void merge(List<NetworkAssociation> resolved) {
+			for (NetworkAssociation association : resolved) {
+				CyNetwork network = association.network;
+				Set<ChimeraModel> rinModels = new HashSet<ChimeraModel>();
+				for (ForkJoinTask<List<NodeAssociation>> chunk : association.chunks) {
+					for (NodeAssociation node : chunk.join()) {
+						CyIdentifiable cyObj = node.cyObj;
 						// add it to the map
 						if (!currentCyMap.containsKey(cyObj)) {
-							currentCyMap.put(cyObj, new HashSet<ChimeraStructuralObject>());
+							addCyMapEntry(cyObj);
 						}
 						// keep track of the network it belongs to
 						if (!networkMap.containsKey(cyObj)) {
 							networkMap.put(cyObj, new HashSet<CyNetwork>());
 						}
 						networkMap.get(cyObj).add(network);
-						// check if it is a RIN
-						boolean foundRIN = false;
-						if (!modelName.startsWith("smiles:") && cyObj instanceof CyNode
-								&& network.containsNode((CyNode) cyObj)) {
-							// && network.getRow(cyObj).isSet(ChimUtils.RESIDUE_ATTR)
-							// && network.getDefaultNodeTable().getColumn(ChimUtils.RESIDUE_ATTR)
-							// .getType() == String.class
-							for (String resSpec : specsFound) {
-								// System.out.println("Looking at: "+resSpec);
-								ChimeraStructuralObject residue = 
-												ChimUtils.fromAttribute(resSpec, chimeraManager);
-								// System.out.println("Got residue: "+residue);
-								if (residue != null
-										&& (residue instanceof ChimeraResidue || residue instanceof ChimeraChain)
-										&& residue.getChimeraModel().getModelName()
-												.equals(modelName)) {
-									// if it is a RIN save only node <-> residue
-									// association
-									foundRIN = true;
-									currentCyMap.get(cyObj).add(residue);
-									if (!currentChimMap.containsKey(residue)) {
-										currentChimMap.put(residue, new HashSet<CyIdentifiable>());
-									}
-									currentChimMap.get(residue).add(cyObj);
-									rinModels.add(residue.getChimeraModel());
-								}
+						for (ChimeraStructuralObject residue : node.residues) {
+							currentCyMap.get(cyObj).add(residue);
+							if (!currentChimMap.containsKey(residue)) {
+								currentChimMap.put(residue, new HashSet<CyIdentifiable>());
 							}
+							currentChimMap.get(residue).add(cyObj);
+							rinModels.add(residue.getChimeraModel());
 						}
-						if (!foundRIN) {
-							// save node <-> model association
-							if (specsFound != null && specsFound.size() > 0) {
-								for (String resSpec : specsFound) {
-									ChimeraStructuralObject specModel = ChimUtils.fromAttribute(
-											resSpec, chimeraManager);
-									for (ChimeraModel model : newModels.get(modelName)) {
-										if (!currentChimMap.containsKey(model)) {
-											currentChimMap
-													.put(model, new HashSet<CyIdentifiable>());
-										}
-										if ((specModel == null && (resSpec.equals(modelName) || model
-												.getModelName().equals("smiles:" + resSpec)))
-												|| (specModel != null && model.toSpec().equals(
-														specModel.toSpec()))) {
-											currentCyMap.get(cyObj).add(model);
-											currentChimMap.get(model).add(cyObj);
-											model.addCyObject(cyObj, network);
-											model.setFuncResidues(ChimUtils.parseFuncRes(
-													getResidueList(network, cyObj),
-													model.getModelName()));
-										}
-									}
-								}
+						for (ChimeraModel model : node.touchedModels) {
+							if (!currentChimMap.containsKey(model)) {
+								currentChimMap.put(model, new HashSet<CyIdentifiable>());
 							}
 						}
+						for (int i = 0; i < node.models.size(); i++) {
+							ChimeraModel model = node.models.get(i);
+							currentCyMap.get(cyObj).add(model);
+							currentChimMap.get(model).add(cyObj);
+							model.addCyObject(cyObj, network);
+							model.setFuncResidues(node.funcResidues.get(i));
+						}
 					}
 				}
-			} // end of for loop
 				// if network was a RIN, add associations
-			for (ChimeraModel rinModel : rinModels) {
-				rinModel.addCyObject(network, network);
-				if (!currentCyMap.containsKey(network)) {
-					currentCyMap.put(network, new HashSet<ChimeraStructuralObject>());
+				for (ChimeraModel rinModel : rinModels) {
+					rinModel.addCyObject(network, network);
+					if (!currentCyMap.containsKey(network)) {
+						addCyMapEntry(network);
+					}
+					currentCyMap.get(network).add(rinModel);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The resolved associations of the nodes of one network, in chunks that may still be
+	 * running on the fork-join pool
+	 */
+	private class NetworkAssociation {
+		final CyNetwork network;
+		final List<String> structureAttrsFound;
+		final List<String> chemAttrsFound;
+		final List<String> attrsFound;
+		final List<String> residueAttrsFound;
+		final List<ForkJoinTask<List<NodeAssociation>>> chunks = new ArrayList<ForkJoinTask<List<NodeAssociation>>>();
+		// The index we look nodes up in, and the one we are building for next time
+		final AssociationIndex index;
+		final AssociationIndex updatedIndex;
+		final AtomicInteger parsedCount = new AtomicInteger();
+
+		NetworkAssociation(CyNetwork network) {
+			this.network = network;
+			CyTable nodeTable = network.getDefaultNodeTable();
+			structureAttrsFound = CytoUtils.getMatchingAttributes(nodeTable,
+					getCurrentStructureKeys(network));
+			chemAttrsFound = CytoUtils.getMatchingAttributes(nodeTable,
+					getCurrentChemStructKeys(network));
+			attrsFound = new ArrayList<String>(structureAttrsFound);
+			attrsFound.addAll(chemAttrsFound);
+			residueAttrsFound = CytoUtils.getMatchingAttributes(nodeTable,
+					getCurrentResidueKeys(network));
+
+			long columnsChecksum = AssociationIndex.checksum();
+			for (List<String> columns : Arrays.asList(structureAttrsFound, chemAttrsFound,
+					residueAttrsFound)) {
+				for (String column : columns) {
+					CyColumn col = nodeTable.getColumn(column);
+					columnsChecksum = AssociationIndex.checksum(columnsChecksum, column);
+					columnsChecksum = AssociationIndex.checksum(columnsChecksum,
+							col == null ? null : col.getType().getName());
 				}
-				currentCyMap.get(network).add(rinModel);
-				// rinModel = null;
+				columnsChecksum = AssociationIndex.checksum(columnsChecksum, null);
 			}
+			index = getAssociationIndex(network, columnsChecksum);
+			updatedIndex = new AssociationIndex(columnsChecksum);
+		}
+
+		/**
+		 * @return a checksum of the cells of a node that association parses
+		 */
+		long getChecksum(CyIdentifiable cyObj) {
+			CyTable nodeTable = network.getDefaultNodeTable();
+			CyRow row = nodeTable.getRow(cyObj.getSUID());
+			long checksum = AssociationIndex.checksum();
+			for (List<String> columns : Arrays.asList(attrsFound, residueAttrsFound)) {
+				for (String column : columns) {
+					CyColumn col = nodeTable.getColumn(column);
+					if (col == null)
+						continue;
+					if (col.getType() == String.class) {
+						checksum = AssociationIndex.checksum(checksum, row.get(column, String.class));
+					} else if (col.getType() == List.class
+							&& col.getListElementType() == String.class) {
+						List<String> values = row.getList(column, String.class);
+						if (values != null) {
+							for (String value : values)
+								checksum = AssociationIndex.checksum(checksum, value);
+						}
+					}
+					checksum = AssociationIndex.checksum(checksum, null);
+				}
+			}
+			return checksum;
+		}
+	}
+
+	/**
+	 * The structural objects that one node belongs to
+	 */
+	private static class NodeAssociation {
+		final CyIdentifiable cyObj;
+		// true if any of the node's models is open
+		boolean open = false;
+		// residues and chains, if the node is part of a RIN
+		final List<ChimeraStructuralObject> residues = new ArrayList<ChimeraStructuralObject>();
+		// the models the node belongs to, and the functional residues for each
+		final List<ChimeraModel> models = new ArrayList<ChimeraModel>();
+		final List<List<String>> funcResidues = new ArrayList<List<String>>();
+		// all of the models we looked at, which get (possibly empty) entries in currentChimMap
+		final Set<ChimeraModel> touchedModels = new LinkedHashSet<ChimeraModel>();
+
+		NodeAssociation(CyIdentifiable cyObj) {
+			this.cyObj = cyObj;
 		}
 	}
 
@@ -15,6 +15,7 @@ import org.cytoscape.work.Tunable;
 import org.cytoscape.work.util.ListMultipleSelection;
 
 import edu.ucsf.rbvi.structureVizX.internal.model.AlignManager;
+import edu.ucsf.rbvi.structureVizX.internal.model.AlignmentMatrix;
 import edu.ucsf.rbvi.structureVizX.internal.model.ChimUtils;
 import edu.ucsf.rbvi.structureVizX.internal.model.ChimeraChain;
 import edu.ucsf.rbvi.structureVizX.internal.model.ChimeraManager;
@@ -28,6 +29,7 @@ public class AlignCommandTask extends AbstractTask implements ObservableTask {
 	private ChimeraManager chimeraManager;
 	private CyNetwork net;
 	private Map<String, float[]> results;
+	private AlignManager alignment = null;
 
 	@Tunable(description = "Network for the selected nodes/edges", context = "nogui")
 	public CyNetwork network;
@@ -41,6 +43,12 @@ public class AlignCommandTask extends AbstractTask implements ObservableTask {
 	@Tunable(description = "List of chains to align to the reference")
 	public ListMultipleSelection<String> chainList = new ListMultipleSelection<String>("");
 
+	@Tunable(description = "Align every pair of the models or chains, rather than each of them to the reference", context = "nogui")
+	public boolean allVsAll = false;
+
+	@Tunable(description = "Use the results of earlier alignments of the same structures, if there are any (those pairs are not superimposed again)", context = "nogui")
+	public boolean useCache = true;
+
 	@Tunable(description = "Show the sequence alignment for each aligned pair", context = "nogui")
 	public boolean showSequences = false;
 
@@ -94,10 +102,15 @@ public class AlignCommandTask extends AbstractTask implements ObservableTask {
 			taskMonitor.showMessage(Level.ERROR, "Cannot align both models and chains.");
 			return;
 		}
-		AlignManager alignment = new AlignManager(structureManager);
+		alignment = new AlignManager(structureManager);
 		alignment.setShowSequence(showSequences);
+		alignment.setUseCache(useCache);
 		alignment.setCreateNewEdges(createEdges);
 		alignment.setAssignResults(assignAttributes);
+		if (allVsAll) {
+			alignAllPairs(taskMonitor);
+			return;
+		}
 		ChimeraStructuralObject ref = null;
 		List<ChimeraStructuralObject> alignModels = new ArrayList<ChimeraStructuralObject>();
 		if (reference != null && reference.length() > 0) {
@@ -137,9 +150,48 @@ public class AlignCommandTask extends AbstractTask implements ObservableTask {
 		}
 		alignment.align(ref, alignModels);
 		for (ChimeraStructuralObject model : alignModels) {
-			results.put(ChimUtils.getAlignName(model),
-					alignment.getResults(ChimUtils.getAlignName(model)));
+			float[] modelResults = alignment.getResults(ChimUtils.getAlignName(model));
+			if (modelResults != null)
+				results.put(ChimUtils.getAlignName(model), modelResults);
+		}
+	}
+
+	private void alignAllPairs(TaskMonitor taskMonitor) {
+		List<ChimeraStructuralObject> alignObjects = new ArrayList<ChimeraStructuralObject>();
+		for (String val : modelList.getSelectedValues()) {
+			ChimeraStructuralObject model = ChimUtils.fromAttribute(val, chimeraManager);
+			if (model != null && model instanceof ChimeraModel)
+				alignObjects.add(model);
+		}
+		for (String val : chainList.getSelectedValues()) {
+			ChimeraStructuralObject chain = ChimUtils.fromAttribute(val, chimeraManager);
+			if (chain != null && chain instanceof ChimeraChain)
+				alignObjects.add(chain);
 		}
+		if (alignObjects.size() < 2) {
+			taskMonitor.setStatusMessage("At least two models or chains are needed, aborting...");
+			return;
+		}
+		AlignmentMatrix matrix = alignment.alignAllPairs(alignObjects, taskMonitor);
+		for (int pair = 0; pair < matrix.getPairCount(); pair++) {
+			float[] pairResults = matrix.getResults(pair);
+			if (pairResults != null) {
+				results.put(ChimUtils.getAlignName(matrix.getObject(matrix.getRow(pair))) + ","
+						+ ChimUtils.getAlignName(matrix.getObject(matrix.getColumn(pair))),
+						pairResults);
+			}
+		}
+		if (!matrix.isComplete()) {
+			taskMonitor.showMessage(Level.WARN, "Only " + matrix.getAlignedCount() + " of "
+					+ matrix.getPairCount() + " pairs were aligned");
+		}
+	}
+
+	@Override
+	public void cancel() {
+		super.cancel();
+		if (alignment != null)
+			alignment.cancel();
 	}
 
 	public Object getResults(Class type) {
@@ -52,7 +52,7 @@ public class AlignStructuresTask extends AbstractTask {
 		// open structures
 		taskMonitor.setStatusMessage("Opening structures ...");
 		if (!structureManager.openStructures(netView.getModel(), selectedChimeraObjNames,
-				ModelType.PDB_MODEL)) {
+				ModelType.PDB_MODEL, taskMonitor)) {
 			taskMonitor.setStatusMessage("Structures could not be opened. Task aborted.");
 		} else if (!structureManager.getChimeraManager().isChimeraLaunched()) {
 			taskMonitor.setStatusMessage("Chimera could not be launched.");
@@ -0,0 +1,42 @@
+package edu.ucsf.rbvi.structureVizX.internal.tasks;
+
+import org.cytoscape.work.AbstractTask;
+import org.cytoscape.work.ObservableTask;
+import org.cytoscape.work.TaskMonitor;
+import org.cytoscape.work.Tunable;
+
+import edu.ucsf.rbvi.structureVizX.internal.model.AlignmentCache;
+import edu.ucsf.rbvi.structureVizX.internal.model.StructureManager;
+
+public class AlignmentCacheTask extends AbstractTask implements ObservableTask {
+
+	private StructureManager structureManager;
+	private AlignmentCache cache;
+
+	@Tunable(description = "Remove all of the cached alignment results", context = "nogui")
+	public boolean clear = false;
+
+	public AlignmentCacheTask(StructureManager structureManager) {
+		this.structureManager = structureManager;
+	}
+
+	@Override
+	public void run(TaskMonitor taskMonitor) throws Exception {
+		taskMonitor.setTitle("Alignment Cache");
+		cache = structureManager.getAlignmentCache();
+		if (clear) {
+			cache.clear();
+		}
+	}
+
+	@Override
+	public <R> R getResults(Class<? extends R> type) {
+		if (type.equals(String.class)) {
+			String result = "hits: " + cache.getHits() + "\n";
+			result += "misses: " + cache.getMisses() + "\n";
+			result += "entries: " + cache.size() + "\n";
+			return (R)result;
+		}
+		return (R)getResults(String.class);
+	}
+}
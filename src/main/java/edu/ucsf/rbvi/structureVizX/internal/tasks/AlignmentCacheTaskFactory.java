@@ -0,0 +1,21 @@
+package edu.ucsf.rbvi.structureVizX.internal.tasks;
+
+import org.cytoscape.work.AbstractTaskFactory;
+import org.cytoscape.work.TaskFactory;
+import org.cytoscape.work.TaskIterator;
+
+import edu.ucsf.rbvi.structureVizX.internal.model.StructureManager;
+
+public class AlignmentCacheTaskFactory extends AbstractTaskFactory implements TaskFactory {
+
+	private StructureManager structureManager;
+	
+	public AlignmentCacheTaskFactory(StructureManager structureManager) {
+		this.structureManager = structureManager;
+	}
+	
+	public TaskIterator createTaskIterator() {
+		return new TaskIterator(new AlignmentCacheTask(structureManager));
+	}
+
+}
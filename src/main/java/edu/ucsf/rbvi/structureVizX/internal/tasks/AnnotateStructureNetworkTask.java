@@ -1,5 +1,6 @@
 package edu.ucsf.rbvi.structureVizX.internal.tasks;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.cytoscape.application.CyApplicationManager;
@@ -7,9 +8,12 @@ import org.cytoscape.model.CyNetwork;
 import org.cytoscape.work.AbstractTask;
 import org.cytoscape.work.ProvidesTitle;
 import org.cytoscape.work.TaskMonitor;
+import org.cytoscape.work.TaskMonitor.Level;
 import org.cytoscape.work.Tunable;
 import org.cytoscape.work.util.ListMultipleSelection;
+import org.cytoscape.work.util.ListSingleSelection;
 
+import edu.ucsf.rbvi.structureVizX.internal.model.CentroidAccumulator;
 import edu.ucsf.rbvi.structureVizX.internal.model.RINManager;
 import edu.ucsf.rbvi.structureVizX.internal.model.StructureManager;
 
@@ -22,6 +26,10 @@ public class AnnotateStructureNetworkTask extends AbstractTask {
 	@Tunable(description = "Available residue attributes")
 	public ListMultipleSelection<String> residueAttributes = new ListMultipleSelection<String>("");
 
+	@Tunable(description = "Residue coordinates from")
+	public ListSingleSelection<CentroidAccumulator.Mode> coordinateMode = new ListSingleSelection<CentroidAccumulator.Mode>(
+			CentroidAccumulator.Mode.values());
+
 	@Tunable(description = "Network for the selected nodes/edges", context = "nogui")
 	public CyNetwork network;
 
@@ -32,6 +40,7 @@ public class AnnotateStructureNetworkTask extends AbstractTask {
 		List<String> attrs = structureManager.getAllChimeraResidueAttributes();
 		residueAttributes = new ListMultipleSelection<String>(attrs);
 		residueAttributes.setSelectedValues(attrs);
+		coordinateMode.setSelectedValue(CentroidAccumulator.Mode.ALL_ATOMS);
 	}
 
 	@ProvidesTitle
@@ -60,15 +69,27 @@ public class AnnotateStructureNetworkTask extends AbstractTask {
 		if (residueAttributes != null && residueAttributes.getSelectedValues().size() > 0) {
 			// System.out.println("Getting attribute data from Chimera ...");
 			taskMonitor.setStatusMessage("Getting attribute data from Chimera ...");
+			// Plain attributes are all fetched together
+			List<String> resAttrs = new ArrayList<String>();
 			for (String resAttr : residueAttributes.getSelectedValues()) {
 				// System.out.println("Getting data for attribute " + resAttr + " ...");
-				taskMonitor.setStatusMessage("Getting data for attribute " + resAttr + " ...");
 				if (resAttr.equals("SecondaryStructure")) {
+					taskMonitor.setStatusMessage("Getting data for attribute " + resAttr + " ...");
 					rinManager.annotateSS(net);
 				} else if (resAttr.equals("Coordinates")) {
-					rinManager.annotateCoord(net, "resCoord");
+					taskMonitor.setStatusMessage("Getting data for attribute " + resAttr + " ...");
+					rinManager.annotateCoord(net, "resCoord", coordinateMode.getSelectedValue());
 				} else {
-					rinManager.annotate(net, resAttr, resAttr);
+					resAttrs.add(resAttr);
+				}
+			}
+			if (resAttrs.size() > 0) {
+				taskMonitor.setStatusMessage("Getting data for " + resAttrs.size()
+						+ " attributes ...");
+				List<String> failed = rinManager.annotate(net, resAttrs, resAttrs);
+				if (failed.size() > 0) {
+					taskMonitor.showMessage(Level.WARN,
+							"ChimeraX could not provide all values for: " + failed);
 				}
 			}
 		} else {
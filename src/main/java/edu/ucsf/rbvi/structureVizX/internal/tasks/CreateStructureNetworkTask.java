@@ -1,5 +1,6 @@
 package edu.ucsf.rbvi.structureVizX.internal.tasks;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -27,14 +28,17 @@ import org.cytoscape.work.ProvidesTitle;
 import org.cytoscape.work.SynchronousTaskManager;
 import org.cytoscape.work.TaskManager;
 import org.cytoscape.work.TaskMonitor;
+import org.cytoscape.work.TaskMonitor.Level;
 import org.cytoscape.work.Tunable;
 import org.cytoscape.work.TunableSetter;
 import org.cytoscape.work.util.ListMultipleSelection;
 import org.cytoscape.work.util.ListSingleSelection;
 
 import edu.ucsf.rbvi.structureVizX.internal.io.ChimeraIO;
+import edu.ucsf.rbvi.structureVizX.internal.model.AtomCoordinates;
 import edu.ucsf.rbvi.structureVizX.internal.model.ChimeraManager;
 import edu.ucsf.rbvi.structureVizX.internal.model.ChimeraModel;
+import edu.ucsf.rbvi.structureVizX.internal.model.RINGraph;
 import edu.ucsf.rbvi.structureVizX.internal.model.RINManager;
 import edu.ucsf.rbvi.structureVizX.internal.model.StructureManager;
 
@@ -58,6 +62,9 @@ public class CreateStructureNetworkTask extends AbstractTask {
 	@Tunable(description = "Include combined edges", groups = "General", gravity = 1.5)
 	public boolean includeCombiEdges = false;
 
+	@Tunable(description = "Compute contacts and distances in Cytoscape", groups = "General", gravity = 1.6, tooltip = "Faster for large structures. Atoms are read from the structure file when a single unchanged local structure is open")
+	public boolean computeLocally = false;
+
 	@Tunable(description = "Include contacts", groups = "Contacts", gravity = 2.1)
 	public boolean includeContacts = true;
 
@@ -161,10 +168,15 @@ public class CreateStructureNetworkTask extends AbstractTask {
 		taskMonitor.setStatusMessage("Creating network ...");
 		// Save selected nodes indexed by their name
 		Map<String, CyNode> nodeMap = new HashMap<String, CyNode>();
+		// and the selected residues, so we only need to ask Chimera once
+		List<String> selectedResidues = new ArrayList<String>();
 		chimeraIO.stopListening();
 		// get rin initialized with all attributes and nodes in the selection
-		final CyNetwork rin = rinManager.createRIN(nodeMap, networkName, ignoreWater,
-				includeCombiEdges);
+		final CyNetwork rin = rinManager.createRIN(nodeMap, selectedResidues, networkName,
+				ignoreWater, includeCombiEdges);
+		// collect the edges off the network, and create them all at the end
+		RINGraph rinGraph = new RINGraph(rin, selectedResidues);
+		long buildStart = System.currentTimeMillis();
 
 		// add hydrogens first
 		if (addHydrogens) {
@@ -172,34 +184,63 @@ public class CreateStructureNetworkTask extends AbstractTask {
 			taskMonitor.setStatusMessage("Adding hydrogens ...");
 			chimeraIO.sendChimeraCommand("addh hbond true", false);
 		}
+		// fetch the atoms once if we're computing the geometry ourselves
+		AtomCoordinates atoms = null;
+		if (computeLocally && (includeContacts || includeClashes || includeDistance)) {
+			taskMonitor.setStatusMessage("Getting atom coordinates ...");
+			atoms = rinManager.getAtomCoordinates(ignoreWater, !addHydrogens);
+		}
 		if (includeContacts) {
 			taskMonitor.setStatusMessage("Getting contacts ...");
-			rinManager.includeContacts(rin, nodeMap, getIncludeInteractions(), ignoreWater,
-					removeRedContacts, overlapCutoffContact, hbondAllowanceContact, bondSepContact);
+			if (atoms != null)
+				rinManager.includeNativeContacts(rinGraph, nodeMap, atoms, getIncludeInteractions(),
+						ignoreWater, removeRedContacts, overlapCutoffContact, hbondAllowanceContact,
+						bondSepContact);
+			else
+				rinManager.includeContacts(rinGraph, nodeMap, getIncludeInteractions(), ignoreWater,
+						removeRedContacts, overlapCutoffContact, hbondAllowanceContact, bondSepContact);
 		}
 		if (includeClashes) {
 			taskMonitor.setStatusMessage("Getting clashes ...");
-			rinManager.includeClashes(rin, nodeMap, getIncludeInteractions(), ignoreWater,
-					removeRedContacts, overlapCutoffClash, hbondAllowanceClash, bondSepClash);
+			if (atoms != null)
+				rinManager.includeNativeClashes(rinGraph, nodeMap, atoms, getIncludeInteractions(),
+						ignoreWater, removeRedContacts, overlapCutoffClash, hbondAllowanceClash,
+						bondSepClash);
+			else
+				rinManager.includeClashes(rinGraph, nodeMap, getIncludeInteractions(), ignoreWater,
+						removeRedContacts, overlapCutoffClash, hbondAllowanceClash, bondSepClash);
 		}
 		if (includeHBonds) {
 			taskMonitor.setStatusMessage("Getting hydrogen bonds ...");
-			rinManager.includeHBonds(rin, nodeMap, getIncludeInteractions(), ignoreWater,
+			rinManager.includeHBonds(rinGraph, nodeMap, getIncludeInteractions(), ignoreWater,
 					removeRedContacts, addHydrogens, relaxHBonds, angleTolerance, distTolerance);
 		}
 		if (includeConnectivity) {
 			taskMonitor.setStatusMessage("Getting connectivity ...");
-			rinManager.includeConnectivity(rin);
+			rinManager.includeConnectivity(rinGraph);
 		}
 		if (includeDistance) {
 			taskMonitor.setStatusMessage("Getting distances ...");
-			rinManager.includeDistances(rin, nodeMap, getIncludeInteractions(), ignoreWater,
-					removeRedContacts, distCutoff);
+			if (atoms != null)
+				rinManager.includeNativeDistances(rinGraph, nodeMap, atoms,
+						getIncludeInteractions(), ignoreWater, removeRedContacts, distCutoff);
+			else
+				rinManager.includeDistances(rinGraph, nodeMap, getIncludeInteractions(),
+						ignoreWater, removeRedContacts, distCutoff);
 		}
 		if (includeCombiEdges) {
 			taskMonitor.setStatusMessage("Adding combined edges ...");
-			rinManager.addCombinedEdges(rin);
+			rinManager.addCombinedEdges(rinGraph);
 		}
+		long buildTime = System.currentTimeMillis() - buildStart;
+
+		taskMonitor.setStatusMessage("Creating " + rinGraph.getEdgeCount() + " edges ...");
+		long materializeStart = System.currentTimeMillis();
+		rinManager.materialize(rinGraph);
+		long materializeTime = System.currentTimeMillis() - materializeStart;
+		taskMonitor.showMessage(Level.INFO, "Found " + rinGraph.getEdgeCount()
+				+ " interactions in " + buildTime + "ms, created network edges in "
+				+ materializeTime + "ms");
 
 		taskMonitor.setStatusMessage("Registering network...");
 		// register network
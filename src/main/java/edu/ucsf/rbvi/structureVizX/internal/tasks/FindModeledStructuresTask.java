@@ -49,7 +49,7 @@ public class FindModeledStructuresTask extends AbstractTask {
 		if (selectedStructureNames.size() > 0) {
 			// open structures
 			if (!structureManager.openStructures(netView.getModel(), selectedStructureNames,
-					ModelType.MODBASE_MODEL)) {
+					ModelType.MODBASE_MODEL, taskMonitor)) {
 				taskMonitor.setStatusMessage("Structures could not be opened.");
 			}
 		}
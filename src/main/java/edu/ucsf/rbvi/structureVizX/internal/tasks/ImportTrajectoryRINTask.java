@@ -4,6 +4,11 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -15,6 +20,7 @@ import org.cytoscape.model.CyNetwork;
 import org.cytoscape.model.CyNetworkFactory;
 import org.cytoscape.model.CyNetworkManager;
 import org.cytoscape.model.CyNode;
+import org.cytoscape.model.CyRow;
 import org.cytoscape.model.CyTable;
 import org.cytoscape.task.NetworkTaskFactory;
 import org.cytoscape.task.read.LoadVizmapFileTaskFactory;
@@ -34,7 +40,9 @@ import org.cytoscape.work.util.ListMultipleSelection;
 
 import edu.ucsf.rbvi.structureVizX.internal.model.ChimUtils;
 import edu.ucsf.rbvi.structureVizX.internal.model.CytoUtils;
+import edu.ucsf.rbvi.structureVizX.internal.model.EdgeWeightSeries;
 import edu.ucsf.rbvi.structureVizX.internal.model.StructureManager;
+import edu.ucsf.rbvi.structureVizX.internal.utils.StringUtils;
 
 // TODO: [Bug] NullPointerException if network name contains ","
 
@@ -46,6 +54,14 @@ public class ImportTrajectoryRINTask extends AbstractTask {
 	private Map<String, CyNode> nodesMap;
 	private VisualStyle visualStyle;
 	private static final String weightAttr = "Weight";
+	private static final String meanWeightAttr = "MeanWeight";
+	private static final String maxWeightAttr = "MaxWeight";
+	private static final String occupancyAttr = "Occupancy";
+	private static final String frameCountAttr = "Frames";
+	// Size of the buffer the network file is read through
+	private static final int READ_SIZE = 1024 * 1024;
+	private Map<String, Integer> edgeIds;
+	private EdgeWeightSeries series;
 
 	public ImportTrajectoryRINTask(StructureManager structureManager, String trajInfo) {
 		this.structureManager = structureManager;
@@ -95,6 +111,9 @@ public class ImportTrajectoryRINTask extends AbstractTask {
 				importNetwork(networkName, networkFile);
 			}
 		}
+		if (cancelled) {
+			return;
+		}
 		if (tableFile != null) {
 			// import table
 			tableFile = tableFile.substring(tableFile.indexOf("'") + 1, tableFile.length() - 1);
@@ -140,59 +159,192 @@ public class ImportTrajectoryRINTask extends AbstractTask {
 		newNetwork.getDefaultNodeTable()
 				.createColumn(ChimUtils.RINALYZER_ATTR, String.class, false);
 		newNetwork.getRow(newNetwork).set(CyNetwork.NAME, name);
-		BufferedReader br = null;
 		nodesMap = new HashMap<String, CyNode>();
+		edgeIds = new HashMap<String, Integer>();
+		series = null;
+		// Read the file through one reused buffer, so a long trajectory is never held in
+		// memory as lines. We don't memory map it, since the mapping would keep the file
+		// locked on Windows until it is garbage collected.
+		RandomAccessFile input = null;
 		try {
-			br = new BufferedReader(new FileReader(file));
-			String line = null;
-			while ((line = br.readLine()) != null) {
-				String[] words = line.split("\t");
-				if (words.length != 4) {
-					continue;
-				}
-				String sourceName = words[0];
-				String targetName = words[2];
-				CyNode source = null;
-				CyNode target = null;
-				if (!nodesMap.containsKey(sourceName)) {
-					source = newNetwork.addNode();
-					nodesMap.put(sourceName, source);
-					newNetwork.getRow(source).set(CyNetwork.NAME, sourceName);
-					setRINalyzerID(source, sourceName);
-				} else {
-					source = nodesMap.get(sourceName);
-				}
-				if (!nodesMap.containsKey(targetName)) {
-					target = newNetwork.addNode();
-					nodesMap.put(targetName, target);
-					newNetwork.getRow(target).set(CyNetwork.NAME, targetName);
-					setRINalyzerID(target, targetName);
-				} else {
-					target = nodesMap.get(targetName);
+			input = new RandomAccessFile(file, "r");
+			FileChannel channel = input.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+			byte[] line = new byte[256];
+			int lineLength = 0;
+			while (channel.read(buffer) >= 0) {
+				if (cancelled) {
+					// The network hasn't been registered yet, so dropping it discards it
+					newNetwork = null;
+					series = null;
+					return;
 				}
-				if (source != null && target != null) {
-					CyEdge edge = newNetwork.addEdge(source, target, true);
-					newNetwork.getRow(edge).set(
-							CyNetwork.NAME,
-							CytoUtils.getNodeName(newNetwork, source) + " (" + words[1] + ") "
-									+ CytoUtils.getNodeName(newNetwork, target));
-					newNetwork.getRow(edge).set(CyEdge.INTERACTION, words[1]);
-					newNetwork.getRow(edge).set(weightAttr, new Double(words[3]));
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					byte b = buffer.get();
+					if (b == '\n') {
+						importLine(line, lineLength);
+						lineLength = 0;
+						continue;
+					}
+					if (lineLength == line.length) {
+						line = Arrays.copyOf(line, lineLength * 2);
+					}
+					line[lineLength++] = b;
 				}
+				buffer.clear();
+			}
+			if (lineLength > 0) {
+				importLine(line, lineLength);
 			}
-			br.close();
 		} catch (Exception ex) {
 			// ignore, parsing failed
 			ex.printStackTrace();
 		} finally {
 			try {
-				if (br != null) {
-					br.close();
+				if (input != null) {
+					input.close();
 				}
 			} catch (IOException ex) {
 				// ignore
 			}
 		}
+		if (series != null) {
+			saveSeriesSummary();
+		}
+	}
+
+	/**
+	 * Import one edge line. Aggregated networks have four columns: source, interaction, target
+	 * and weight. Trajectory networks add the frame number as a fifth column, with one line per
+	 * edge per frame, and the weights of each edge are collected into a series instead of
+	 * creating an edge for every line.
+	 */
+	private void importLine(byte[] line, int length) {
+		if (length > 0 && line[length - 1] == '\r') {
+			length--;
+		}
+		int[] tabs = new int[4];
+		int tabCount = 0;
+		for (int i = 0; i < length; i++) {
+			if (line[i] == '\t') {
+				if (tabCount == tabs.length) {
+					return;
+				}
+				tabs[tabCount++] = i;
+			}
+		}
+		if (tabCount != 3 && tabCount != 4) {
+			return;
+		}
+		if (tabCount == 3) {
+			// The weight is stored as it is, so read it exactly as we always have
+			double weight;
+			try {
+				weight = Double.parseDouble(decode(line, tabs[2] + 1, length));
+			} catch (NumberFormatException ex) {
+				return;
+			}
+			CyEdge edge = addEdge(decode(line, 0, tabs[0]), decode(line, tabs[0] + 1, tabs[1]),
+					decode(line, tabs[1] + 1, tabs[2]));
+			newNetwork.getRow(edge).set(weightAttr, weight);
+			return;
+		}
+
+		// Frame weights are only kept as floats, so they don't need to be read exactly
+		double weight = parseNumber(line, tabs[2] + 1, tabs[3]);
+		if (Double.isNaN(weight)) {
+			return;
+		}
+
+		double frame = parseNumber(line, tabs[3] + 1, length);
+		if (Double.isNaN(frame) || frame != Math.floor(frame)) {
+			return;
+		}
+		if (series == null) {
+			series = new EdgeWeightSeries();
+		}
+		String key = decode(line, 0, tabs[2]);
+		Integer edgeId = edgeIds.get(key);
+		if (edgeId == null) {
+			CyEdge edge = addEdge(decode(line, 0, tabs[0]), decode(line, tabs[0] + 1, tabs[1]),
+					decode(line, tabs[1] + 1, tabs[2]));
+			edgeId = series.addEdge(edge.getSUID());
+			edgeIds.put(key, edgeId);
+		}
+		series.add(edgeId, (int) frame, (float) weight);
+	}
+
+	private CyEdge addEdge(String sourceName, String interaction, String targetName) {
+		CyNode source = nodesMap.get(sourceName);
+		if (source == null) {
+			source = newNetwork.addNode();
+			nodesMap.put(sourceName, source);
+			newNetwork.getRow(source).set(CyNetwork.NAME, sourceName);
+			setRINalyzerID(source, sourceName);
+		}
+		CyNode target = nodesMap.get(targetName);
+		if (target == null) {
+			target = newNetwork.addNode();
+			nodesMap.put(targetName, target);
+			newNetwork.getRow(target).set(CyNetwork.NAME, targetName);
+			setRINalyzerID(target, targetName);
+		}
+		CyEdge edge = newNetwork.addEdge(source, target, true);
+		newNetwork.getRow(edge).set(
+				CyNetwork.NAME,
+				CytoUtils.getNodeName(newNetwork, source) + " (" + interaction + ") "
+						+ CytoUtils.getNodeName(newNetwork, target));
+		newNetwork.getRow(edge).set(CyEdge.INTERACTION, interaction);
+		return edge;
+	}
+
+	/**
+	 * Save the mean, maximum and occupancy of each trajectory edge as edge columns. The weight
+	 * column gets the mean, so styles that map the weight still work. The series itself is
+	 * kept with the network in the structure manager.
+	 */
+	private void saveSeriesSummary() {
+		CyTable edgeTable = newNetwork.getDefaultEdgeTable();
+		edgeTable.createColumn(meanWeightAttr, Double.class, false);
+		edgeTable.createColumn(maxWeightAttr, Double.class, false);
+		edgeTable.createColumn(occupancyAttr, Double.class, false);
+		for (int edge = 0; edge < series.getEdgeCount(); edge++) {
+			CyRow row = edgeTable.getRow(series.getEdge(edge));
+			double mean = series.getMean(edge);
+			row.set(weightAttr, mean);
+			row.set(meanWeightAttr, mean);
+			row.set(maxWeightAttr, series.getMax(edge));
+			row.set(occupancyAttr, series.getOccupancy(edge));
+		}
+		if (newNetwork.getDefaultNetworkTable().getColumn(frameCountAttr) == null) {
+			newNetwork.getDefaultNetworkTable().createColumn(frameCountAttr, Integer.class, false);
+		}
+		newNetwork.getRow(newNetwork).set(frameCountAttr, series.getFrameCount());
+		structureManager.setEdgeWeightSeries(newNetwork, series);
+	}
+
+	private static String decode(byte[] line, int start, int end) {
+		return new String(line, start, end - start, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Read a number without creating a string, falling back to
+	 * {@link Double#parseDouble(String)} for anything that isn't a plain decimal (e.g.
+	 * exponents).
+	 * 
+	 * @return the number, or NaN if it can't be read
+	 */
+	private static double parseNumber(byte[] line, int start, int end) {
+		double value = StringUtils.parseDecimal(line, start, end);
+		if (!Double.isNaN(value)) {
+			return value;
+		}
+		try {
+			return Double.parseDouble(decode(line, start, end).trim());
+		} catch (NumberFormatException ex) {
+			return Double.NaN;
+		}
 	}
 
 	private void importTable(String file) {
@@ -4,11 +4,11 @@ import org.cytoscape.work.AbstractTask;
 import org.cytoscape.work.TaskMonitor;
 import org.cytoscape.work.Tunable;
 
+import edu.ucsf.rbvi.structureVizX.internal.model.ChimeraEventQueue.EventType;
 import edu.ucsf.rbvi.structureVizX.internal.model.StructureManager;
 
 public class ModelChangedTask extends AbstractTask {
 	private StructureManager structureManager;
-	static boolean modelUpdaterRunning = false;
 
 	@Tunable(description="Data from Chimera")
 	public String chimerax_notification = "";
@@ -19,24 +19,8 @@ public class ModelChangedTask extends AbstractTask {
 
 	@Override
 	public void run(TaskMonitor taskMonitor) throws Exception {
-		(new ModelUpdater()).start();
+		// Bursts of notifications are coalesced by the event queue
+		structureManager.getEventQueue().post(EventType.MODEL_CHANGED);
 	}
 
-  /**
-   * Model updater thread
-   */
-  class ModelUpdater extends Thread {
-
-    public ModelUpdater() {
-    }
-
-    public void run() {
-      if (ModelChangedTask.modelUpdaterRunning) return;
-      ModelChangedTask.modelUpdaterRunning = true;
-      structureManager.updateModels();
-      structureManager.modelChanged();
-      ModelChangedTask.modelUpdaterRunning = false;
-    }
-  }
-
 }
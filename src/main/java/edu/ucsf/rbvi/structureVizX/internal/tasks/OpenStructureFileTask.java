@@ -43,7 +43,8 @@ public class OpenStructureFileTask extends AbstractTask {
 		// structureFile.getAbsolutePath()
 		structures.add(structureFile.getAbsolutePath());
 		structuresToOpen.put(net, structures);
-		if (!structureManager.openStructures(net, structuresToOpen, ModelType.PDB_MODEL)) {
+		if (!structureManager.openStructures(net, structuresToOpen, ModelType.PDB_MODEL,
+				taskMonitor)) {
 			taskMonitor.setStatusMessage("Structure could not be opened.");
 		}
 
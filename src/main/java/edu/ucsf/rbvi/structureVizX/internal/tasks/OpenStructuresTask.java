@@ -157,7 +157,8 @@ public class OpenStructuresTask extends AbstractTask implements ObservableTask {
 		if (structuresToOpen.size() > 0) {
 			taskMonitor.setStatusMessage("Opening structures ...");
 			// System.out.println("Opening "+structuresToOpen.size()+" structures");
-			if (!structureManager.openStructures(net, structuresToOpen, ModelType.PDB_MODEL)) {
+			if (!structureManager.openStructures(net, structuresToOpen, ModelType.PDB_MODEL,
+					taskMonitor)) {
 				taskMonitor.setStatusMessage("Structures could not be opened.");
 			}
 			openNodes += structuresToOpen.size();
@@ -174,7 +175,8 @@ public class OpenStructuresTask extends AbstractTask implements ObservableTask {
 		if (structuresToOpen.size() > 0) {
 			taskMonitor.setStatusMessage("Opening chemical structures ...");
 			// open structures
-			if (!structureManager.openStructures(net, structuresToOpen, ModelType.SMILES)) {
+			if (!structureManager.openStructures(net, structuresToOpen, ModelType.SMILES,
+					taskMonitor)) {
 				taskMonitor.setStatusMessage("Chemical structures could not be opened.");
 			}
 			openNodes += structuresToOpen.size();
@@ -193,7 +195,8 @@ public class OpenStructuresTask extends AbstractTask implements ObservableTask {
 		// open modbase models
 		if (structuresToOpen.size() > 0) {
 			taskMonitor.setStatusMessage("Opening modbase models ...");
-			if (!structureManager.openStructures(net, structuresToOpen, ModelType.MODBASE_MODEL)) {
+			if (!structureManager.openStructures(net, structuresToOpen, ModelType.MODBASE_MODEL,
+					taskMonitor)) {
 				taskMonitor.setStatusMessage("ModBase models could not be opened.");
 			}
 			openNodes += structuresToOpen.size();
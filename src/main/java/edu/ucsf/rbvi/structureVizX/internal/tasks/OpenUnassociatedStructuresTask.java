@@ -83,7 +83,8 @@ public class OpenUnassociatedStructuresTask extends AbstractTask implements Obse
 		if (structuresToOpen.size() > 0) {
 			taskMonitor.setStatusMessage("Opening structures ...");
 			// System.out.println("Opening "+structuresToOpen.size()+" structures");
-			if (!structureManager.openStructures(null, structuresToOpen, ModelType.PDB_MODEL)) {
+			if (!structureManager.openStructures(null, structuresToOpen, ModelType.PDB_MODEL,
+					taskMonitor)) {
 				taskMonitor.setStatusMessage("Structures could not be opened.");
 			}
 			openNodes += structuresToOpen.size();
@@ -102,7 +103,8 @@ public class OpenUnassociatedStructuresTask extends AbstractTask implements Obse
 		// open modbase models
 		if (structuresToOpen.size() > 0) {
 			taskMonitor.setStatusMessage("Opening modbase models ...");
-			if (!structureManager.openStructures(null, structuresToOpen, ModelType.MODBASE_MODEL)) {
+			if (!structureManager.openStructures(null, structuresToOpen, ModelType.MODBASE_MODEL,
+					taskMonitor)) {
 				taskMonitor.setStatusMessage("ModBase models could not be opened.");
 			}
 			openNodes += structuresToOpen.size();
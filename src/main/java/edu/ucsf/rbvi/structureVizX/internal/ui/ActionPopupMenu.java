@@ -451,8 +451,11 @@ public class ActionPopupMenu extends JPopupMenu {
 		public void actionPerformed(ActionEvent ev) {
 			// Special case for chemistry selection commands
 			if (postCommand == MODEL_SELECTION) {
-				structureManager.getChimeraIO().select(commandList[0]);
-				structureManager.modelChanged();
+				structureManager.getChimeraIO().selectAsync(commandList[0]).thenRun(new Runnable() {
+					public void run() {
+						structureManager.modelChanged();
+					}
+				});
 				return;
 			} else if (postCommand == FUNCTIONAL_RESIDUES) {
 				// Get the object
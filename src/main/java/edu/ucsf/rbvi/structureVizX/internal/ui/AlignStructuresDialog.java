@@ -269,7 +269,8 @@ public class AlignStructuresDialog extends JDialog implements ActionListener {
 			// Display the results
 			for (ChimeraStructuralObject chimObject : tableModel.getSelectedModels()) {
 				float[] results = alignment.getResults(ChimUtils.getAlignName(chimObject));
-				tableModel.setResults(ChimUtils.getAlignName(chimObject), results);
+				if (results != null)
+					tableModel.setResults(ChimUtils.getAlignName(chimObject), results);
 			}
 			tableModel.updateTable();
 		}
@@ -168,9 +168,18 @@ public class ModelNavigatorDialog extends JPanel implements CytoPanelComponent2,
 
 	/**
 	 * Call this method when something significant has changed in the model such as a new model
-	 * opened or closed
+	 * opened or closed. This is often called from the Chimera command thread, so the tree is
+	 * always updated on the event dispatch thread.
 	 */
 	public void modelChanged() {
+		if (!SwingUtilities.isEventDispatchThread()) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					modelChanged();
+				}
+			});
+			return;
+		}
 		// Something significant changed in the model (new open/closed
 		// structure?)
 		ignoreDialogSelection = true;
@@ -323,7 +332,15 @@ public class ModelNavigatorDialog extends JPanel implements CytoPanelComponent2,
 	 * @param selectionList
 	 *            the List of ChimeraStructuralObjects to be selected
 	 */
-	public void updateSelection(List<ChimeraStructuralObject> selectionList) {
+	public void updateSelection(final List<ChimeraStructuralObject> selectionList) {
+		if (!SwingUtilities.isEventDispatchThread()) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					updateSelection(selectionList);
+				}
+			});
+			return;
+		}
 		// System.out.println("Model Navigator Panel: updateSelection ("+selectionList+")");
 		List<TreePath> pathList = new ArrayList<TreePath>();
 		this.ignoreDialogSelection = true;
@@ -655,9 +672,9 @@ public class ModelNavigatorDialog extends JPanel implements CytoPanelComponent2,
 			final int selectedObjectsCount = structureManager.getChimSelectionCount();
 			if (type == COMMAND) {
 				// System.out.println("Command: "+command);
-				chimeraIO.sendChimeraCommand(command, false);
+				chimeraIO.sendChimeraCommandAsync(command, false);
 			} else if (type == SELECT) {
-				chimeraIO.select(command);
+				chimeraIO.selectAsync(command);
 				// } else if (type == CLEAR) {
 				// System.out.println("clear selection");
 				// chimeraManager.select("~select");
@@ -669,7 +686,11 @@ public class ModelNavigatorDialog extends JPanel implements CytoPanelComponent2,
 				structureManager.selectFunctResidues(chimeraManager.getChimeraModels());
 				// modelChanged();
 			} else if (type == REFRESH) {
-				structureManager.updateModels();
+				chimeraIO.runAsync(new Runnable() {
+					public void run() {
+						structureManager.updateModels();
+					}
+				});
 			} else if (type == COLLAPSEALL) {
 				collapseAll();
 			} else if (type == EXPANDMODELS) {
@@ -685,7 +706,7 @@ public class ModelNavigatorDialog extends JPanel implements CytoPanelComponent2,
 				modelChanged();
 			} else if (type == FINDCLASH) {
 				if (selectedObjectsCount > 0) {
-					chimeraIO.select(command);
+					chimeraIO.selectAsync(command);
 				} else {
 					JOptionPane.showMessageDialog(dialog,
 							"You must select something to find clashes", "Nothing Selected",
@@ -693,7 +714,7 @@ public class ModelNavigatorDialog extends JPanel implements CytoPanelComponent2,
 				}
 			} else if (type == FINDHBOND) {
 				if (selectedObjectsCount > 0) {
-					chimeraIO.select(command);
+					chimeraIO.selectAsync(command);
 				} else {
 					JOptionPane.showMessageDialog(dialog,
 							"You must select something to find hydrogen bonds", "Nothing Selected",
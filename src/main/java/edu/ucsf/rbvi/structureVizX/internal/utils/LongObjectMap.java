@@ -0,0 +1,194 @@
+package edu.ucsf.rbvi.structureVizX.internal.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A simple open-addressing hash map from primitive <code>long</code> keys to objects. This
+ * avoids boxing a {@link Long} for every lookup, which matters for the large residue and edge
+ * tables we build while parsing Chimera replies. <code>null</code> values are not supported.
+ * This class is not thread-safe.
+ */
+public class LongObjectMap<V> {
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] keys;
+	private Object[] values;
+	private int size = 0;
+	private int mask;
+
+	public LongObjectMap() {
+		this(16);
+	}
+
+	/**
+	 * Create a new map
+	 *
+	 * @param expectedSize
+	 *            the number of entries we expect to store
+	 */
+	public LongObjectMap(int expectedSize) {
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expectedSize)
+			capacity <<= 1;
+		allocate(capacity);
+	}
+
+	/**
+	 * Get the value associated with a key
+	 *
+	 * @param key
+	 *            the key to look up
+	 * @return the value, or <code>null</code> if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int slot = hash(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key)
+				return (V) values[slot];
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Associate a value with a key
+	 *
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the (non-null) value
+	 * @return the previous value associated with the key, or <code>null</code>
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null)
+			throw new IllegalArgumentException("LongObjectMap does not support null values");
+		int slot = hash(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				V old = (V) values[slot];
+				values[slot] = value;
+				return old;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size > keys.length * LOAD_FACTOR)
+			rehash(keys.length << 1);
+		return null;
+	}
+
+	/**
+	 * Remove the value associated with a key
+	 *
+	 * @param key
+	 *            the key
+	 * @return the value that was removed, or <code>null</code>
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int slot = hash(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				V old = (V) values[slot];
+				values[slot] = null;
+				size--;
+				// Shift back any entries that probed past the slot we just emptied
+				int next = (slot + 1) & mask;
+				while (values[next] != null) {
+					int home = hash(keys[next]) & mask;
+					if (((next - home) & mask) >= ((next - slot) & mask)) {
+						keys[slot] = keys[next];
+						values[slot] = values[next];
+						values[next] = null;
+						slot = next;
+					}
+					next = (next + 1) & mask;
+				}
+				return old;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		for (int i = 0; i < values.length; i++)
+			values[i] = null;
+		size = 0;
+	}
+
+	/**
+	 * Return the keys in this map, in no particular order
+	 *
+	 * @return an array of all keys
+	 */
+	public long[] keys() {
+		long[] result = new long[size];
+		int j = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null)
+				result[j++] = keys[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Return the values in this map, in no particular order
+	 *
+	 * @return a list of all values
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		List<V> result = new ArrayList<V>(size);
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null)
+				result.add((V) values[i]);
+		}
+		return result;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(capacity);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int slot = hash(oldKeys[i]) & mask;
+				while (values[slot] != null)
+					slot = (slot + 1) & mask;
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private static int hash(long key) {
+		// Mix the bits so that keys differing only in the high word spread out
+		key ^= (key >>> 33);
+		key *= 0xff51afd7ed558ccdL;
+		key ^= (key >>> 33);
+		return (int) key;
+	}
+}
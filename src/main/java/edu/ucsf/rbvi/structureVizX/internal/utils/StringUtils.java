@@ -24,4 +24,118 @@ public class StringUtils {
 
 		return list.toArray(new String[1]);
 	}
+
+	/**
+	 * Split a line on runs of whitespace.  This is equivalent to
+	 * <code>line.trim().split("\\s+")</code>, but avoids the regular
+	 * expression machinery, which matters when parsing very large replies.
+	 * 
+	 * @param line
+	 *            the line to split
+	 * @return the non-empty tokens in the line
+	 */
+	public static String[] splitOnWhitespace(String line) {
+		List<String> list = new ArrayList<String>();
+		int length = line.length();
+		int start = -1;
+		for (int i = 0; i < length; i++) {
+			if (Character.isWhitespace(line.charAt(i))) {
+				if (start >= 0) {
+					list.add(line.substring(start, i));
+					start = -1;
+				}
+			} else if (start < 0) {
+				start = i;
+			}
+		}
+		if (start >= 0)
+			list.add(line.substring(start));
+		if (list.size() == 0)
+			return new String[] { "" };
+		return list.toArray(new String[list.size()]);
+	}
+
+	/**
+	 * Read the last whitespace-separated token of a line as a plain decimal number
+	 * (e.g. <code>-3.777</code>) without creating any strings.  The result may
+	 * differ from {@link Double#parseDouble(String)} in the last bit, so it should
+	 * only be used to throw lines away early.
+	 * 
+	 * @param line
+	 *            the line to read
+	 * @return the number, or NaN if the last token isn't a plain decimal number
+	 */
+	public static double parseLastNumber(String line) {
+		int end = line.length();
+		while (end > 0 && Character.isWhitespace(line.charAt(end - 1)))
+			end--;
+		int start = end;
+		while (start > 0 && !Character.isWhitespace(line.charAt(start - 1)))
+			start--;
+		return parseDecimal(line, start, end);
+	}
+
+	/**
+	 * Read a plain decimal number (e.g. <code>-3.777</code>) from a range of
+	 * bytes, such as part of a line read straight from a file, without creating
+	 * any strings.  The bytes are read as ASCII.  The result may differ from
+	 * {@link Double#parseDouble(String)} in the last bit.
+	 * 
+	 * @param bytes
+	 *            the bytes to read
+	 * @param start
+	 *            the index of the first byte of the number
+	 * @param end
+	 *            the index after the last byte of the number
+	 * @return the number, or NaN if the range isn't a plain decimal number
+	 */
+	public static double parseDecimal(final byte[] bytes, int start, int end) {
+		return parseDecimal(new CharSequence() {
+			public char charAt(int index) {
+				return (char) (bytes[index] & 0xFF);
+			}
+
+			public int length() {
+				return bytes.length;
+			}
+
+			public CharSequence subSequence(int start, int end) {
+				throw new UnsupportedOperationException();
+			}
+		}, start, end);
+	}
+
+	private static double parseDecimal(CharSequence text, int start, int end) {
+		if (start >= end)
+			return Double.NaN;
+
+		int i = start;
+		boolean negative = false;
+		if (text.charAt(i) == '-' || text.charAt(i) == '+') {
+			negative = text.charAt(i) == '-';
+			i++;
+		}
+		double value = 0.0;
+		double scale = 0.0;
+		boolean digits = false;
+		for (; i < end; i++) {
+			char c = text.charAt(i);
+			if (c >= '0' && c <= '9') {
+				digits = true;
+				if (scale == 0.0) {
+					value = value * 10.0 + (c - '0');
+				} else {
+					value += (c - '0') * scale;
+					scale /= 10.0;
+				}
+			} else if (c == '.' && scale == 0.0) {
+				scale = 0.1;
+			} else {
+				return Double.NaN;
+			}
+		}
+		if (!digits)
+			return Double.NaN;
+		return negative ? -value : value;
+	}
 }
@@ -0,0 +1,108 @@
+package edu.ucsf.rbvi.structureVizX.internal.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+public class StructureFileReaderTest {
+	@Test
+	public void testReadsResidues() throws IOException {
+		List<StructureFileReader.ModelResidues> models = StructureFileReader
+				.read(getResource("dipeptide.pdb"));
+		assertEquals(1, models.size());
+		StructureFileReader.ModelResidues model = models.get(0);
+		assertEquals(7, model.size());
+		assertEquals("A", model.getChainId(0));
+		assertEquals("1", model.getResidueIndex(0));
+		assertEquals("GLY", model.getResidueType(0));
+		assertEquals("CA", model.getResidueType(5));
+		assertEquals(0, model.getAtomCount());
+	}
+
+	@Test
+	public void testReadsAtoms() throws IOException {
+		StructureFileReader.ModelResidues model = StructureFileReader.readAtoms(
+				getResource("dipeptide.pdb")).get(0);
+		// Only the first location of the serine's OG
+		assertEquals(23, model.getAtomCount());
+		assertEquals("OG", model.getAtomName(14));
+		assertEquals(3.104f, model.getY(14), 1e-6f);
+		assertEquals("B", model.getChainId(model.getAtomResidue(14)));
+		// The calcium ion is calcium, not carbon
+		assertEquals("CA", model.getAtomName(20));
+		assertEquals("CA", model.getElement(20));
+		assertEquals("CL", model.getElement(22));
+	}
+
+	@Test
+	public void testPDBAndCIFMatch() throws IOException {
+		assertSameAtoms(StructureFileReader.readAtoms(getResource("dipeptide.pdb")).get(0),
+				StructureFileReader.readAtoms(getResource("dipeptide.cif")).get(0));
+	}
+
+	@Test
+	public void testSegmentsMatch() throws IOException {
+		File file = getResource("dipeptide.pdb");
+		StructureFileReader.ModelResidues whole = StructureFileReader.readAtoms(file, false)
+				.get(0);
+		int segmentSize = StructureFileReader.SEGMENT_SIZE;
+		StructureFileReader.SEGMENT_SIZE = 100;
+		try {
+			assertSameAtoms(whole, StructureFileReader.readAtoms(file, true).get(0));
+			assertSameAtoms(whole, StructureFileReader.readAtoms(getResource("dipeptide.cif"))
+					.get(0));
+		} finally {
+			StructureFileReader.SEGMENT_SIZE = segmentSize;
+		}
+	}
+
+	@Test
+	public void testMissingElements() throws IOException {
+		File file = File.createTempFile("noelements", ".pdb");
+		try {
+			FileWriter writer = new FileWriter(file);
+			writer.write("ATOM      1  CA  GLY A   1       1.458   0.000   0.000\n");
+			writer.close();
+			StructureFileReader.ModelResidues model = StructureFileReader.readAtoms(file).get(0);
+			assertEquals(1, model.getAtomCount());
+			assertNull(model.getElement(0));
+			assertEquals(1.458f, model.getX(0), 1e-6f);
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static void assertSameAtoms(StructureFileReader.ModelResidues expected,
+			StructureFileReader.ModelResidues actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int residue = 0; residue < expected.size(); residue++) {
+			assertEquals(expected.getChainId(residue), actual.getChainId(residue));
+			assertEquals(expected.getResidueIndex(residue), actual.getResidueIndex(residue));
+			assertEquals(expected.getResidueType(residue), actual.getResidueType(residue));
+		}
+		assertEquals(expected.getAtomCount(), actual.getAtomCount());
+		for (int atom = 0; atom < expected.getAtomCount(); atom++) {
+			assertEquals(expected.getAtomResidue(atom), actual.getAtomResidue(atom));
+			assertEquals(expected.getAtomName(atom), actual.getAtomName(atom));
+			assertEquals(expected.getElement(atom).toUpperCase(), actual.getElement(atom)
+					.toUpperCase());
+			assertEquals(expected.getX(atom), actual.getX(atom), 1e-6f);
+			assertEquals(expected.getY(atom), actual.getY(atom), 1e-6f);
+			assertEquals(expected.getZ(atom), actual.getZ(atom), 1e-6f);
+		}
+	}
+
+	private File getResource(String name) {
+		try {
+			return new File(getClass().getResource("/structures/" + name).toURI());
+		} catch (Exception e) {
+			throw new IllegalStateException("Missing test resource " + name, e);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package edu.ucsf.rbvi.structureVizX.internal.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import edu.ucsf.rbvi.structureVizX.internal.io.StructureFileReader;
+
+/**
+ * Compares the contacts found in Cytoscape with a ChimeraX <code>clash</code> reply for the same
+ * structure, at the residue level, which is what ends up in the network.
+ */
+public class ContactFilterTest {
+	// The settings CreateStructureNetworkTask uses for contacts by default
+	private static final double OVERLAP_CUTOFF = -0.4;
+	private static final double HBOND_ALLOWANCE = 0.0;
+	private static final int BOND_SEP = 4;
+	// ChimeraX's radii depend on the atom type, not just the element, so contacts this close to
+	// the cutoff may go either way
+	private static final double TOLERANCE = 0.3;
+
+	@Test
+	public void testElementGuesses() {
+		assertEquals("C", AtomCoordinates.getElement("ALA", "CA"));
+		assertEquals("CA", AtomCoordinates.getElement("CA", "CA"));
+		assertEquals("ZN", AtomCoordinates.getElement("ZN", "ZN"));
+		assertEquals("CL", AtomCoordinates.getElement("CL", "CL"));
+		assertEquals("CL", AtomCoordinates.getElement("LIG", "CL1"));
+		assertEquals("FE", AtomCoordinates.getElement("HEM", "FE"));
+		assertEquals("N", AtomCoordinates.getElement("HEM", "NA"));
+		assertEquals("SE", AtomCoordinates.getElement("MSE", "SE"));
+		assertEquals("H", AtomCoordinates.getElement("SER", "HG"));
+		assertEquals("H", AtomCoordinates.getElement("ALA", "1HB"));
+	}
+
+	@Test
+	public void testContactsMatchChimeraX() throws IOException {
+		Map<String, Double> recorded = readReply(getResource("dipeptide.contacts"));
+		assertFalse(recorded.isEmpty());
+		AtomCoordinates atoms = readAtoms(getResource("dipeptide.pdb"));
+		for (boolean parallel : new boolean[] { false, true }) {
+			Map<String, Double> found = findContacts(atoms, parallel);
+			for (Map.Entry<String, Double> contact : recorded.entrySet()) {
+				if (contact.getValue() >= OVERLAP_CUTOFF + TOLERANCE)
+					assertTrue("missing " + contact.getKey(), found.containsKey(contact.getKey()));
+			}
+			for (Map.Entry<String, Double> contact : found.entrySet()) {
+				if (contact.getValue() >= OVERLAP_CUTOFF + TOLERANCE)
+					assertTrue("extra " + contact.getKey(), recorded.containsKey(contact.getKey()));
+			}
+		}
+	}
+
+	@Test
+	public void testBondedAtomsAreIgnored() throws IOException {
+		AtomCoordinates atoms = readAtoms(getResource("dipeptide.pdb"));
+		// The peptide bond puts GLY 1 and ALA 2 within four bonds of each other everywhere
+		// they touch
+		assertFalse(findContacts(atoms, false).containsKey("#1/A:1 #1/A:2"));
+		ContactFilter filter = new ContactFilter(atoms, OVERLAP_CUTOFF, HBOND_ALLOWANCE, 0);
+		Map<String, Double> contacts = getResiduePairs(atoms, filter, false);
+		assertTrue(contacts.containsKey("#1/A:1 #1/A:2"));
+	}
+
+	@Test
+	public void testIonRadius() throws IOException {
+		AtomCoordinates atoms = readAtoms(getResource("dipeptide.pdb"));
+		int[] ions = atoms.getAtoms("CA");
+		boolean found = false;
+		for (int atom : ions) {
+			if (atoms.getResidue(atom).getType().equals("CA")) {
+				assertEquals("CA", atoms.getElement(atom));
+				assertTrue(atoms.getRadius(atom) > 2.0f);
+				found = true;
+			} else {
+				assertEquals("C", atoms.getElement(atom));
+			}
+		}
+		assertTrue(found);
+	}
+
+	private static Map<String, Double> findContacts(AtomCoordinates atoms, boolean parallel) {
+		ContactFilter filter = new ContactFilter(atoms, OVERLAP_CUTOFF, HBOND_ALLOWANCE, BOND_SEP);
+		return getResiduePairs(atoms, filter, parallel);
+	}
+
+	/**
+	 * @return the largest overlap between each pair of residues in contact
+	 */
+	private static Map<String, Double> getResiduePairs(AtomCoordinates atoms,
+			ContactFilter filter, boolean parallel) {
+		Map<String, Double> contacts = new HashMap<String, Double>();
+		ContactGrid.Pairs pairs = filter.findContacts(parallel);
+		for (int pair = 0; pair < pairs.size(); pair++) {
+			int atom1 = pairs.getAtom1(pair);
+			int atom2 = pairs.getAtom2(pair);
+			addContact(contacts, atoms.getResidueSpec(atom1), atoms.getResidueSpec(atom2),
+					filter.getOverlap(atom1, atom2, pairs.getDistance(pair)));
+		}
+		return contacts;
+	}
+
+	/**
+	 * Read a reply the way RINManager's ContactReplyParser does: skip to the header, then one
+	 * contact per line (atom1 atom2 overlap distance)
+	 */
+	private static Map<String, Double> readReply(File file) throws IOException {
+		Map<String, Double> contacts = new HashMap<String, Double>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			boolean foundHeader = false;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!foundHeader) {
+					foundHeader = line.startsWith("atom1");
+					continue;
+				}
+				String[] tokens = line.trim().split("\\s+");
+				if (tokens.length != 4)
+					continue;
+				addContact(contacts, getResidueSpec(tokens[0]), getResidueSpec(tokens[1]),
+						Double.parseDouble(tokens[2]));
+			}
+		} finally {
+			reader.close();
+		}
+		return contacts;
+	}
+
+	private static void addContact(Map<String, Double> contacts, String residue1,
+			String residue2, double overlap) {
+		String key = residue1.compareTo(residue2) < 0 ? residue1 + " " + residue2 : residue2 + " "
+				+ residue1;
+		Double known = contacts.get(key);
+		if (known == null || overlap > known)
+			contacts.put(key, overlap);
+	}
+
+	private static String getResidueSpec(String atomSpec) {
+		int atom = atomSpec.indexOf('@');
+		return atom < 0 ? atomSpec : atomSpec.substring(0, atom);
+	}
+
+	private static AtomCoordinates readAtoms(File file) throws IOException {
+		AtomCoordinates atoms = AtomCoordinates.read(StructureFileReader.readAtoms(file).get(0),
+				null, false);
+		assertNotNull(atoms);
+		return atoms;
+	}
+
+	private File getResource(String name) {
+		try {
+			return new File(getClass().getResource("/structures/" + name).toURI());
+		} catch (Exception e) {
+			throw new IllegalStateException("Missing test resource " + name, e);
+		}
+	}
+}